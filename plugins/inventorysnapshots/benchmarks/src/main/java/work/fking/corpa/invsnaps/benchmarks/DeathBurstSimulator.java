@@ -0,0 +1,220 @@
+package work.fking.corpa.invsnaps.benchmarks;
+
+import org.bukkit.entity.Player;
+import org.bukkit.event.entity.PlayerDeathEvent;
+import work.fking.corpa.invsnaps.Metrics;
+import work.fking.corpa.invsnaps.SegmentLogStore;
+import work.fking.corpa.invsnaps.SnapshotCapture;
+import work.fking.corpa.invsnaps.SnapshotRepository;
+import work.fking.corpa.invsnaps.SqliteDatabase;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.stream.Stream;
+
+/**
+ * Load test of many players dying at once, like a raid being wiped: every burst kills the given amount of players
+ * within a single tick, through the same death handler the server calls.
+ * <p>
+ * Runs headless, against a fake server and a {@link TickLoop} standing in for the scheduler, with a real repository in
+ * a temporary directory. Reports the main thread time of the ticks with deaths, the backlog of snapshots captured but
+ * not yet written, and the write latencies recorded by the plugin's metrics.
+ * <p>
+ * Options, given as {@code --name=value}, like
+ * {@code java -cp target/benchmarks.jar work.fking.corpa.invsnaps.benchmarks.DeathBurstSimulator --players=60}:
+ * <ul>
+ *     <li>{@code players}: the players dying in every burst, 40 by default.</li>
+ *     <li>{@code bursts}: the amount of bursts, 5 by default.</li>
+ *     <li>{@code interval}: the ticks between bursts, 100 by default.</li>
+ *     <li>{@code fixture}: the inventory of the players, {@code shulkers} by default.</li>
+ *     <li>{@code backend}: the store, {@code sqlite} by default.</li>
+ *     <li>{@code budget-micros}: the main thread time a tick may take, 5000 by default.</li>
+ *     <li>{@code capture-threads}: the threads serializing the captured players, 2 by default.</li>
+ * </ul>
+ * Exits with status 1 if a tick went over the budget, for it to be used as a check.
+ */
+public final class DeathBurstSimulator {
+
+    private static final long DRAIN_TIMEOUT_TICKS = 20 * 60;
+
+    private final Settings settings;
+    private final SnapshotRepository repository;
+    private final SnapshotCapture capture;
+    private final Metrics metrics;
+    private final TickLoop loop = new TickLoop();
+    private final List<Player> players = new ArrayList<>();
+
+    private final List<Long> burstTickNanos = new ArrayList<>();
+    private final List<Long> backlog = new ArrayList<>();
+    private long idleTickMaxNanos;
+    private long lastBurstTick;
+    private long deaths;
+
+    private DeathBurstSimulator(Settings settings, SnapshotRepository repository, Metrics metrics, Executor captureWorkers) {
+        this.settings = settings;
+        this.repository = repository;
+        this.metrics = metrics;
+        this.capture = new SnapshotCapture(repository, metrics, captureWorkers);
+
+        for (int i = 0; i < settings.players(); i++) {
+            players.add(FakeServer.player(UUID.randomUUID(), "Player" + i, settings.fixture().contents()));
+        }
+    }
+
+    public static void main(String[] args) throws IOException, SQLException {
+        var settings = Settings.parse(args);
+        FakeServer.install();
+        var directory = Files.createTempDirectory("inventory-snapshots-simulation");
+        var metrics = new Metrics();
+        var storageSettings = new SnapshotRepository.Settings(settings.backend(), true, false, 32, 64, 600, 10);
+        var repository = SnapshotRepository.create(
+                directory,
+                new SqliteDatabase.Settings(2, 8192, 256, 5000, false),
+                new SegmentLogStore.Settings(64, 0.5),
+                storageSettings,
+                metrics
+        );
+        var captureWorkers = Executors.newFixedThreadPool(settings.captureThreads());
+        boolean overBudget;
+
+        try {
+            overBudget = new DeathBurstSimulator(settings, repository, metrics, captureWorkers).run();
+        } finally {
+            captureWorkers.shutdown();
+            repository.close();
+            delete(directory);
+        }
+        System.exit(overBudget ? 1 : 0);
+    }
+
+    /**
+     * @return whether a tick went over the budget.
+     */
+    private boolean run() {
+        for (int burst = 0; burst < settings.bursts(); burst++) {
+            loop.runTaskLater(this::killEveryone, 1 + (long) burst * settings.interval());
+        }
+        var persisted = metrics.counter("snapshots.player_death");
+
+        while (loop.hasPendingTasks() || persisted.sum() < deaths) {
+            var nanos = loop.tick();
+
+            if (lastBurstTick == loop.currentTick()) {
+                burstTickNanos.add(nanos);
+            } else {
+                idleTickMaxNanos = Math.max(idleTickMaxNanos, nanos);
+            }
+            if (deaths > 0) {
+                backlog.add(deaths - persisted.sum());
+            }
+            if (!loop.hasPendingTasks() && loop.currentTick() - lastBurstTick > DRAIN_TIMEOUT_TICKS) {
+                System.out.printf("Gave up waiting for %d snapshots to be written%n", deaths - persisted.sum());
+                break;
+            }
+        }
+        return report(loop.currentTick() - lastBurstTick);
+    }
+
+    private void killEveryone() {
+        lastBurstTick = loop.currentTick();
+
+        for (var player : players) {
+            capture.onPlayerDeath(new PlayerDeathEvent(player, new ArrayList<>(), 0, null));
+            deaths++;
+        }
+    }
+
+    private boolean report(long drainTicks) {
+        var budgetNanos = settings.budgetMicros() * 1000;
+        var overBudget = burstTickNanos.stream().filter(nanos -> nanos > budgetNanos).count();
+
+        System.out.printf("%d bursts of %d deaths every %d ticks, %s inventories, %s store%n",
+                settings.bursts(), settings.players(), settings.interval(),
+                settings.fixture().name().toLowerCase(Locale.ROOT), settings.backend().name().toLowerCase(Locale.ROOT));
+        System.out.printf("Main thread per burst tick: %s, %d of %d over the %dus budget%n",
+                percentiles(burstTickNanos, 1000, "us"), overBudget, burstTickNanos.size(), settings.budgetMicros());
+        System.out.printf("Main thread per other tick: max %dus%n", idleTickMaxNanos / 1000);
+        System.out.printf("Async backlog, snapshots not yet written: %s, drained %d ticks after the last burst%n",
+                percentiles(backlog, 1, ""), drainTicks);
+
+        for (var name : List.of("capture.copy", "serialize", "save", "encode", "insert", "index_materials", "journal.fsync", "log.sync")) {
+            var histogram = metrics.histograms().get(name);
+
+            if (histogram != null && histogram.summary().count() > 0) {
+                var summary = histogram.summary();
+                System.out.printf("%s: %dx, p50 %dus, p95 %dus, p99 %dus, max %dus%n",
+                        name, summary.count(), summary.p50(), summary.p95(), summary.p99(), summary.max());
+            }
+        }
+        var stats = repository.writerStats();
+        System.out.printf("Writer: %d written in %d batches, largest %d, %d failed, %d queue full stalls, %d dropped%n",
+                stats.written(), stats.batches(), stats.largestBatchSize(), stats.failed(), stats.stalls(), stats.dropped());
+        return overBudget > 0;
+    }
+
+    private static String percentiles(List<Long> values, long divisor, String unit) {
+        if (values.isEmpty()) {
+            return "none";
+        }
+        var sorted = values.stream().mapToLong(Long::longValue).sorted().toArray();
+        return String.format("p50 %d%s, p99 %d%s, max %d%s",
+                percentile(sorted, 0.5) / divisor, unit,
+                percentile(sorted, 0.99) / divisor, unit,
+                sorted[sorted.length - 1] / divisor, unit);
+    }
+
+    private static long percentile(long[] sorted, double percentile) {
+        return sorted[Math.max(0, (int) Math.ceil(percentile * sorted.length) - 1)];
+    }
+
+    private static void delete(Path directory) throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (var file : files.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    private record Settings(int players, int bursts, int interval, Fixture fixture, SnapshotRepository.Backend backend, long budgetMicros, int captureThreads) {
+
+        private static Settings parse(String[] args) {
+            Map<String, String> options = new HashMap<>();
+
+            for (var arg : args) {
+                var separator = arg.indexOf('=');
+
+                if (!arg.startsWith("--") || separator < 0) {
+                    throw new IllegalArgumentException("Expected --name=value, got " + arg);
+                }
+                options.put(arg.substring(2, separator), arg.substring(separator + 1));
+            }
+            var settings = new Settings(
+                    Integer.parseInt(options.getOrDefault("players", "40")),
+                    Integer.parseInt(options.getOrDefault("bursts", "5")),
+                    Integer.parseInt(options.getOrDefault("interval", "100")),
+                    Fixture.valueOf(options.getOrDefault("fixture", "shulkers").toUpperCase(Locale.ROOT)),
+                    SnapshotRepository.Backend.valueOf(options.getOrDefault("backend", "sqlite").toUpperCase(Locale.ROOT)),
+                    Long.parseLong(options.getOrDefault("budget-micros", "5000")),
+                    Integer.parseInt(options.getOrDefault("capture-threads", "2"))
+            );
+            options.keySet().removeAll(Arrays.asList("players", "bursts", "interval", "fixture", "backend", "budget-micros", "capture-threads"));
+
+            if (!options.isEmpty()) {
+                throw new IllegalArgumentException("Unknown options " + options.keySet());
+            }
+            return settings;
+        }
+    }
+}
@@ -0,0 +1,245 @@
+package work.fking.corpa.invsnaps.benchmarks;
+
+import net.kyori.adventure.text.Component;
+import net.kyori.adventure.text.event.HoverEvent;
+import org.bukkit.Bukkit;
+import org.bukkit.Location;
+import org.bukkit.Material;
+import org.bukkit.Server;
+import org.bukkit.UnsafeValues;
+import org.bukkit.World;
+import org.bukkit.entity.Player;
+import org.bukkit.inventory.Inventory;
+import org.bukkit.inventory.ItemFactory;
+import org.bukkit.inventory.ItemStack;
+import org.bukkit.inventory.PlayerInventory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.UUID;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Stands in for the server, only as far as item stacks need it to be serialized, deserialized and rendered, and
+ * players to be captured.
+ * <p>
+ * Items serialize to gzipped NBT shaped like the server's, with the id and count the plugin peeks at. Shulker boxes
+ * are filled with named items, for them to weigh about as much as they do in practice.
+ */
+public final class FakeServer {
+
+    private static final int DATA_VERSION = 2860;
+    private static final int SHULKER_SLOTS = 27;
+
+    private static final byte TAG_END = 0;
+    private static final byte TAG_BYTE = 1;
+    private static final byte TAG_INT = 3;
+    private static final byte TAG_STRING = 8;
+    private static final byte TAG_LIST = 9;
+    private static final byte TAG_COMPOUND = 10;
+
+    private FakeServer() {
+    }
+
+    public static synchronized void install() {
+        if (Bukkit.getServer() != null) {
+            return;
+        }
+        var unsafe = proxy(UnsafeValues.class, Map.of(
+                "serializeItem", args -> serialize((ItemStack) args[0]),
+                "deserializeItem", args -> deserialize((byte[]) args[0])
+        ));
+        var itemFactory = proxy(ItemFactory.class, Map.of(
+                // items never have meta, they're equal to the lack of it
+                "equals", args -> true,
+                "displayName", args -> Component.text(((ItemStack) args[0]).getType().name()),
+                "asHoverEvent", args -> HoverEvent.showText(Component.text(((ItemStack) args[0]).getType().name()))
+        ));
+        var logger = Logger.getLogger("FakeServer");
+        Bukkit.setServer(proxy(Server.class, Map.of(
+                "getLogger", args -> logger,
+                "getUnsafe", args -> unsafe,
+                "getItemFactory", args -> itemFactory,
+                "getName", args -> "FakeServer",
+                "getVersion", args -> "benchmarks",
+                "getBukkitVersion", args -> "benchmarks"
+        )));
+    }
+
+    /**
+     * A player holding the given contents, as far as capturing their inventory needs.
+     */
+    public static Player player(UUID playerUuid, String name, ItemStack[] contents) {
+        var inventory = proxy(PlayerInventory.class, Map.of(
+                "getContents", args -> contents.clone(),
+                "getSize", args -> contents.length,
+                "getItem", args -> contents[(int) args[0]],
+                "getArmorContents", args -> Arrays.copyOfRange(contents, 36, 40),
+                "getItemInOffHand", args -> contents[40]
+        ));
+        // the storage slots stand in for a filled ender chest
+        var enderChestContents = Arrays.copyOfRange(contents, 9, 36);
+        var enderChest = proxy(Inventory.class, Map.of(
+                "getContents", args -> enderChestContents.clone(),
+                "getSize", args -> enderChestContents.length
+        ));
+        var world = proxy(World.class, Map.of("getName", args -> "world"));
+        return proxy(Player.class, Map.of(
+                "getUniqueId", args -> playerUuid,
+                "getName", args -> name,
+                "getInventory", args -> inventory,
+                "getEnderChest", args -> enderChest,
+                "getLevel", args -> 30,
+                "getExp", args -> 0.5f,
+                "getTotalExperience", args -> 1395,
+                "getLocation", args -> new Location(world, 128.5, 64, -256.5, 90, 0),
+                "isOnline", args -> true
+        ));
+    }
+
+    private static byte[] serialize(ItemStack itemStack) {
+        var bytes = new ByteArrayOutputStream(256);
+
+        try (var out = new DataOutputStream(new GZIPOutputStream(bytes))) {
+            out.writeByte(TAG_COMPOUND);
+            out.writeUTF("");
+            writeString(out, "id", itemStack.getType().getKey().toString());
+            out.writeByte(TAG_BYTE);
+            out.writeUTF("Count");
+            out.writeByte(itemStack.getAmount());
+            out.writeByte(TAG_INT);
+            out.writeUTF("DataVersion");
+            out.writeInt(DATA_VERSION);
+
+            if (itemStack.getType() == Material.SHULKER_BOX) {
+                writeShulkerContents(out);
+            }
+            out.writeByte(TAG_END);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static void writeShulkerContents(DataOutputStream out) throws IOException {
+        out.writeByte(TAG_COMPOUND);
+        out.writeUTF("tag");
+        out.writeByte(TAG_COMPOUND);
+        out.writeUTF("BlockEntityTag");
+        out.writeByte(TAG_LIST);
+        out.writeUTF("Items");
+        out.writeByte(TAG_COMPOUND);
+        out.writeInt(SHULKER_SLOTS);
+
+        for (int slot = 0; slot < SHULKER_SLOTS; slot++) {
+            out.writeByte(TAG_BYTE);
+            out.writeUTF("Slot");
+            out.writeByte(slot);
+            writeString(out, "id", "minecraft:enchanted_book");
+            out.writeByte(TAG_BYTE);
+            out.writeUTF("Count");
+            out.writeByte(1);
+            out.writeByte(TAG_COMPOUND);
+            out.writeUTF("tag");
+            out.writeByte(TAG_COMPOUND);
+            out.writeUTF("display");
+            writeString(out, "Name", "{\"text\":\"Loot #" + slot + "\",\"italic\":false,\"color\":\"gold\"}");
+            out.writeByte(TAG_END);
+            out.writeByte(TAG_END);
+            out.writeByte(TAG_END);
+        }
+        out.writeByte(TAG_END);
+        out.writeByte(TAG_END);
+    }
+
+    private static void writeString(DataOutputStream out, String name, String value) throws IOException {
+        out.writeByte(TAG_STRING);
+        out.writeUTF(name);
+        out.writeUTF(value);
+    }
+
+    // only reads back what serialize() writes, the id and count come first
+    private static ItemStack deserialize(byte[] serialized) {
+        try (var in = new DataInputStream(new GZIPInputStream(new ByteArrayInputStream(serialized)))) {
+            in.readByte();
+            in.readUTF();
+            in.readByte();
+            in.readUTF();
+            var id = in.readUTF();
+            in.readByte();
+            in.readUTF();
+            var count = in.readByte();
+            return new ItemStack(Material.matchMaterial(id), count);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static <T> T proxy(Class<T> type, Map<String, Handler> handlers) {
+        InvocationHandler invocationHandler = (proxy, method, args) -> {
+            if (method.getDeclaringClass() == Object.class) {
+                return objectMethod(proxy, method, args);
+            }
+            var handler = handlers.get(method.getName());
+
+            if (handler != null) {
+                return handler.handle(args);
+            }
+            return defaultValue(method.getReturnType());
+        };
+        return type.cast(Proxy.newProxyInstance(FakeServer.class.getClassLoader(), new Class<?>[] {type}, invocationHandler));
+    }
+
+    private static Object objectMethod(Object proxy, Method method, Object[] args) {
+        return switch (method.getName()) {
+            case "equals" -> proxy == args[0];
+            case "hashCode" -> System.identityHashCode(proxy);
+            default -> proxy.getClass().getInterfaces()[0].getSimpleName();
+        };
+    }
+
+    private static Object defaultValue(Class<?> type) {
+        if (!type.isPrimitive() || type == void.class) {
+            return null;
+        }
+        if (type == boolean.class) {
+            return false;
+        }
+        if (type == char.class) {
+            return '\0';
+        }
+        if (type == long.class) {
+            return 0L;
+        }
+        if (type == float.class) {
+            return 0f;
+        }
+        if (type == double.class) {
+            return 0d;
+        }
+        if (type == byte.class) {
+            return (byte) 0;
+        }
+        if (type == short.class) {
+            return (short) 0;
+        }
+        return 0;
+    }
+
+    @FunctionalInterface
+    private interface Handler {
+
+        Object handle(Object[] args);
+    }
+}
@@ -0,0 +1,57 @@
+package work.fking.corpa.invsnaps.benchmarks;
+
+import org.bukkit.Material;
+import org.bukkit.inventory.ItemStack;
+
+/**
+ * Representative player inventories, as the contents of a player inventory: 36 storage slots, armor and offhand.
+ */
+public enum Fixture {
+    EMPTY {
+        @Override
+        void fill(ItemStack[] contents) {
+        }
+    },
+    HOTBAR {
+        @Override
+        void fill(ItemStack[] contents) {
+            contents[0] = item("netherite_sword", 1);
+            contents[1] = item("bow", 1);
+            contents[2] = item("cooked_beef", 48);
+            contents[3] = item("torch", 64);
+            contents[4] = item("oak_planks", 64);
+            contents[5] = item("water_bucket", 1);
+            contents[6] = item("ender_pearl", 16);
+            contents[7] = item("golden_apple", 12);
+            contents[8] = item("netherite_pickaxe", 1);
+        }
+    },
+    SHULKERS {
+        @Override
+        void fill(ItemStack[] contents) {
+            for (int slot = 0; slot < STORAGE_SLOTS; slot++) {
+                contents[slot] = item("shulker_box", 1);
+            }
+            contents[36] = item("netherite_boots", 1);
+            contents[37] = item("netherite_leggings", 1);
+            contents[38] = item("elytra", 1);
+            contents[39] = item("netherite_helmet", 1);
+            contents[40] = item("totem_of_undying", 1);
+        }
+    };
+
+    public static final int SIZE = 41;
+    private static final int STORAGE_SLOTS = 36;
+
+    public ItemStack[] contents() {
+        var contents = new ItemStack[SIZE];
+        fill(contents);
+        return contents;
+    }
+
+    abstract void fill(ItemStack[] contents);
+
+    private static ItemStack item(String id, int amount) {
+        return new ItemStack(Material.matchMaterial(id), amount);
+    }
+}
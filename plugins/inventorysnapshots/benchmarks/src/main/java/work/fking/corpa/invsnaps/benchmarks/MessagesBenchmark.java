@@ -0,0 +1,69 @@
+package work.fking.corpa.invsnaps.benchmarks;
+
+import net.kyori.adventure.text.Component;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import work.fking.corpa.invsnaps.InventoryView;
+import work.fking.corpa.invsnaps.ItemStackSerializer;
+import work.fking.corpa.invsnaps.PlayerIndex;
+import work.fking.corpa.invsnaps.Snapshot;
+import work.fking.corpa.invsnaps.SnapshotMessages;
+import work.fking.corpa.invsnaps.SnapshotReason;
+
+import java.io.IOException;
+import java.time.LocalDateTime;
+import java.util.UUID;
+import java.util.zip.Deflater;
+
+/**
+ * Rendering a looked up snapshot, with every item decoded as small ones are, or with none decoded as shulker boxes
+ * and other big items are.
+ */
+@State(Scope.Benchmark)
+public class MessagesBenchmark {
+
+    @Param
+    private Fixture fixture;
+
+    private SnapshotMessages messages;
+    private Snapshot snapshot;
+    private InventoryView decoded;
+    private InventoryView undecoded;
+
+    @Setup
+    public void setup() throws IOException {
+        FakeServer.install();
+        var players = new PlayerIndex();
+        var playerUuid = UUID.randomUUID();
+        players.put(playerUuid, "Notch");
+        messages = new SnapshotMessages(players);
+
+        var captured = ItemStackSerializer.serialize(fixture.contents());
+        var stored = ItemStackSerializer.writeSlotted(ItemStackSerializer.read(captured), Deflater.DEFAULT_COMPRESSION, captured.length / 4);
+        snapshot = new Snapshot(1, playerUuid, SnapshotReason.PLAYER_DEATH, stored, LocalDateTime.now(), null);
+        decoded = InventoryView.of(stored);
+
+        for (int slot = 0; slot < decoded.size(); slot++) {
+            decoded.decode(slot);
+        }
+        undecoded = InventoryView.of(stored);
+    }
+
+    @Benchmark
+    public Component snapshotDetails() {
+        return messages.buildSnapshotDetails(snapshot, decoded);
+    }
+
+    @Benchmark
+    public Component itemListDecoded() {
+        return messages.buildItemList(snapshot.id(), decoded);
+    }
+
+    @Benchmark
+    public Component itemListUndecoded() {
+        return messages.buildItemList(snapshot.id(), undecoded);
+    }
+}
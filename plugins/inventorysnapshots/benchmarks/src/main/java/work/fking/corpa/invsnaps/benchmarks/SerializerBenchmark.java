@@ -0,0 +1,92 @@
+package work.fking.corpa.invsnaps.benchmarks;
+
+import org.bukkit.Material;
+import org.bukkit.inventory.ItemStack;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import work.fking.corpa.invsnaps.InventoryDiff;
+import work.fking.corpa.invsnaps.InventoryView;
+import work.fking.corpa.invsnaps.ItemStackSerializer;
+import work.fking.corpa.invsnaps.SerializedInventory;
+
+import java.io.IOException;
+import java.util.zip.Deflater;
+
+/**
+ * Capturing, encoding for storage and reading back a single inventory.
+ */
+@State(Scope.Benchmark)
+public class SerializerBenchmark {
+
+    @Param
+    private Fixture fixture;
+
+    private ItemStack[] contents;
+    private byte[] captured;
+    private byte[] stored;
+    private byte[] changedCapture;
+    private byte[] delta;
+
+    @Setup
+    public void setup() throws IOException {
+        FakeServer.install();
+        contents = fixture.contents();
+        captured = ItemStackSerializer.serialize(contents);
+        stored = ItemStackSerializer.writeSlotted(ItemStackSerializer.read(captured), Deflater.DEFAULT_COMPRESSION, captured.length / 4);
+
+        // what a player holds a moment later, with a different item in hand
+        var changed = fixture.contents();
+        changed[0] = new ItemStack(Material.DIAMOND, 3);
+        changedCapture = ItemStackSerializer.serialize(changed);
+        var storedTable = ItemStackSerializer.slotTable(stored);
+        var changedTable = ItemStackSerializer.slotTable(changedCapture);
+        var diff = InventoryDiff.compare(storedTable, changedTable);
+        delta = ItemStackSerializer.compressDelta(ItemStackSerializer.writeDelta(1, diff.changedItems(changedTable), Deflater.NO_COMPRESSION, 0));
+    }
+
+    @Benchmark
+    public byte[] capture() {
+        return ItemStackSerializer.serialize(contents);
+    }
+
+    @Benchmark
+    public byte[] encodeForStorage() throws IOException {
+        return ItemStackSerializer.writeSlotted(ItemStackSerializer.read(captured), Deflater.DEFAULT_COMPRESSION, captured.length / 4);
+    }
+
+    @Benchmark
+    public SerializedInventory readStored() throws IOException {
+        return ItemStackSerializer.read(stored);
+    }
+
+    @Benchmark
+    public ItemStack[] deserializeStored() {
+        return ItemStackSerializer.deserialize(stored);
+    }
+
+    @Benchmark
+    public InventoryView.Peek peekStored() {
+        var inventory = InventoryView.of(stored);
+        InventoryView.Peek last = null;
+
+        for (int slot = 0; slot < inventory.size(); slot++) {
+            if (!inventory.isEmpty(slot)) {
+                last = inventory.peek(slot);
+            }
+        }
+        return last;
+    }
+
+    @Benchmark
+    public InventoryDiff diffAgainstCapture() throws IOException {
+        return InventoryDiff.compare(ItemStackSerializer.slotTable(stored), ItemStackSerializer.slotTable(changedCapture));
+    }
+
+    @Benchmark
+    public byte[] resolveDelta() throws IOException {
+        return ItemStackSerializer.resolveDelta(stored, delta);
+    }
+}
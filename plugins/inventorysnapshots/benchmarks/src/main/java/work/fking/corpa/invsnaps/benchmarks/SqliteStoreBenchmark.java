@@ -0,0 +1,130 @@
+package work.fking.corpa.invsnaps.benchmarks;
+
+import org.bukkit.Material;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import work.fking.corpa.invsnaps.ItemStackSerializer;
+import work.fking.corpa.invsnaps.MaterialIndex;
+import work.fking.corpa.invsnaps.Metrics;
+import work.fking.corpa.invsnaps.Snapshot;
+import work.fking.corpa.invsnaps.SnapshotPage;
+import work.fking.corpa.invsnaps.SnapshotReason;
+import work.fking.corpa.invsnaps.SnapshotRepository;
+import work.fking.corpa.invsnaps.SqliteDatabase;
+import work.fking.corpa.invsnaps.SqliteSnapshotStore;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.stream.Stream;
+
+/**
+ * Inserts and queries against a temporary SQLite database, filled beforehand with the given amount of snapshots.
+ * <p>
+ * The snapshots belong to a player per {@value #SNAPSHOTS_PER_PLAYER}, and are mostly hotbar-only inventories, with
+ * a tenth full of shulker boxes and a fifth empty.
+ */
+@State(Scope.Benchmark)
+public class SqliteStoreBenchmark {
+
+    private static final int SNAPSHOTS_PER_PLAYER = 100;
+    private static final int FILL_BATCH_SIZE = 1000;
+    private static final int INSERT_BATCH_SIZE = 100;
+    private static final int PAGE_SIZE = 10;
+
+    @Param({"10000", "1000000"})
+    private int rows;
+
+    private Path directory;
+    private SqliteSnapshotStore store;
+    private UUID[] players;
+    private byte[][] inventories;
+    private List<Snapshot> insertBatch;
+
+    @Setup
+    public void setup() throws IOException, SQLException {
+        FakeServer.install();
+        directory = Files.createTempDirectory("inventory-snapshots-benchmark");
+        var databaseSettings = new SqliteDatabase.Settings(2, 8192, 256, 5000, false);
+        var settings = new SnapshotRepository.Settings(SnapshotRepository.Backend.SQLITE, true, false, 32, 0, 0, 10);
+        store = SqliteSnapshotStore.open(directory.resolve(SqliteSnapshotStore.FILE_NAME), databaseSettings, settings, new Metrics());
+
+        players = new UUID[Math.max(1, rows / SNAPSHOTS_PER_PLAYER)];
+
+        for (int i = 0; i < players.length; i++) {
+            players[i] = UUID.randomUUID();
+        }
+        inventories = new byte[10][];
+
+        for (int i = 0; i < inventories.length; i++) {
+            var fixture = i == 0 ? Fixture.SHULKERS : i < 3 ? Fixture.EMPTY : Fixture.HOTBAR;
+            inventories[i] = ItemStackSerializer.serialize(fixture.contents());
+        }
+        var start = LocalDateTime.now().minusSeconds(rows);
+        var batch = new ArrayList<Snapshot>(FILL_BATCH_SIZE);
+
+        for (int i = 0; i < rows; i++) {
+            batch.add(snapshot(i, start.plusSeconds(i)));
+
+            if (batch.size() == FILL_BATCH_SIZE || i == rows - 1) {
+                store.saveAll(List.copyOf(batch)).join();
+                batch.clear();
+            }
+        }
+        insertBatch = new ArrayList<>(INSERT_BATCH_SIZE);
+
+        for (int i = 0; i < INSERT_BATCH_SIZE; i++) {
+            insertBatch.add(snapshot(i, LocalDateTime.now()));
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        store.close(Duration.ofSeconds(30));
+
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (var file : files.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    private Snapshot snapshot(int index, LocalDateTime createdAt) {
+        return new Snapshot(-1, players[index % players.length], SnapshotReason.PLAYER_DEATH, inventories[index % inventories.length], createdAt, null);
+    }
+
+    /**
+     * The table keeps growing by the batch every invocation, runs of the smaller table end up with more rows.
+     */
+    @Benchmark
+    public List<Snapshot> insertBatch() {
+        return store.saveAll(insertBatch).join();
+    }
+
+    @Benchmark
+    public Snapshot findById() {
+        return store.findById(ThreadLocalRandom.current().nextInt(rows) + 1);
+    }
+
+    @Benchmark
+    public SnapshotPage findForList() {
+        return store.findForList(players[ThreadLocalRandom.current().nextInt(players.length)], null, PAGE_SIZE);
+    }
+
+    @Benchmark
+    public MaterialIndex.Page search() {
+        return store.search(Material.TOTEM_OF_UNDYING.name(), 1, 0, LocalDateTime.now().minusDays(7), null, PAGE_SIZE);
+    }
+}
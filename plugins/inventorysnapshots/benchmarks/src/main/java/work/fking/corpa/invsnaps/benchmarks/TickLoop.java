@@ -0,0 +1,61 @@
+package work.fking.corpa.invsnaps.benchmarks;
+
+import java.util.Comparator;
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Stands in for the server's scheduler: runs the tasks due every tick on the calling thread, as the main thread, and
+ * paces the ticks to 20 per second so that the plugin's own threads get as much time between ticks as on a server.
+ */
+public final class TickLoop {
+
+    private static final long TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+
+    private final PriorityQueue<Task> tasks = new PriorityQueue<>(Comparator.comparingLong(Task::tick).thenComparingLong(Task::sequence));
+    private long currentTick;
+    private long sequence;
+    private long nextTickStart = System.nanoTime();
+
+    public void runTask(Runnable task) {
+        runTaskLater(task, 1);
+    }
+
+    public void runTaskLater(Runnable task, long delayTicks) {
+        tasks.add(new Task(currentTick + Math.max(1, delayTicks), sequence++, task));
+    }
+
+    public long currentTick() {
+        return currentTick;
+    }
+
+    public boolean hasPendingTasks() {
+        return !tasks.isEmpty();
+    }
+
+    /**
+     * Waits for the next tick to start, then runs its tasks.
+     *
+     * @return the time the tasks took, in nanoseconds.
+     */
+    public long tick() {
+        var wait = nextTickStart - System.nanoTime();
+
+        if (wait > 0) {
+            LockSupport.parkNanos(wait);
+        }
+        // like the server, an overrunning tick delays the next ones rather than being caught up on
+        nextTickStart = Math.max(nextTickStart + TICK_NANOS, System.nanoTime());
+        currentTick++;
+        var start = System.nanoTime();
+
+        while (!tasks.isEmpty() && tasks.peek().tick() <= currentTick) {
+            tasks.poll().task().run();
+        }
+        return System.nanoTime() - start;
+    }
+
+    private record Task(long tick, long sequence, Runnable task) {
+    }
+}
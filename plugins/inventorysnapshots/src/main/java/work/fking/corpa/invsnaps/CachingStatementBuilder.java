@@ -0,0 +1,92 @@
+package work.fking.corpa.invsnaps;
+
+import org.jdbi.v3.core.statement.DefaultStatementBuilder;
+import org.jdbi.v3.core.statement.StatementBuilder;
+import org.jdbi.v3.core.statement.StatementContext;
+
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps the prepared statements of a single connection around after Jdbi is done with them, so that the same SQL is
+ * only prepared once for the lifetime of the connection.
+ * <p>
+ * SQL rendered from list bindings differs with every list size, the least recently used statements are closed once
+ * more than {@link #MAX_IDLE_STATEMENTS} are cached so that those don't pile up.
+ * <p>
+ * A connection is only ever used by one handle at a time, so the builder does not need to be thread safe.
+ */
+public final class CachingStatementBuilder implements StatementBuilder {
+
+    private static final int MAX_IDLE_STATEMENTS = 64;
+
+    private final Map<String, PreparedStatement> idleStatements = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+            if (size() <= MAX_IDLE_STATEMENTS) {
+                return false;
+            }
+            closeQuietly(eldest.getValue());
+            return true;
+        }
+    };
+
+    @Override
+    public Statement create(Connection conn, StatementContext ctx) throws SQLException {
+        return DefaultStatementBuilder.INSTANCE.create(conn, ctx);
+    }
+
+    @Override
+    public PreparedStatement create(Connection conn, String sql, StatementContext ctx) throws SQLException {
+        if (ctx.isReturningGeneratedKeys() || ctx.isConcurrentUpdatable()) {
+            return DefaultStatementBuilder.INSTANCE.create(conn, sql, ctx);
+        }
+        var statement = idleStatements.remove(sql);
+
+        if (statement == null || statement.isClosed()) {
+            statement = conn.prepareStatement(sql);
+        }
+        return statement;
+    }
+
+    @Override
+    public CallableStatement createCall(Connection conn, String sql, StatementContext ctx) throws SQLException {
+        return DefaultStatementBuilder.INSTANCE.createCall(conn, sql, ctx);
+    }
+
+    @Override
+    public void close(Connection conn, String sql, Statement stmt) throws SQLException {
+        if (!(stmt instanceof PreparedStatement prepared) || stmt instanceof CallableStatement || stmt.isClosed()) {
+            StatementBuilder.super.close(conn, sql, stmt);
+            return;
+        }
+        prepared.clearParameters();
+
+        // the same sql might be in use more than once at a time, only the first one returned gets cached
+        if (idleStatements.putIfAbsent(sql, prepared) != null) {
+            prepared.close();
+        }
+    }
+
+    /**
+     * Closes all the cached statements, to be called before the underlying connection is closed.
+     */
+    public void closeAll() {
+        // the connection is about to be closed anyway
+        idleStatements.values().forEach(CachingStatementBuilder::closeQuietly);
+        idleStatements.clear();
+    }
+
+    private static void closeQuietly(PreparedStatement statement) {
+        try {
+            statement.close();
+        } catch (SQLException ignored) {
+            // nothing left to do with it
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package work.fking.corpa.invsnaps;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * The slots which differ between two inventories, found by comparing the serialized items rather than deserializing
+ * them and comparing their meta.
+ * <p>
+ * Items serialize to the same bytes when they are equal, whether they come from a capture or were stored. Stored items
+ * usually had their gzip wrapping removed while captured ones still have it, in which case the size and checksum in
+ * the gzip trailer are compared first, and the item is only inflated if they match.
+ */
+public record InventoryDiff(int size, List<Change> changes) {
+
+    private static final int GZIP_HEADER_SIZE = 10;
+    private static final int GZIP_TRAILER_SIZE = 8;
+    private static final int GZIP_FLAGS_OFFSET = 3;
+
+    // only JDK types are kept per thread, so that threads outliving a plugin reload don't pin its class loader
+    private static final ThreadLocal<Inflater> INFLATER = ThreadLocal.withInitial(() -> new Inflater(true));
+    private static final ThreadLocal<byte[]> INFLATED = ThreadLocal.withInitial(() -> new byte[4096]);
+
+    public static InventoryDiff compare(InventoryView from, InventoryView to) {
+        return compare(from.table(), to.table());
+    }
+
+    public static InventoryDiff compare(ItemStackSerializer.SlotTable from, ItemStackSerializer.SlotTable to) {
+        var size = Math.max(from.size(), to.size());
+        var changes = new ArrayList<Change>();
+
+        for (int slot = 0; slot < size; slot++) {
+            var inFrom = slot < from.size() && from.offsets()[slot] >= 0;
+            var inTo = slot < to.size() && to.offsets()[slot] >= 0;
+
+            if (inFrom && inTo) {
+                if (!sameItem(from, to, slot)) {
+                    changes.add(new Change(slot, Kind.CHANGED));
+                }
+            } else if (inFrom) {
+                changes.add(new Change(slot, Kind.REMOVED));
+            } else if (inTo) {
+                changes.add(new Change(slot, Kind.ADDED));
+            }
+        }
+        return new InventoryDiff(size, changes);
+    }
+
+    public boolean isEmpty() {
+        return changes.isEmpty();
+    }
+
+    /**
+     * Collects the items the target inventory has in the changed slots, as the changes of a version 5 inventory.
+     *
+     * @param to the inventory this diff was computed towards.
+     * @see ItemStackSerializer#writeDelta(int, SerializedInventory, int, int)
+     */
+    public SerializedInventory changedItems(ItemStackSerializer.SlotTable to) {
+        var items = new ArrayList<SerializedInventory.Item>(changes.size());
+
+        for (var change : changes) {
+            var slot = change.slot();
+
+            if (change.kind() == Kind.REMOVED) {
+                items.add(new SerializedInventory.Item(slot, SerializedInventory.FLAG_CLEARED, new byte[0]));
+            } else {
+                var offset = to.offsets()[slot];
+                items.add(new SerializedInventory.Item(slot, to.flags()[slot], Arrays.copyOfRange(to.data(), offset, offset + to.lengths()[slot])));
+            }
+        }
+        return new SerializedInventory(size, items);
+    }
+
+    private static boolean sameItem(ItemStackSerializer.SlotTable a, ItemStackSerializer.SlotTable b, int slot) {
+        var aStripped = (a.flags()[slot] & SerializedInventory.FLAG_GZIP_STRIPPED) != 0;
+        var bStripped = (b.flags()[slot] & SerializedInventory.FLAG_GZIP_STRIPPED) != 0;
+
+        if (aStripped == bStripped) {
+            return Arrays.equals(
+                    a.data(), a.offsets()[slot], a.offsets()[slot] + a.lengths()[slot],
+                    b.data(), b.offsets()[slot], b.offsets()[slot] + b.lengths()[slot]
+            );
+        }
+        return aStripped ? sameNbt(b, a, slot) : sameNbt(a, b, slot);
+    }
+
+    private static boolean sameNbt(ItemStackSerializer.SlotTable gzipped, ItemStackSerializer.SlotTable stripped, int slot) {
+        var data = gzipped.data();
+        var offset = gzipped.offsets()[slot];
+        var length = gzipped.lengths()[slot];
+        var nbtOffset = stripped.offsets()[slot];
+        var nbtLength = stripped.lengths()[slot];
+
+        // only the bare header serializeAsBytes() writes is expected
+        if (length < GZIP_HEADER_SIZE + GZIP_TRAILER_SIZE || data[offset + GZIP_FLAGS_OFFSET] != 0) {
+            return false;
+        }
+        var end = offset + length;
+
+        if (readIntLE(data, end - 4) != nbtLength) {
+            return false;
+        }
+        var crc = new CRC32();
+        crc.update(stripped.data(), nbtOffset, nbtLength);
+
+        if (readIntLE(data, end - 8) != (int) crc.getValue()) {
+            return false;
+        }
+        // the checksums match, which is all but certain to mean equal items, but a restore has to be exact
+        var inflater = INFLATER.get();
+        inflater.reset();
+        inflater.setInput(data, offset + GZIP_HEADER_SIZE, length - GZIP_HEADER_SIZE - GZIP_TRAILER_SIZE);
+        var inflated = INFLATED.get();
+
+        if (inflated.length < nbtLength + 1) {
+            inflated = new byte[nbtLength + 1];
+            INFLATED.set(inflated);
+        }
+        try {
+            var size = 0;
+
+            while (!inflater.finished() && size <= nbtLength) {
+                var read = inflater.inflate(inflated, size, inflated.length - size);
+
+                if (read == 0 && inflater.needsInput()) {
+                    return false;
+                }
+                size += read;
+            }
+            return size == nbtLength && Arrays.equals(inflated, 0, size, stripped.data(), nbtOffset, nbtOffset + nbtLength);
+        } catch (DataFormatException e) {
+            return false;
+        }
+    }
+
+    private static int readIntLE(byte[] data, int offset) {
+        return (data[offset] & 0xFF) | (data[offset + 1] & 0xFF) << 8 | (data[offset + 2] & 0xFF) << 16 | (data[offset + 3] & 0xFF) << 24;
+    }
+
+    public enum Kind {
+        ADDED,
+        REMOVED,
+        CHANGED
+    }
+
+    public record Change(int slot, Kind kind) {
+    }
+}
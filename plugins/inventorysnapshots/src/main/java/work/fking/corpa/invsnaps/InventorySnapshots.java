@@ -1,270 +1,261 @@
 package work.fking.corpa.invsnaps;
 
-import com.google.common.base.Strings;
-import net.kyori.adventure.text.Component;
-import net.kyori.adventure.text.JoinConfiguration;
-import net.kyori.adventure.text.event.ClickEvent;
-import net.kyori.adventure.text.event.HoverEvent;
-import net.kyori.adventure.text.format.TextColor;
-import org.bukkit.Bukkit;
-import org.bukkit.command.Command;
-import org.bukkit.command.CommandExecutor;
-import org.bukkit.command.CommandSender;
-import org.bukkit.command.TabCompleter;
+import org.bukkit.Location;
 import org.bukkit.entity.Player;
 import org.bukkit.event.EventHandler;
 import org.bukkit.event.Listener;
-import org.bukkit.event.entity.PlayerDeathEvent;
+import org.bukkit.event.player.PlayerJoinEvent;
 import org.bukkit.inventory.ItemStack;
 import org.bukkit.plugin.java.JavaPlugin;
-import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.io.IOException;
 import java.nio.file.Files;
-import java.time.Duration;
-import java.time.format.DateTimeFormatter;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.List;
-import java.util.stream.Collectors;
-
-public class InventorySnapshots extends JavaPlugin implements CommandExecutor, Listener, TabCompleter {
-
-    private static final TextColor PRIMARY_TEXT_COLOR = TextColor.color(0xFF9800);
-    private static final TextColor SECONDARY_TEXT_COLOR = TextColor.color(0xBDBDBD);
-    private static final TextColor TERTIARY_TEXT_COLOR = TextColor.color(0x26C6DA);
-
-    private static final DateTimeFormatter DATE_TIME_FORMATTER = DateTimeFormatter.ofPattern("y-M-d H:m:s");
+import java.nio.file.StandardOpenOption;
+import java.sql.SQLException;
+import java.time.Instant;
+import java.util.BitSet;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntPredicate;
+
+public class InventorySnapshots extends JavaPlugin implements Listener {
+
+    private static final long WORKER_SHUTDOWN_TIMEOUT_SECONDS = 5;
+    private static final String METRICS_FILE = "metrics.jsonl";
+
+    private final Metrics metrics = new Metrics();
+    private final LongAdder restoredSlots = metrics.counter("restore.restored_slots");
 
     private SnapshotRepository repository;
+    private SnapshotCapture captures;
+    private ThreadPoolExecutor workers;
+    private ThreadPoolExecutor captureWorkers;
+    private SnapshotCommands commands;
+    private SnapshotScheduler scheduler;
+    private SnapshotRetention retention;
 
     @Override
     public void onEnable() {
         getServer().getPluginManager().registerEvents(this, this);
-        getCommand("inventorysnapshots").setTabCompleter(this); // safe because we're the ones registering this command
+        saveDefaultConfig();
         try {
             var directory = getDataFolder().toPath();
             Files.createDirectories(directory);
-            this.repository = SnapshotRepository.create(directory);
-        } catch (IOException e) {
+            var databaseSettings = SqliteDatabase.Settings.fromConfig(getConfig().getConfigurationSection("database"));
+            var storageSettings = SnapshotRepository.Settings.fromConfig(getConfig().getConfigurationSection("storage"));
+            var logSettings = SegmentLogStore.Settings.fromConfig(getConfig().getConfigurationSection("log-store"));
+            this.repository = SnapshotRepository.create(directory, databaseSettings, logSettings, storageSettings, metrics);
+        } catch (IOException | SQLException e) {
             throw new RuntimeException("Failed to start InventorySnapshots", e);
         }
-    }
+        for (var player : getServer().getOnlinePlayers()) {
+            repository.rememberPlayer(player.getUniqueId(), player.getName());
+        }
+        var captureThreads = getConfig().getConfigurationSection("snapshots").getInt("capture-threads", 2);
+        this.captureWorkers = createWorkers("InventorySnapshots-Capture-", Math.max(1, captureThreads));
+        this.captures = new SnapshotCapture(repository, metrics, captureWorkers);
+        getServer().getPluginManager().registerEvents(captures, this);
 
-    @EventHandler
-    public void onPlayerDeath(PlayerDeathEvent event) {
-        var player = event.getPlayer();
-        var snapshot = Snapshot.from(player, SnapshotReason.PLAYER_DEATH);
-        Bukkit.getScheduler().runTaskAsynchronously(this, () -> repository.save(snapshot));
-    }
+        // only reads the server's user cache, offline players' profiles are never fetched
+        getServer().getScheduler().runTaskAsynchronously(this, () -> repository.nameUnnamedPlayers(playerUuid -> getServer().getOfflinePlayer(playerUuid).getName()));
 
-    @Override
-    public @Nullable List<String> onTabComplete(@NotNull CommandSender sender, @NotNull Command command, @NotNull String alias, @NotNull String[] args) {
-        var argPos = args.length;
+        var commandSettings = getConfig().getConfigurationSection("commands");
+        this.workers = createWorkers("InventorySnapshots-Worker-", Math.max(1, commandSettings.getInt("worker-threads", 2)));
 
-        if (argPos == 1) {
-            return List.of("lookup");
-        } else if (argPos == 2) {
-            var subcommand = args[0];
+        var rollbackSettings = SnapshotRollback.Settings.fromConfig(getConfig().getConfigurationSection("rollback"));
+        var rollback = new SnapshotRollback(this, repository, metrics, workers, rollbackSettings);
+        getServer().getPluginManager().registerEvents(rollback, this);
 
-            if ("lookup".equals(subcommand)) {
-                return suggestOnlinePlayers();
-            }
-        }
-        return List.of();
-    }
+        this.commands = new SnapshotCommands(this, repository, rollback, metrics, workers, Math.max(1, commandSettings.getInt("max-in-flight-per-sender", 2)));
 
-    private List<String> suggestOnlinePlayers() {
-        return getServer().getOnlinePlayers()
-                          .stream()
-                          .map(Player::getName)
-                          .collect(Collectors.toList());
-    }
+        metrics.gauge("writer.queue_depth", () -> repository.writerStats().queueDepth());
+        metrics.gauge("workers.queued", () -> workers.getQueue().size());
+        metrics.gauge("workers.active", workers::getActiveCount);
+        metrics.gauge("capture.queued", () -> captureWorkers.getQueue().size());
+        metrics.gauge("cache.bytes", () -> repository.cacheStats().bytes());
 
-    @Override
-    public boolean onCommand(@NotNull CommandSender sender, @NotNull Command command, @NotNull String label, @NotNull String[] args) {
+        var schedulerSettings = SnapshotScheduler.Settings.fromConfig(getConfig().getConfigurationSection("snapshots"));
+        this.scheduler = new SnapshotScheduler(this, metrics, schedulerSettings);
+        getServer().getPluginManager().registerEvents(scheduler, this);
+        scheduler.start();
 
-        if (args.length <= 1) {
-            sender.sendMessage("Insufficient amount of arguments.");
-            return true;
-        }
-        var subCommand = args[0];
+        var retentionSettings = SnapshotRetention.Settings.fromConfig(getConfig().getConfigurationSection("retention"));
 
-        switch (subCommand) {
-            case "restore" -> handleRestore(sender, Arrays.copyOfRange(args, 1, args.length));
-            case "lookup" -> handleLookup(sender, Arrays.copyOfRange(args, 1, args.length));
-            default -> {
-                return false;
-            }
+        if (retentionSettings.enabled()) {
+            this.retention = new SnapshotRetention(repository, getSLF4JLogger(), metrics, retentionSettings);
+            var retentionInterval = retentionSettings.intervalMinutes() * 60L * 20L;
+            getServer().getScheduler().runTaskTimerAsynchronously(this, retention, retentionInterval, retentionInterval);
         }
-        return true;
-    }
 
-    private void handleRestore(CommandSender sender, String[] args) {
-        var snapshotId = Integer.parseInt(args[0]);
-        var snapshot = repository.findById(snapshotId);
+        var dumpInterval = getConfig().getConfigurationSection("metrics").getLong("dump-interval-seconds", 60) * 20;
 
-        if (snapshot == null) {
-            sender.sendMessage("Could not find the requested player snapshot.");
-            return;
+        if (dumpInterval > 0) {
+            getServer().getScheduler().runTaskTimerAsynchronously(this, this::dumpMetrics, dumpInterval, dumpInterval);
         }
-        var player = getServer().getPlayer(snapshot.playerUuid());
 
-        if (player == null) {
-            sender.sendMessage("The player is not online, cannot restore snapshot.");
-            return;
-        }
-        // snapshot the player's current state, just in case...
-        var currSnapshot = Snapshot.from(player, SnapshotReason.RESTORATION);
-        Bukkit.getScheduler().runTaskAsynchronously(this, () -> repository.save(currSnapshot));
-        var itemStacks = snapshot.itemStacks();
-        player.getInventory().setContents(itemStacks);
-        sender.sendMessage(Component.text("Successfully restored the player's inventory to the snapshot.").color(PRIMARY_TEXT_COLOR));
-        player.sendMessage(Component.text("Your inventory has been restored to a previous state.").color(SECONDARY_TEXT_COLOR));
+        // safe because we're the ones registering this command
+        var command = getCommand("inventorysnapshots");
+        command.setExecutor(commands);
+        command.setTabCompleter(commands);
     }
 
-    private void handleLookup(CommandSender sender, String[] args) {
-        if (args.length < 1) {
-            sender.sendMessage("Insufficient amount of arguments.");
-            return;
+    @Override
+    public void onDisable() {
+        if (commands != null) {
+            commands.close();
         }
-        var subject = args[0];
-
-        try {
-            // if the subject is an integer, we're looking up at a specific snapshot
-            var snapshotId = Integer.parseInt(subject);
-            var snapshot = repository.findById(snapshotId);
-
-            if (snapshot == null) {
-                sender.sendMessage("Could not find the requested player snapshot.");
-                return;
-            }
-            sender.sendMessage(buildSnapshotDetails(snapshot));
-        } catch (NumberFormatException e) {
-            handlePlayerLookup(sender, subject);
+        if (retention != null) {
+            retention.cancel();
         }
-    }
-
-    private void handlePlayerLookup(CommandSender sender, String subject) {
-        var player = getServer().getPlayer(subject);
-
-        if (player == null) {
-            sender.sendMessage("Unknown player.");
-            return;
+        if (workers != null) {
+            // let in flight lookups finish before their connections are closed
+            awaitShutdown(workers);
         }
-        var list = repository.findForList(player.getUniqueId());
-
-        if (list.isEmpty()) {
-            sender.sendMessage("This player doesn't have any snapshots.");
-            return;
+        if (captureWorkers != null) {
+            // and captures be handed to the writer, which writes or journals whatever it has been handed on close
+            awaitShutdown(captureWorkers);
         }
-        sender.sendMessage(buildSnapshotList(list));
-    }
-
-    private Component buildSnapshotList(List<Snapshot> snapshots) {
-        List<Component> lines = new ArrayList<>();
-        lines.add(Component.text("The following snapshots were found:").color(PRIMARY_TEXT_COLOR));
-
-        for (Snapshot snapshot : snapshots) {
-            var event = ClickEvent.runCommand("/is lookup " + snapshot.id());
-            var timeAgo = formatDuration(snapshot.timeSince()) + " ago";
-            lines.add(
-                    Component.text()
-                             .content("[" + DATE_TIME_FORMATTER.format(snapshot.createdAt()) + "]")
-                             .color(TERTIARY_TEXT_COLOR)
-                             .hoverEvent(HoverEvent.showText(Component.text(timeAgo)))
-                             .clickEvent(event)
-                             .append(Component.space(), Component.text("(" + snapshot.reason().fancyReason() + ")").color(SECONDARY_TEXT_COLOR))
-                             .build()
-
-            );
+        if (repository != null) {
+            repository.close();
+            dumpMetrics();
         }
-        return Component.join(JoinConfiguration.separator(Component.newline()), lines);
     }
 
-    private Component buildSnapshotDetails(Snapshot snapshot) {
-        var offlinePlayer = getServer().getOfflinePlayer(snapshot.playerUuid());
-
-        return Component.empty()
-                        .append(Component.text(Strings.repeat("+", 53)).color(PRIMARY_TEXT_COLOR))
-                        .append(Component.newline())
-                        .append(buildLine("Player:", offlinePlayer.getName()))
-                        .append(buildLine("Snapshot time:", DATE_TIME_FORMATTER.format(snapshot.createdAt())))
-                        .append(buildItemList(snapshot.itemStacks()))
-                        .append(buildConfirmation(snapshot));
+    /**
+     * Captures the player's current inventory and state.
+     */
+    public Snapshot capture(Player player, SnapshotReason reason) {
+        return captures.capture(player, reason);
     }
 
-    private Component buildLine(String left, String right) {
-        return Component.empty()
-                        .append(Component.text(left).color(PRIMARY_TEXT_COLOR))
-                        .append(Component.space())
-                        .append(Component.text(right).color(SECONDARY_TEXT_COLOR))
-                        .append(Component.newline());
+    /**
+     * Copies the player's current inventory and state, which are serialized and saved off the main thread.
+     */
+    public CompletableFuture<Snapshot> save(Player player, SnapshotReason reason) {
+        return captures.save(player, reason);
     }
 
-    private Component buildConfirmation(Snapshot snapshot) {
-        var event = ClickEvent.runCommand("/is restore " + snapshot.id() + " confirm");
-        return Component.text("Restore player snapshot?")
-                        .append(Component.space())
-                        .append(
-                                Component.text()
-                                         .content("[Yes]")
-                                         .color(TERTIARY_TEXT_COLOR)
-                                         .clickEvent(event)
-                        );
+    /**
+     * Restores the slots of the player's inventory which differ from the snapshot, the others are left untouched. Only
+     * copying the player is done right away, the slots are compared on their serialized items by the capture workers,
+     * and the ones which differ are restored on the main thread once they are done.
+     *
+     * @param snapshotId the id of the snapshot the inventory is from.
+     * @param slots      the slots which may be restored.
+     * @return a future completed on the main thread with a snapshot of what the player held before, holding only the
+     * changes to the restored snapshot, which is yet to be saved.
+     */
+    public CompletableFuture<Snapshot> restore(Player player, int snapshotId, InventoryView inventory, IntPredicate slots) {
+        var previous = captures.copy(player, SnapshotReason.RESTORATION);
+
+        return captures.restoration(previous, snapshotId, inventory).thenApplyAsync(restoration -> {
+            if (player.isOnline()) {
+                applyRestoration(player, previous, inventory, restoration.diff(), slots);
+            } else {
+                getSLF4JLogger().warn("{} left before snapshot {} could be restored", player.getName(), snapshotId);
+            }
+            return restoration.snapshot();
+        }, task -> getServer().getScheduler().runTask(this, task));
     }
 
-    private Component buildItemList(ItemStack[] itemStacks) {
-        var items = new ArrayList<Component>();
+    private void applyRestoration(Player player, PlayerCapture previous, InventoryView inventory, @Nullable InventoryDiff diff, IntPredicate slots) {
+        var contents = previous.contents();
+        var playerInventory = player.getInventory();
+        var changed = new BitSet();
 
-        for (ItemStack itemStack : itemStacks) {
-
-            if (itemStack == null) {
+        if (diff == null) {
+            changed.set(0, contents.length);
+        } else {
+            diff.changes().forEach(change -> changed.set(change.slot()));
+        }
+        for (int slot = 0; slot < contents.length && slot < playerInventory.getSize(); slot++) {
+            if (!slots.test(slot)) {
+                continue;
+            }
+            // the player may have moved items around since the copy, only their type and amount are checked for that
+            if (!changed.get(slot) && sameTypeAndAmount(playerInventory.getItem(slot), contents[slot])) {
                 continue;
             }
-            items.add(
-                    Component.join(JoinConfiguration.noSeparators(),
-                            Component.text(itemStack.getAmount() + "x ").color(SECONDARY_TEXT_COLOR),
-                            itemStack.displayName().hoverEvent(itemStack.asHoverEvent())
-                    )
-            );
+            playerInventory.setItem(slot, slot < inventory.size() ? inventory.item(slot) : null);
+            restoredSlots.increment();
         }
-        return Component.empty()
-                        .append(Component.text("Items:").color(PRIMARY_TEXT_COLOR))
-                        .append(Component.space())
-                        .append(Component.join(JoinConfiguration.separator(Component.space()), items))
-                        .append(Component.newline());
     }
 
-    private String formatDuration(Duration duration) {
-        StringBuilder builder = new StringBuilder();
-        long seconds = duration.getSeconds();
-        long minutes = ((seconds % 3600) / 60);
-        long hours = seconds / 3600;
-
-        if (hours > 0) {
-            builder.append(hours).append(" hour");
+    private static boolean sameTypeAndAmount(@Nullable ItemStack a, @Nullable ItemStack b) {
+        if (a == null || a.getType().isAir()) {
+            return b == null || b.getType().isAir();
+        }
+        return b != null && a.getType() == b.getType() && a.getAmount() == b.getAmount();
+    }
 
-            if (hours > 1) {
-                builder.append('s');
+    /**
+     * Restores the given sections of the player's state, sections the state doesn't hold are left untouched.
+     *
+     * @param enderChest the ender chest of the state, read beforehand.
+     */
+    public void restoreState(Player player, PlayerState state, @Nullable InventoryView enderChest, Set<PlayerState.Section> sections) {
+        if (sections.contains(PlayerState.Section.ENDER_CHEST) && enderChest != null) {
+            var contents = player.getEnderChest();
+
+            for (int slot = 0; slot < contents.getSize(); slot++) {
+                contents.setItem(slot, slot < enderChest.size() ? enderChest.item(slot) : null);
             }
-            builder.append(' ');
         }
-        if (minutes > 0) {
-            builder.append(minutes).append(" minute");
+        var experience = state.experience();
+
+        if (sections.contains(PlayerState.Section.EXPERIENCE) && experience != null) {
+            player.setTotalExperience(experience.total());
+            player.setLevel(experience.level());
+            player.setExp(experience.progress());
+        }
+        var location = state.location();
+
+        if (sections.contains(PlayerState.Section.LOCATION) && location != null) {
+            var world = getServer().getWorld(location.world());
 
-            if (minutes > 1) {
-                builder.append('s');
+            if (world != null) {
+                player.teleport(new Location(world, location.x(), location.y(), location.z(), location.yaw(), location.pitch()));
             }
-            builder.append(' ');
         }
-        seconds %= 60;
-        builder.append(seconds).append(" second");
+    }
+
+    @EventHandler
+    public void onPlayerJoin(PlayerJoinEvent event) {
+        var player = event.getPlayer();
+        repository.rememberPlayer(player.getUniqueId(), player.getName());
+    }
+
+    private void dumpMetrics() {
+        var file = getDataFolder().toPath().resolve(METRICS_FILE);
+
+        try {
+            Files.writeString(file, metrics.toJson(Instant.now()) + "\n", StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        } catch (IOException e) {
+            getSLF4JLogger().warn("Failed to write metrics to {}", file, e);
+        }
+    }
 
-        if (seconds > 1) {
-            builder.append('s');
+    private static void awaitShutdown(ThreadPoolExecutor workers) {
+        workers.shutdown();
+        try {
+            workers.awaitTermination(WORKER_SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
-        return builder.toString();
+    }
+
+    private static ThreadPoolExecutor createWorkers(String namePrefix, int threads) {
+        var counter = new AtomicInteger();
+        return new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(), task -> {
+            var thread = new Thread(task, namePrefix + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
     }
 }
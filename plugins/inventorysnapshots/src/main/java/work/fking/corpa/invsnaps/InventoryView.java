@@ -0,0 +1,262 @@
+package work.fking.corpa.invsnaps;
+
+import org.bukkit.inventory.ItemStack;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Read access to the items of a serialized inventory, every slot is only deserialized the first time it is read.
+ * <p>
+ * Deserializing items is the most expensive part of reading a snapshot, by far for containers holding other items,
+ * and commands often only need a few slots. A view can be shared between threads, it hands out copies of its items.
+ */
+public final class InventoryView {
+
+    private static final int NBT_END = 0;
+    private static final int NBT_LIST = 9;
+    private static final int NBT_COMPOUND = 10;
+    private static final int GZIP_MIN_SIZE = 18;
+
+    private final ItemStackSerializer.SlotTable table;
+    private final ItemStack[] decoded;
+    private final @Nullable Metrics.Histogram decodeLatency;
+
+    private InventoryView(ItemStackSerializer.SlotTable table, @Nullable Metrics.Histogram decodeLatency) {
+        this.table = table;
+        this.decoded = new ItemStack[table.size()];
+        this.decodeLatency = decodeLatency;
+    }
+
+    public static InventoryView of(byte[] serialized) {
+        return of(serialized, null);
+    }
+
+    /**
+     * @param decodeLatency where the time spent deserializing each item is recorded.
+     */
+    public static InventoryView of(byte[] serialized, @Nullable Metrics.Histogram decodeLatency) {
+        try {
+            return new InventoryView(ItemStackSerializer.slotTable(serialized), decodeLatency);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to read inventory", e);
+        }
+    }
+
+    public int size() {
+        return table.size();
+    }
+
+    /**
+     * Where every item is in its serialized form, for them to be compared without deserializing them.
+     */
+    public ItemStackSerializer.SlotTable table() {
+        return table;
+    }
+
+    public boolean isEmpty(int slot) {
+        return table.offsets()[slot] < 0;
+    }
+
+    /**
+     * The size of the NBT of the slot's item, roughly how expensive it is to deserialize.
+     */
+    public int serializedSize(int slot) {
+        if (isEmpty(slot)) {
+            return 0;
+        }
+        var length = table.lengths()[slot];
+
+        if ((table.flags()[slot] & SerializedInventory.FLAG_GZIP_STRIPPED) != 0 || length < GZIP_MIN_SIZE) {
+            return length;
+        }
+        // the gzip trailer ends with the uncompressed size
+        var end = table.offsets()[slot] + length;
+        var data = table.data();
+        return (data[end - 4] & 0xFF) | (data[end - 3] & 0xFF) << 8 | (data[end - 2] & 0xFF) << 16 | (data[end - 1] & 0xFF) << 24;
+    }
+
+    public synchronized boolean isDecoded(int slot) {
+        return isEmpty(slot) || decoded[slot] != null;
+    }
+
+    /**
+     * Deserializes the slot's item unless it has been before.
+     *
+     * @return a copy of the item, or null if the slot is empty.
+     */
+    public synchronized @Nullable ItemStack item(int slot) {
+        decode(slot);
+        return isEmpty(slot) ? null : decoded[slot].clone();
+    }
+
+    /**
+     * Deserializes the slot's item unless it has been before, for it to be read later on a thread that shouldn't
+     * spend time deserializing.
+     */
+    public synchronized void decode(int slot) {
+        if (isEmpty(slot) || decoded[slot] != null) {
+            return;
+        }
+        var start = System.nanoTime();
+        decoded[slot] = ItemStackSerializer.deserializeItem(table, slot);
+
+        if (decodeLatency != null) {
+            decodeLatency.recordSince(start);
+        }
+    }
+
+    /**
+     * Deserializes every item, as laid out by {@link org.bukkit.inventory.Inventory#getContents()}.
+     */
+    public ItemStack[] contents() {
+        var contents = new ItemStack[size()];
+
+        for (int slot = 0; slot < contents.length; slot++) {
+            contents[slot] = item(slot);
+        }
+        return contents;
+    }
+
+    /**
+     * Reads the id and amount of the slot's item straight from its NBT, without deserializing it, along with whether it
+     * is enchanted or has a custom name.
+     *
+     * @return null if the slot is empty or its NBT isn't laid out as expected.
+     */
+    public @Nullable Peek peek(int slot) {
+        if (isEmpty(slot)) {
+            return null;
+        }
+        try {
+            ByteBuffer nbt;
+
+            if ((table.flags()[slot] & SerializedInventory.FLAG_GZIP_STRIPPED) != 0) {
+                nbt = ByteBuffer.wrap(table.data(), table.offsets()[slot], table.lengths()[slot]);
+            } else {
+                var gzipped = new ByteArrayInputStream(table.data(), table.offsets()[slot], table.lengths()[slot]);
+
+                try (var stream = new GZIPInputStream(gzipped)) {
+                    nbt = ByteBuffer.wrap(stream.readAllBytes());
+                }
+            }
+            return peek(nbt);
+        } catch (IOException | BufferUnderflowException | IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private static @Nullable Peek peek(ByteBuffer nbt) {
+        if (nbt.get() != NBT_COMPOUND) {
+            return null;
+        }
+        skipString(nbt);
+        String id = null;
+        var count = 0;
+        var enchanted = false;
+        var named = false;
+        int type;
+
+        while ((type = nbt.get()) != NBT_END) {
+            var name = readString(nbt);
+
+            if (type == 8 && "id".equals(name)) {
+                id = readString(nbt);
+            } else if (type == 1 && "Count".equals(name)) {
+                count = nbt.get();
+            } else if (type == NBT_COMPOUND && "tag".equals(name)) {
+                // the item meta, only the enchantments and the display name are looked at
+                while ((type = nbt.get()) != NBT_END) {
+                    name = readString(nbt);
+
+                    if (type == NBT_LIST && "Enchantments".equals(name)) {
+                        var elementType = nbt.get();
+                        var length = nbt.getInt();
+                        enchanted = length > 0;
+
+                        for (int i = 0; i < length; i++) {
+                            skipPayload(nbt, elementType);
+                        }
+                    } else if (type == NBT_COMPOUND && "display".equals(name)) {
+                        named = hasEntry(nbt, 8, "Name");
+                    } else {
+                        skipPayload(nbt, type);
+                    }
+                }
+            } else {
+                skipPayload(nbt, type);
+            }
+        }
+        return id == null ? null : new Peek(id, count, enchanted, named);
+    }
+
+    // reads through the whole compound
+    private static boolean hasEntry(ByteBuffer nbt, int entryType, String entryName) {
+        var found = false;
+        int type;
+
+        while ((type = nbt.get()) != NBT_END) {
+            var name = readString(nbt);
+            found |= type == entryType && entryName.equals(name);
+            skipPayload(nbt, type);
+        }
+        return found;
+    }
+
+    private static String readString(ByteBuffer nbt) {
+        var bytes = new byte[nbt.getShort() & 0xFFFF];
+        nbt.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void skipString(ByteBuffer nbt) {
+        skip(nbt, nbt.getShort() & 0xFFFF);
+    }
+
+    private static void skip(ByteBuffer nbt, int bytes) {
+        nbt.position(nbt.position() + bytes);
+    }
+
+    private static void skipPayload(ByteBuffer nbt, int type) {
+        switch (type) {
+            case 1 -> skip(nbt, 1);
+            case 2 -> skip(nbt, 2);
+            case 3, 5 -> skip(nbt, 4);
+            case 4, 6 -> skip(nbt, 8);
+            case 7 -> skip(nbt, nbt.getInt());
+            case 8 -> skipString(nbt);
+            case 9 -> {
+                var elementType = nbt.get();
+                var length = nbt.getInt();
+
+                for (int i = 0; i < length; i++) {
+                    skipPayload(nbt, elementType);
+                }
+            }
+            case 10 -> {
+                int entryType;
+
+                while ((entryType = nbt.get()) != NBT_END) {
+                    skipString(nbt);
+                    skipPayload(nbt, entryType);
+                }
+            }
+            case 11 -> skip(nbt, nbt.getInt() * 4);
+            case 12 -> skip(nbt, nbt.getInt() * 8);
+            default -> throw new IllegalArgumentException("Unknown NBT tag type " + type);
+        }
+    }
+
+    /**
+     * @param id        the namespaced id of the item, like {@code minecraft:shulker_box}.
+     * @param enchanted whether the item has enchantments, not counting those stored in enchanted books.
+     * @param named     whether the item has a custom name.
+     */
+    public record Peek(String id, int count, boolean enchanted, boolean named) {
+    }
+}
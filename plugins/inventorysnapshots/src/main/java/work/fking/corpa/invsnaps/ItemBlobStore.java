@@ -0,0 +1,303 @@
+package work.fking.corpa.invsnaps;
+
+import org.jdbi.v3.core.Handle;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Content-addressed storage of serialized items: every distinct item is stored once in the {@code item_blob} table,
+ * keyed by its {@link ItemHash}, and inventories only hold references to them.
+ * <p>
+ * Recently used items are kept in an LRU cache bounded by size, which spares both the lookups when resolving
+ * inventories and the inserts when storing items that are already known to exist. Items inserted by the writer only
+ * make it into the cache once their transaction commits, see {@link #transactionCommitted()}.
+ * <p>
+ * Items no snapshot references anymore are collected by mark and sweep: the items referenced by the stored snapshots
+ * are marked from a read connection, while the writer keeps track of every item it stores in the meantime. Those are
+ * spared by the sweep, as they may have been referenced again after being marked as unused.
+ */
+public final class ItemBlobStore {
+
+    public static final String CREATE_TABLE = """
+            CREATE TABLE IF NOT EXISTS item_blob (
+                hash BLOB PRIMARY KEY,
+                data BLOB NOT NULL
+            );
+            """;
+
+    private static final String INSERT = """
+            INSERT OR IGNORE INTO
+                item_blob(hash, data)
+            VALUES
+                (:hash, :data)
+            """;
+
+    private static final String FIND_BY_HASHES = """
+            SELECT
+                hash,
+                data
+            FROM
+                item_blob
+            WHERE
+                hash IN (<hashes>)
+            """;
+
+    private static final String LIST_HASHES = """
+            SELECT
+                hash
+            FROM
+                item_blob
+            """;
+
+    private static final String SUM_SIZE_BY_HASHES = """
+            SELECT
+                COALESCE(SUM(length(data)), 0)
+            FROM
+                item_blob
+            WHERE
+                hash IN (<hashes>)
+            """;
+
+    private static final String DELETE_BY_HASHES = """
+            DELETE FROM
+                item_blob
+            WHERE
+                hash IN (<hashes>)
+            """;
+
+    private final ItemCache cache;
+
+    // items inserted by the writer's current transaction, only ever accessed by the writer thread
+    private final Map<ItemHash, SerializedInventory.Item> pending = new HashMap<>();
+    // items stored since a collection started and items swept by the current transaction, only ever accessed by the
+    // writer thread
+    private Set<ItemHash> storedSinceMark;
+    private final List<ItemHash> swept = new ArrayList<>();
+
+    public ItemBlobStore(long cacheBytes, StatementMetrics statementMetrics) {
+        this.cache = new ItemCache(cacheBytes);
+        statementMetrics.register(INSERT, "insert_item_blob");
+        statementMetrics.register(FIND_BY_HASHES, "find_item_blobs");
+        statementMetrics.register(LIST_HASHES, "list_item_blob_hashes");
+        statementMetrics.register(DELETE_BY_HASHES, "delete_item_blobs");
+    }
+
+    /**
+     * Stores the inventory's items that aren't stored yet, must be called from the writer thread.
+     *
+     * @return the inventory in the references format.
+     */
+    public byte[] store(Handle handle, SerializedInventory inventory) throws IOException {
+        var stripped = ItemStackSerializer.stripGzip(inventory);
+        var hashes = new ItemHash[stripped.items().size()];
+        var batch = handle.prepareBatch(INSERT);
+
+        for (int i = 0; i < hashes.length; i++) {
+            var item = stripped.items().get(i);
+            var hash = ItemHash.of(item);
+            hashes[i] = hash;
+
+            if (storedSinceMark != null) {
+                storedSinceMark.add(hash);
+            }
+
+            if (cache.get(hash) == null && pending.putIfAbsent(hash, item) == null) {
+                batch.bind("hash", hash.toBytes())
+                     .bind("data", ItemStackSerializer.compressItem(item))
+                     .add();
+            }
+        }
+        if (batch.size() > 0) {
+            batch.execute();
+        }
+        return ItemStackSerializer.writeReferences(stripped, hashes);
+    }
+
+    /**
+     * To be called by the writer once the transaction it stored items in has been committed.
+     */
+    public void transactionCommitted() {
+        pending.forEach((hash, item) -> cache.put(hash, item.flags(), item.data()));
+        pending.clear();
+        // readers may have cached swept items while the sweep was running
+        swept.forEach(cache::remove);
+        swept.clear();
+    }
+
+    /**
+     * To be called by the writer once the transaction it stored items in has been rolled back.
+     */
+    public void transactionRolledBack() {
+        pending.clear();
+        swept.clear();
+    }
+
+    /**
+     * Looks up the items referenced by the inventory.
+     */
+    public SerializedInventory resolve(Handle handle, byte[] serialized) throws IOException {
+        var references = ItemStackSerializer.readReferences(serialized);
+        var hashes = references.hashes();
+        var generation = cache.generation();
+        var resolved = new HashMap<ItemHash, CachedItem>();
+        var missing = new ArrayList<byte[]>();
+
+        for (var hash : hashes) {
+            var cached = cache.get(hash);
+
+            if (cached != null) {
+                resolved.put(hash, cached);
+            } else if (!resolved.containsKey(hash)) {
+                resolved.put(hash, null);
+                missing.add(hash.toBytes());
+            }
+        }
+        if (!missing.isEmpty()) {
+            var rows = handle.createQuery(FIND_BY_HASHES)
+                             .bindList("hashes", missing)
+                             .map((rs, ctx) -> Map.entry(ItemHash.fromBytes(rs.getBytes("hash")), rs.getBytes("data")))
+                             .list();
+
+            for (var row : rows) {
+                var item = ItemStackSerializer.decompressItem(0, row.getValue());
+                resolved.put(row.getKey(), cache.putIfUnchanged(row.getKey(), item.flags(), item.data(), generation));
+            }
+        }
+        var items = new ArrayList<SerializedInventory.Item>(hashes.length);
+
+        for (int i = 0; i < hashes.length; i++) {
+            var item = resolved.get(hashes[i]);
+
+            if (item == null) {
+                throw new IOException("Missing item blob for slot " + references.slots()[i]);
+            }
+            items.add(new SerializedInventory.Item(references.slots()[i], item.flags(), item.data()));
+        }
+        return new SerializedInventory(references.size(), items);
+    }
+
+    /**
+     * Starts keeping track of the items being stored, must be called from the writer thread before marking.
+     */
+    public void startCollection() {
+        storedSinceMark = new HashSet<>();
+    }
+
+    /**
+     * Must be called from the writer thread once the collection is over, whether it succeeded or not.
+     */
+    public void endCollection() {
+        storedSinceMark = null;
+    }
+
+    /**
+     * Lists the stored items which are not part of the given marked items.
+     */
+    public List<ItemHash> findUnmarked(Handle handle, Set<ItemHash> marked) {
+        var unmarked = new ArrayList<ItemHash>();
+
+        handle.createQuery(LIST_HASHES)
+              .map((rs, ctx) -> ItemHash.fromBytes(rs.getBytes("hash")))
+              .useStream(hashes -> hashes.filter(hash -> !marked.contains(hash)).forEach(unmarked::add));
+        return unmarked;
+    }
+
+    /**
+     * Deletes the unmarked items which weren't stored since the collection started, must be called from the writer
+     * thread.
+     *
+     * @return the amount of items deleted and their total size.
+     */
+    public Sweep sweep(Handle handle, List<ItemHash> unmarked) {
+        var hashes = new ArrayList<byte[]>(unmarked.size());
+
+        for (var hash : unmarked) {
+            if (storedSinceMark == null || !storedSinceMark.contains(hash)) {
+                hashes.add(hash.toBytes());
+                swept.add(hash);
+                cache.remove(hash);
+            }
+        }
+        if (hashes.isEmpty()) {
+            return new Sweep(0, 0);
+        }
+        var bytes = handle.createQuery(SUM_SIZE_BY_HASHES)
+                          .bindList("hashes", hashes)
+                          .mapTo(Long.class)
+                          .one();
+        var deleted = handle.createUpdate(DELETE_BY_HASHES)
+                            .bindList("hashes", hashes)
+                            .execute();
+        return new Sweep(deleted, bytes);
+    }
+
+    public record Sweep(int items, long bytes) {
+    }
+
+    private record CachedItem(int flags, byte[] data) {
+    }
+
+    private static final class ItemCache {
+
+        private final long maxBytes;
+        private final LinkedHashMap<ItemHash, CachedItem> items = new LinkedHashMap<>(256, 0.75f, true);
+        private long bytes;
+        // bumped whenever items are removed, items read before that may no longer exist
+        private long generation;
+
+        private ItemCache(long maxBytes) {
+            this.maxBytes = maxBytes;
+        }
+
+        synchronized CachedItem get(ItemHash hash) {
+            return items.get(hash);
+        }
+
+        synchronized long generation() {
+            return generation;
+        }
+
+        synchronized void remove(ItemHash hash) {
+            generation++;
+            var removed = items.remove(hash);
+
+            if (removed != null) {
+                bytes -= removed.data().length;
+            }
+        }
+
+        /**
+         * Caches an item read at the given generation, unless items have been removed since.
+         */
+        synchronized CachedItem putIfUnchanged(ItemHash hash, int flags, byte[] data, long generation) {
+            if (generation != this.generation) {
+                return new CachedItem(flags, data);
+            }
+            return put(hash, flags, data);
+        }
+
+        synchronized CachedItem put(ItemHash hash, int flags, byte[] data) {
+            var item = new CachedItem(flags, data);
+            var previous = items.put(hash, item);
+
+            if (previous != null) {
+                bytes -= previous.data().length;
+            }
+            bytes += data.length;
+            var iterator = items.values().iterator();
+
+            while (bytes > maxBytes && iterator.hasNext()) {
+                bytes -= iterator.next().data().length;
+                iterator.remove();
+            }
+            return item;
+        }
+    }
+}
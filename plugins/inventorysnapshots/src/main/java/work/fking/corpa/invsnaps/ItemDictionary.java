@@ -0,0 +1,76 @@
+package work.fking.corpa.invsnaps;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.Adler32;
+
+/**
+ * Preset deflate dictionary of common item NBT, built from the {@code item-dictionary.txt} resource.
+ * <p>
+ * Compressed inventories can only be inflated with the exact dictionary they were deflated with. The zlib stream
+ * records the Adler-32 of the dictionary, which is used as the dictionary id to detect mismatches.
+ */
+public final class ItemDictionary {
+
+    private static final String RESOURCE = "/item-dictionary.txt";
+
+    private static final byte[] BYTES = load();
+    private static final int ID = adler32(BYTES);
+
+    private ItemDictionary() {
+    }
+
+    public static byte[] bytes() {
+        return BYTES;
+    }
+
+    public static int id() {
+        return ID;
+    }
+
+    private static byte[] load() {
+        var stream = ItemDictionary.class.getResourceAsStream(RESOURCE);
+
+        if (stream == null) {
+            throw new IllegalStateException("Missing item dictionary resource " + RESOURCE);
+        }
+        var output = new ByteArrayOutputStream();
+        var data = new DataOutputStream(output);
+
+        try (var reader = new BufferedReader(new InputStreamReader(stream, StandardCharsets.UTF_8))) {
+            String line;
+
+            while ((line = reader.readLine()) != null) {
+                if (line.isBlank() || line.startsWith("#")) {
+                    continue;
+                }
+                var parts = line.split(" ", 3);
+
+                switch (parts[0]) {
+                    // a named tag header: type, name length and name
+                    case "tag" -> {
+                        data.writeByte(Integer.parseInt(parts[1]));
+                        data.writeUTF(parts[2]);
+                    }
+                    // a string payload: length and value
+                    case "string" -> data.writeUTF(line.substring("string ".length()));
+                    default -> throw new IllegalStateException("Invalid item dictionary line: " + line);
+                }
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to load the item dictionary", e);
+        }
+        return output.toByteArray();
+    }
+
+    private static int adler32(byte[] bytes) {
+        var adler = new Adler32();
+        adler.update(bytes);
+        // same representation as Inflater#getAdler
+        return (int) adler.getValue();
+    }
+}
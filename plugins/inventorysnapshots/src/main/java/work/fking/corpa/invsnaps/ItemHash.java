@@ -0,0 +1,33 @@
+package work.fking.corpa.invsnaps;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Content hash of a serialized item: the first 128 bits of the SHA-256 of its flags and data.
+ */
+public record ItemHash(long high, long low) {
+
+    public static final int BYTES = 16;
+
+    public static ItemHash of(SerializedInventory.Item item) {
+        try {
+            var digest = MessageDigest.getInstance("SHA-256");
+            digest.update((byte) item.flags());
+            var hash = ByteBuffer.wrap(digest.digest(item.data()));
+            return new ItemHash(hash.getLong(), hash.getLong());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    public static ItemHash fromBytes(byte[] bytes) {
+        var buffer = ByteBuffer.wrap(bytes);
+        return new ItemHash(buffer.getLong(), buffer.getLong());
+    }
+
+    public byte[] toBytes() {
+        return ByteBuffer.allocate(BYTES).putLong(high).putLong(low).array();
+    }
+}
@@ -1,77 +1,706 @@
 package work.fking.corpa.invsnaps;
 
 import org.bukkit.inventory.ItemStack;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
 
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
 
+/**
+ * Serializes inventories into a versioned binary format.
+ * <p>
+ * Version 1 stores the output of {@link ItemStack#serializeAsBytes()} for every slot as is, it is cheap to produce and
+ * is what snapshots are captured in, items too large for its 2 byte length have a length of 0 followed by their 4 byte
+ * length instead, no item serializes to nothing. Version 2 was the storage format: the gzip wrapping of every item is removed and
+ * the raw NBT of the whole inventory is deflated at once using a preset dictionary of common item NBT, which compresses
+ * far better than the individually gzipped items. Version 3 only holds the content hash of every item, the items
+ * themselves are stored separately by {@link ItemBlobStore} and must be resolved before the inventory can be read.
+ * Version 4 replaces version 2 as the storage format: the body starts with a table of the offset of every item, so that
+ * once inflated any slot can be read on its own, see {@link InventoryView}. The body is only deflated when stored.
+ * Version 5 is laid out like version 4, but only holds the slots which differ from a base snapshot whose id is in its
+ * header, slots which were emptied are flagged {@link SerializedInventory#FLAG_CLEARED}. Stores resolve it against the
+ * base, see {@link #applyDelta(SerializedInventory, SerializedInventory)}.
+ * <p>
+ * Inventories are captured whenever players die, possibly many at once, so the serializer avoids garbage: outputs are
+ * sized exactly before being written, and the intermediate buffers, deflaters and inflaters are reused per thread.
+ */
 public final class ItemStackSerializer {
 
-    private static final Logger LOGGER = LoggerFactory.getLogger(ItemStackSerializer.class);
-    private static final int VERSION = 1;
+    public static final int VERSION_PLAIN = 1;
+    public static final int VERSION_COMPRESSED = 2;
+    public static final int VERSION_REFERENCES = 3;
+    public static final int VERSION_SLOTTED = 4;
+    public static final int VERSION_DELTA = 5;
+
+    private static final int VERSION = VERSION_PLAIN;
+
+    private static final int GZIP_MAGIC = 0x8B1F;
+    // the largest item whose length fits in the version 1 length field, see readPlainLength
+    private static final int MAX_ITEM_SIZE = 0xFFFF;
+    private static final int MAX_STORED_BLOCK_SIZE = 0xFFFF;
+    private static final int MAX_RETAINED_BUFFER_SIZE = 1024 * 1024;
+    private static final int SLOTTED_HEADER_SIZE = 4;
+    private static final int DELTA_HEADER_SIZE = 8;
+    private static final int SLOT_ENTRY_SIZE = 10;
+
+    // only JDK types are kept per thread, so that threads outliving a plugin reload don't pin its class loader
+    private static final ThreadLocal<byte[][]> ITEM_BYTES = ThreadLocal.withInitial(() -> new byte[64][]);
+    private static final ThreadLocal<byte[]> BODY_BUFFER = ThreadLocal.withInitial(() -> new byte[16 * 1024]);
+    private static final ThreadLocal<byte[]> OUTPUT_BUFFER = ThreadLocal.withInitial(() -> new byte[16 * 1024]);
+    private static final ThreadLocal<Deflater> DEFLATER = ThreadLocal.withInitial(Deflater::new);
+    private static final ThreadLocal<Inflater> INFLATER = ThreadLocal.withInitial(Inflater::new);
 
     private ItemStackSerializer() {
     }
 
-    public static void serialize(OutputStream outputStream, ItemStack[] contents) {
-        DataOutputStream stream = new DataOutputStream(outputStream);
-        var validStacks = 0;
+    /**
+     * Serializes the inventory in the version 1 format.
+     */
+    public static byte[] serialize(ItemStack[] contents) {
+        var items = ITEM_BYTES.get();
 
-        for (ItemStack content : contents) {
-            if (content != null) {
-                validStacks++;
-            }
+        if (items.length < contents.length) {
+            items = new byte[contents.length][];
+            ITEM_BYTES.set(items);
         }
         try {
-            stream.writeByte(VERSION);
-            stream.writeByte(contents.length);
-            stream.writeByte(validStacks);
+            var size = 3;
+            var validStacks = 0;
 
             for (int slot = 0; slot < contents.length; slot++) {
-                ItemStack item = contents[slot];
+                var item = contents[slot];
 
                 if (item == null) {
                     continue;
                 }
                 var bytes = item.serializeAsBytes();
-                stream.writeByte(slot);
-                stream.writeShort(bytes.length);
-                stream.write(bytes);
+                items[slot] = bytes;
+                size += 3 + bytes.length + (bytes.length > MAX_ITEM_SIZE ? 4 : 0);
                 validStacks++;
             }
-            stream.writeShort(validStacks);
+            var serialized = ByteBuffer.allocate(size);
+            serialized.put((byte) VERSION)
+                      .put((byte) contents.length)
+                      .put((byte) validStacks);
+
+            for (int slot = 0; slot < contents.length; slot++) {
+                var bytes = items[slot];
+
+                if (bytes == null) {
+                    continue;
+                }
+                serialized.put((byte) slot);
+
+                if (bytes.length > MAX_ITEM_SIZE) {
+                    serialized.putShort((short) 0)
+                              .putInt(bytes.length);
+                } else {
+                    serialized.putShort((short) bytes.length);
+                }
+                serialized.put(bytes);
+            }
+            return serialized.array();
+        } finally {
+            Arrays.fill(items, 0, contents.length, null);
+        }
+    }
+
+    public static ItemStack[] deserialize(byte[] serialized) {
+        try {
+            return switch (version(serialized)) {
+                case VERSION_PLAIN -> deserializePlain(serialized);
+                case VERSION_COMPRESSED -> deserializeCompressed(serialized);
+                case VERSION_SLOTTED -> InventoryView.of(serialized).contents();
+                default -> toItemStacks(read(serialized));
+            };
         } catch (IOException e) {
-            LOGGER.warn("Failed to serialize", e);
+            throw new RuntimeException("Failed to deserialize inventory", e);
         }
     }
 
-    public static ItemStack[] deserialize(InputStream inputStream) {
-        var stream = new DataInputStream(inputStream);
-        int version = 0;
+    private static ItemStack[] deserializePlain(byte[] serialized) throws IOException {
         try {
-            version = stream.readUnsignedByte();
+            var buffer = ByteBuffer.wrap(serialized, 1, serialized.length - 1);
+            var stacks = new ItemStack[buffer.get() & 0xFF];
+            var validStacks = buffer.get() & 0xFF;
 
-            if (version != VERSION) {
-                throw new IOException("Unsupported serialized inventory version " + version);
+            for (int i = 0; i < validStacks; i++) {
+                var slot = buffer.get() & 0xFF;
+                var bytes = new byte[readPlainLength(buffer)];
+                buffer.get(bytes);
+                stacks[slot] = ItemStack.deserializeBytes(bytes);
             }
-            var invSize = stream.readUnsignedByte();
-            var validStacks = stream.readUnsignedByte();
-            var stacks = new ItemStack[invSize];
+            return stacks;
+        } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+            throw new IOException("Malformed inventory", e);
+        }
+    }
+
+    // the body is only inflated into this thread's buffer, items are copied out of it exactly once
+    private static ItemStack[] deserializeCompressed(byte[] serialized) throws IOException {
+        try {
+            var stacks = new ItemStack[serialized[1] & 0xFF];
+            var validStacks = serialized[2] & 0xFF;
+            var body = inflate(serialized, 3);
 
             for (int i = 0; i < validStacks; i++) {
-                var slot = stream.readUnsignedByte();
-                var bytes = stream.readNBytes(stream.readUnsignedShort());
-                var itemStack = ItemStack.deserializeBytes(bytes);
-                stacks[slot] = itemStack;
+                var slot = body.get() & 0xFF;
+                var flags = body.get() & 0xFF;
+                var length = readVarInt(body);
+                byte[] bytes;
+
+                if ((flags & SerializedInventory.FLAG_GZIP_STRIPPED) != 0) {
+                    bytes = gzip(body.array(), body.position(), length);
+                } else {
+                    bytes = Arrays.copyOfRange(body.array(), body.position(), body.position() + length);
+                }
+                body.position(body.position() + length);
+                stacks[slot] = ItemStack.deserializeBytes(bytes);
             }
             return stacks;
-        } catch (IOException e) {
-            throw new RuntimeException("Failed to deserialize inventory", e);
+        } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+            throw new IOException("Malformed inventory", e);
+        }
+    }
+
+    /**
+     * Deserializes a single item of a {@link SlotTable}.
+     */
+    public static ItemStack deserializeItem(SlotTable table, int slot) {
+        var offset = table.offsets()[slot];
+        var length = table.lengths()[slot];
+        var data = table.data();
+
+        if ((table.flags()[slot] & SerializedInventory.FLAG_GZIP_STRIPPED) != 0) {
+            return ItemStack.deserializeBytes(gzip(data, offset, length));
+        }
+        return ItemStack.deserializeBytes(Arrays.copyOfRange(data, offset, offset + length));
+    }
+
+    public static ItemStack[] toItemStacks(SerializedInventory inventory) {
+        var stacks = new ItemStack[inventory.size()];
+
+        for (var item : inventory.items()) {
+            var data = item.data();
+            stacks[item.slot()] = ItemStack.deserializeBytes(item.gzipStripped() ? gzip(data, 0, data.length) : data);
+        }
+        return stacks;
+    }
+
+    /**
+     * Reads the version of a serialized inventory.
+     */
+    public static int version(byte[] serialized) {
+        return serialized.length == 0 ? 0 : serialized[0] & 0xFF;
+    }
+
+    /**
+     * Whether the body of a version 4 or 5 inventory is deflated.
+     */
+    public static boolean isDeflated(byte[] serialized) {
+        return serialized.length > 3 && serialized[3] != 0;
+    }
+
+    /**
+     * Reads the items of an inventory without deserializing them.
+     *
+     * @throws IOException if the inventory is malformed or holds item references, see {@link #readReferences(byte[])}.
+     */
+    public static SerializedInventory read(byte[] serialized) throws IOException {
+        var version = version(serialized);
+
+        if (version == VERSION_SLOTTED || version == VERSION_DELTA) {
+            var table = slotTable(serialized);
+            var items = new ArrayList<SerializedInventory.Item>();
+
+            for (int slot = 0; slot < table.size(); slot++) {
+                if (table.offsets()[slot] >= 0 || (table.flags()[slot] & SerializedInventory.FLAG_CLEARED) != 0) {
+                    var offset = table.offsets()[slot];
+                    var data = offset < 0 ? new byte[0] : Arrays.copyOfRange(table.data(), offset, offset + table.lengths()[slot]);
+                    items.add(new SerializedInventory.Item(slot, table.flags()[slot], data));
+                }
+            }
+            return new SerializedInventory(table.size(), items);
+        }
+        if (version != VERSION_PLAIN && version != VERSION_COMPRESSED) {
+            throw new IOException("Unsupported serialized inventory version " + version);
+        }
+        try {
+            var invSize = serialized[1] & 0xFF;
+            var validStacks = serialized[2] & 0xFF;
+            var items = new ArrayList<SerializedInventory.Item>(validStacks);
+
+            if (version == VERSION_PLAIN) {
+                var buffer = ByteBuffer.wrap(serialized, 3, serialized.length - 3);
+
+                for (int i = 0; i < validStacks; i++) {
+                    var slot = buffer.get() & 0xFF;
+                    var bytes = new byte[readPlainLength(buffer)];
+                    buffer.get(bytes);
+                    items.add(new SerializedInventory.Item(slot, 0, bytes));
+                }
+                return new SerializedInventory(invSize, items);
+            }
+            var body = inflate(serialized, 3);
+
+            for (int i = 0; i < validStacks; i++) {
+                var slot = body.get() & 0xFF;
+                var flags = body.get() & 0xFF;
+                var bytes = new byte[readVarInt(body)];
+                body.get(bytes);
+                items.add(new SerializedInventory.Item(slot, flags, bytes));
+            }
+            return new SerializedInventory(invSize, items);
+        } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+            throw new IOException("Malformed inventory", e);
+        }
+    }
+
+    /**
+     * Writes the inventory in the version 4 format.
+     *
+     * @param level    the deflate level, the body is left as is with {@link Deflater#NO_COMPRESSION}.
+     * @param sizeHint the expected size of the output, only used to size this thread's buffer the first time.
+     */
+    public static byte[] writeSlotted(SerializedInventory inventory, int level, int sizeHint) throws IOException {
+        var items = stripGzip(inventory).items();
+        var header = new byte[]{VERSION_SLOTTED, (byte) inventory.size(), (byte) items.size(), (byte) (level != Deflater.NO_COMPRESSION ? 1 : 0)};
+        return writeBody(header, items, level, sizeHint);
+    }
+
+    /**
+     * Writes the changes to the base snapshot in the version 5 format. Items are written as they are, gzipped or not.
+     *
+     * @param changes the items which differ from the base, the slots which were emptied flagged
+     *                {@link SerializedInventory#FLAG_CLEARED} with no data.
+     * @param level   the deflate level, the body is left as is with {@link Deflater#NO_COMPRESSION}.
+     */
+    public static byte[] writeDelta(int baseId, SerializedInventory changes, int level, int sizeHint) throws IOException {
+        var header = ByteBuffer.allocate(DELTA_HEADER_SIZE)
+                               .put((byte) VERSION_DELTA)
+                               .put((byte) changes.size())
+                               .put((byte) changes.items().size())
+                               .put((byte) (level != Deflater.NO_COMPRESSION ? 1 : 0))
+                               .putInt(baseId)
+                               .array();
+        return writeBody(header, changes.items(), level, sizeHint);
+    }
+
+    /**
+     * Deflates the body of a version 5 inventory, unless it already is.
+     */
+    public static byte[] compressDelta(byte[] serialized) throws IOException {
+        if (isDeflated(serialized)) {
+            return serialized;
+        }
+        var changes = stripGzip(read(serialized));
+        return writeDelta(deltaBaseId(serialized), changes, Deflater.DEFAULT_COMPRESSION, serialized.length / 4);
+    }
+
+    /**
+     * Resolves a version 5 inventory against the inventory of its base snapshot.
+     *
+     * @param base the base's inventory, in any version but references and deltas.
+     * @return the resulting inventory in the version 4 format, uncompressed.
+     */
+    public static byte[] resolveDelta(byte[] base, byte[] delta) throws IOException {
+        return writeSlotted(applyDelta(read(base), read(delta)), Deflater.NO_COMPRESSION, 0);
+    }
+
+    /**
+     * Reads the id of the snapshot a version 5 inventory is based on.
+     */
+    public static int deltaBaseId(byte[] serialized) {
+        return ByteBuffer.wrap(serialized, SLOTTED_HEADER_SIZE, 4).getInt();
+    }
+
+    /**
+     * Applies the changes read from a version 5 inventory to the base inventory.
+     *
+     * @return the items of the resulting inventory, in slot order.
+     */
+    public static SerializedInventory applyDelta(SerializedInventory base, SerializedInventory changes) {
+        var items = new SerializedInventory.Item[Math.max(base.size(), changes.size())];
+
+        for (var item : base.items()) {
+            items[item.slot()] = item;
+        }
+        for (var change : changes.items()) {
+            items[change.slot()] = (change.flags() & SerializedInventory.FLAG_CLEARED) != 0 ? null : change;
+        }
+        var merged = new ArrayList<SerializedInventory.Item>(items.length);
+
+        for (var item : items) {
+            if (item != null) {
+                merged.add(item);
+            }
+        }
+        return new SerializedInventory(changes.size(), merged);
+    }
+
+    // a table of every item followed by their data, deflated along with the table unless told not to
+    private static byte[] writeBody(byte[] header, List<SerializedInventory.Item> items, int level, int sizeHint) throws IOException {
+        var bodySize = items.size() * SLOT_ENTRY_SIZE;
+
+        for (var item : items) {
+            bodySize += item.data().length;
+        }
+        var body = ByteBuffer.wrap(buffer(BODY_BUFFER, bodySize));
+        var offset = items.size() * SLOT_ENTRY_SIZE;
+
+        for (var item : items) {
+            body.put((byte) item.slot())
+                .put((byte) item.flags())
+                .putInt(offset)
+                .putInt(item.data().length);
+            offset += item.data().length;
+        }
+        for (var item : items) {
+            body.put(item.data());
+        }
+        if (level == Deflater.NO_COMPRESSION) {
+            var output = new byte[header.length + bodySize];
+            System.arraycopy(header, 0, output, 0, header.length);
+            System.arraycopy(body.array(), 0, output, header.length, bodySize);
+            return output;
+        }
+        return deflate(header, body.array(), bodySize, level, sizeHint);
+    }
+
+    /**
+     * Locates every item of an inventory without deserializing any of them, compressed inventories are inflated.
+     *
+     * @throws IOException if the inventory is malformed or holds item references.
+     */
+    public static SlotTable slotTable(byte[] serialized) throws IOException {
+        var version = version(serialized);
+        var size = serialized.length < 2 ? 0 : serialized[1] & 0xFF;
+        var offsets = new int[size];
+        var lengths = new int[size];
+        var flags = new int[size];
+        Arrays.fill(offsets, -1);
+
+        try {
+            switch (version) {
+                case VERSION_PLAIN -> {
+                    var buffer = ByteBuffer.wrap(serialized, 3, serialized.length - 3);
+                    var validStacks = serialized[2] & 0xFF;
+
+                    for (int i = 0; i < validStacks; i++) {
+                        var slot = buffer.get() & 0xFF;
+                        lengths[slot] = readPlainLength(buffer);
+                        offsets[slot] = buffer.position();
+                        buffer.position(buffer.position() + lengths[slot]);
+                    }
+                    return new SlotTable(size, serialized, offsets, lengths, flags);
+                }
+                case VERSION_COMPRESSED -> {
+                    var inflated = inflate(serialized, 3);
+                    var body = ByteBuffer.wrap(Arrays.copyOf(inflated.array(), inflated.limit()));
+                    var validStacks = serialized[2] & 0xFF;
+
+                    for (int i = 0; i < validStacks; i++) {
+                        var slot = body.get() & 0xFF;
+                        flags[slot] = body.get() & 0xFF;
+                        lengths[slot] = readVarInt(body);
+                        offsets[slot] = body.position();
+                        body.position(body.position() + lengths[slot]);
+                    }
+                    return new SlotTable(size, body.array(), offsets, lengths, flags);
+                }
+                case VERSION_SLOTTED, VERSION_DELTA -> {
+                    var count = serialized[2] & 0xFF;
+                    var headerSize = version == VERSION_DELTA ? DELTA_HEADER_SIZE : SLOTTED_HEADER_SIZE;
+                    byte[] data;
+                    int base;
+
+                    if (serialized[3] != 0) {
+                        var inflated = inflate(serialized, headerSize);
+                        data = Arrays.copyOf(inflated.array(), inflated.limit());
+                        base = 0;
+                    } else {
+                        data = serialized;
+                        base = headerSize;
+                    }
+                    var table = ByteBuffer.wrap(data, base, count * SLOT_ENTRY_SIZE);
+
+                    for (int i = 0; i < count; i++) {
+                        var slot = table.get() & 0xFF;
+                        flags[slot] = table.get() & 0xFF;
+                        offsets[slot] = base + table.getInt();
+                        lengths[slot] = table.getInt();
+
+                        if (offsets[slot] < base || lengths[slot] < 0 || offsets[slot] + lengths[slot] > data.length) {
+                            throw new IOException("Malformed slot table");
+                        }
+                        if ((flags[slot] & SerializedInventory.FLAG_CLEARED) != 0) {
+                            offsets[slot] = -1;
+                        }
+                    }
+                    return new SlotTable(size, data, offsets, lengths, flags);
+                }
+                default -> throw new IOException("Unsupported serialized inventory version " + version);
+            }
+        } catch (BufferUnderflowException | IndexOutOfBoundsException | IllegalArgumentException e) {
+            throw new IOException("Malformed inventory", e);
+        }
+    }
+
+    /**
+     * Removes the gzip wrapping of the items which still have it, so that identical items always have the same data.
+     */
+    public static SerializedInventory stripGzip(SerializedInventory inventory) throws IOException {
+        var items = new ArrayList<SerializedInventory.Item>(inventory.items().size());
+
+        for (var item : inventory.items()) {
+            if (item.gzipStripped() || !isGzip(item.data())) {
+                items.add(item);
+            } else {
+                items.add(new SerializedInventory.Item(item.slot(), item.flags() | SerializedInventory.FLAG_GZIP_STRIPPED, gunzip(item.data())));
+            }
+        }
+        return new SerializedInventory(inventory.size(), items);
+    }
+
+    /**
+     * Writes the inventory in the version 3 format, holding only the content hash of each item.
+     *
+     * @param hashes the hash of each of the inventory's items, in the same order.
+     */
+    public static byte[] writeReferences(SerializedInventory inventory, ItemHash[] hashes) {
+        var output = ByteBuffer.allocate(3 + hashes.length * (1 + ItemHash.BYTES));
+        output.put((byte) VERSION_REFERENCES)
+              .put((byte) inventory.size())
+              .put((byte) hashes.length);
+
+        for (int i = 0; i < hashes.length; i++) {
+            output.put((byte) inventory.items().get(i).slot())
+                  .putLong(hashes[i].high())
+                  .putLong(hashes[i].low());
         }
+        return output.array();
+    }
+
+    public static References readReferences(byte[] serialized) throws IOException {
+        var version = version(serialized);
+
+        if (version != VERSION_REFERENCES) {
+            throw new IOException("Inventory version " + version + " does not hold references");
+        }
+        try {
+            var buffer = ByteBuffer.wrap(serialized, 1, serialized.length - 1);
+            var invSize = buffer.get() & 0xFF;
+            var count = buffer.get() & 0xFF;
+            var slots = new int[count];
+            var hashes = new ItemHash[count];
+
+            for (int i = 0; i < count; i++) {
+                slots[i] = buffer.get() & 0xFF;
+                hashes[i] = new ItemHash(buffer.getLong(), buffer.getLong());
+            }
+            return new References(invSize, slots, hashes);
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Malformed inventory references", e);
+        }
+    }
+
+    /**
+     * Compresses a single item on its own, slot excluded, as stored by {@link ItemBlobStore}.
+     */
+    public static byte[] compressItem(SerializedInventory.Item item) throws IOException {
+        var header = new byte[]{(byte) item.flags()};
+        return deflate(header, item.data(), item.data().length, Deflater.DEFAULT_COMPRESSION, item.data().length / 2 + 16);
+    }
+
+    public static SerializedInventory.Item decompressItem(int slot, byte[] compressed) throws IOException {
+        var flags = compressed[0] & 0xFF;
+        var body = inflate(compressed, 1);
+        var data = new byte[body.remaining()];
+        body.get(data);
+        return new SerializedInventory.Item(slot, flags, data);
+    }
+
+    /**
+     * Deflates the input with the item dictionary, through this thread's deflater and output buffer.
+     *
+     * @return the header followed by the deflated input, in an array of the exact size.
+     */
+    private static byte[] deflate(byte[] header, byte[] input, int length, int level, int sizeHint) throws IOException {
+        var deflater = DEFLATER.get();
+        deflater.reset();
+        deflater.setLevel(level);
+        deflater.setDictionary(ItemDictionary.bytes());
+        deflater.setInput(input, 0, length);
+        deflater.finish();
+
+        var output = buffer(OUTPUT_BUFFER, Math.max(header.length + 64, sizeHint));
+        System.arraycopy(header, 0, output, 0, header.length);
+        var size = header.length;
+
+        while (!deflater.finished()) {
+            if (size == output.length) {
+                output = grow(OUTPUT_BUFFER, output);
+            }
+            size += deflater.deflate(output, size, output.length - size);
+        }
+        return Arrays.copyOf(output, size);
+    }
+
+    /**
+     * Inflates the input into this thread's buffer, the returned buffer is only valid until the thread inflates again.
+     */
+    private static ByteBuffer inflate(byte[] compressed, int offset) throws IOException {
+        var inflater = INFLATER.get();
+        inflater.reset();
+        var output = buffer(OUTPUT_BUFFER, compressed.length * 4);
+        var size = 0;
+
+        try {
+            inflater.setInput(compressed, offset, compressed.length - offset);
+
+            while (!inflater.finished()) {
+                if (size == output.length) {
+                    output = grow(OUTPUT_BUFFER, output);
+                }
+                var read = inflater.inflate(output, size, output.length - size);
+
+                if (read == 0) {
+                    if (inflater.needsDictionary()) {
+                        if (inflater.getAdler() != ItemDictionary.id()) {
+                            throw new IOException("Inventory was compressed with an unknown dictionary " + inflater.getAdler());
+                        }
+                        inflater.setDictionary(ItemDictionary.bytes());
+                    } else if (inflater.needsInput() && !inflater.finished()) {
+                        throw new IOException("Truncated compressed inventory");
+                    }
+                }
+                size += read;
+            }
+            return ByteBuffer.wrap(output, 0, size);
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupted compressed inventory", e);
+        }
+    }
+
+    /**
+     * @return this thread's buffer, grown to at least the given capacity.
+     */
+    private static byte[] buffer(ThreadLocal<byte[]> local, int capacity) {
+        var buffer = local.get();
+
+        if (buffer.length >= capacity) {
+            return buffer;
+        }
+        buffer = new byte[Math.max(capacity, buffer.length * 2)];
+
+        // a one-off huge inventory isn't kept around
+        if (buffer.length <= MAX_RETAINED_BUFFER_SIZE) {
+            local.set(buffer);
+        }
+        return buffer;
+    }
+
+    private static byte[] grow(ThreadLocal<byte[]> local, byte[] buffer) {
+        var grown = Arrays.copyOf(buffer, buffer.length * 2);
+
+        if (grown.length <= MAX_RETAINED_BUFFER_SIZE) {
+            local.set(grown);
+        }
+        return grown;
+    }
+
+    private static boolean isGzip(byte[] bytes) {
+        return bytes.length > 2 && ((bytes[0] & 0xFF) | (bytes[1] & 0xFF) << 8) == GZIP_MAGIC;
+    }
+
+    private static byte[] gunzip(byte[] bytes) throws IOException {
+        try (var stream = new GZIPInputStream(new ByteArrayInputStream(bytes))) {
+            return stream.readAllBytes();
+        }
+    }
+
+    /**
+     * Wraps the data in gzip made of stored deflate blocks. The item is inflated again right away, storing it
+     * uncompressed is the cheapest way of producing valid gzip and lets the output be sized exactly.
+     */
+    private static byte[] gzip(byte[] data, int offset, int length) {
+        var blocks = Math.max(1, (length + MAX_STORED_BLOCK_SIZE - 1) / MAX_STORED_BLOCK_SIZE);
+        var gzip = ByteBuffer.allocate(10 + blocks * 5 + length + 8).order(ByteOrder.LITTLE_ENDIAN);
+        // magic, deflate, no flags, no modification time, no extra flags, unknown os
+        gzip.putShort((short) GZIP_MAGIC)
+            .put((byte) 8)
+            .put((byte) 0)
+            .putInt(0)
+            .put((byte) 0)
+            .put((byte) 0xFF);
+
+        for (int block = 0, position = offset, remaining = length; block < blocks; block++) {
+            var blockLength = Math.min(remaining, MAX_STORED_BLOCK_SIZE);
+            gzip.put((byte) (block == blocks - 1 ? 1 : 0))
+                .putShort((short) blockLength)
+                .putShort((short) ~blockLength)
+                .put(data, position, blockLength);
+            position += blockLength;
+            remaining -= blockLength;
+        }
+        var crc = new CRC32();
+        crc.update(data, offset, length);
+        gzip.putInt((int) crc.getValue())
+            .putInt(length);
+        return gzip.array();
+    }
+
+    private static int readPlainLength(ByteBuffer input) throws IOException {
+        var length = input.getShort() & 0xFFFF;
+
+        if (length != 0) {
+            return length;
+        }
+        length = input.getInt();
+
+        if (length <= MAX_ITEM_SIZE) {
+            throw new IOException("Malformed item length " + length);
+        }
+        return length;
+    }
+
+    private static int readVarInt(ByteBuffer input) throws IOException {
+        var value = 0;
+
+        for (int shift = 0; shift < 35; shift += 7) {
+            var read = input.get() & 0xFF;
+            value |= (read & 0x7F) << shift;
+
+            if ((read & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("VarInt is too big");
+    }
+
+    /**
+     * Where every item of an inventory is, in its serialized form. Empty slots have a negative offset, as well as the
+     * slots a version 5 inventory flags {@link SerializedInventory#FLAG_CLEARED}.
+     *
+     * @param data  the serialized inventory, or its inflated body.
+     * @param flags the {@link SerializedInventory.Item#flags()} of every item.
+     */
+    public record SlotTable(int size, byte[] data, int[] offsets, int[] lengths, int[] flags) {
+    }
+
+    /**
+     * The slots and item hashes of a version 3 inventory.
+     */
+    public record References(int size, int[] slots, ItemHash[] hashes) {
     }
 }
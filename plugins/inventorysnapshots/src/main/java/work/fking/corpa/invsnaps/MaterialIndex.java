@@ -0,0 +1,133 @@
+package work.fking.corpa.invsnaps;
+
+import org.bukkit.Material;
+import org.bukkit.inventory.ItemStack;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Side index of the materials held in every snapshot, letting snapshots be searched without decoding their
+ * inventories. Each snapshot has a single entry per material, with the total amount of every stack of it.
+ */
+public final class MaterialIndex {
+
+    /**
+     * At least one stack of the material is enchanted.
+     */
+    public static final int FLAG_ENCHANTED = 1;
+    /**
+     * At least one stack of the material has a custom name.
+     */
+    public static final int FLAG_NAMED = 2;
+
+    private MaterialIndex() {
+    }
+
+    /**
+     * Reads the entries of an inventory from the NBT of its items, only the items whose NBT can't be read that way, or
+     * whose id isn't a known material, are deserialized.
+     */
+    public static List<Entry> entries(InventoryView inventory) {
+        var entries = new LinkedHashMap<String, Entry>();
+
+        for (int slot = 0; slot < inventory.size(); slot++) {
+            if (inventory.isEmpty(slot)) {
+                continue;
+            }
+            var peek = inventory.peek(slot);
+            var material = peek == null ? null : Material.matchMaterial(peek.id());
+            Entry entry;
+
+            if (material != null) {
+                entry = new Entry(material.name(), peek.count(), (peek.enchanted() ? FLAG_ENCHANTED : 0) | (peek.named() ? FLAG_NAMED : 0));
+            } else {
+                entry = entry(inventory.item(slot));
+            }
+            if (entry != null) {
+                entries.merge(entry.material(), entry, (previous, added) -> new Entry(previous.material(), previous.amount() + added.amount(), previous.flags() | added.flags()));
+            }
+        }
+        return new ArrayList<>(entries.values());
+    }
+
+    private static @Nullable Entry entry(@Nullable ItemStack itemStack) {
+        if (itemStack == null || itemStack.getType().isAir()) {
+            return null;
+        }
+        var flags = 0;
+
+        if (itemStack.hasItemMeta()) {
+            var meta = itemStack.getItemMeta();
+
+            if (meta.hasEnchants()) {
+                flags |= FLAG_ENCHANTED;
+            }
+            if (meta.hasDisplayName()) {
+                flags |= FLAG_NAMED;
+            }
+        }
+        return new Entry(itemStack.getType().name(), itemStack.getAmount(), flags);
+    }
+
+    public record Entry(String material, int amount, int flags) {
+    }
+
+    /**
+     * A snapshot holding the searched material.
+     */
+    public record Match(SnapshotSummary snapshot, int amount, int flags) {
+
+        public boolean enchanted() {
+            return (flags & FLAG_ENCHANTED) != 0;
+        }
+
+        public boolean named() {
+            return (flags & FLAG_NAMED) != 0;
+        }
+    }
+
+    /**
+     * A page of search results, newest first.
+     *
+     * @param minId the first snapshot id within the searched window, carried over to the older pages.
+     */
+    public record Page(List<Match> matches, boolean hasOlder, int minId) {
+
+        public @Nullable Cursor olderCursor() {
+            return hasOlder ? new Cursor(matches.get(matches.size() - 1).snapshot().id(), minId) : null;
+        }
+    }
+
+    /**
+     * Position of a page of search results: the matches older than a snapshot, down to the first snapshot id within
+     * the searched window, which is only looked up for the first page.
+     */
+    public record Cursor(int snapshotId, int minId) {
+
+        private static final String PREFIX = "older:";
+
+        /**
+         * @throws IllegalArgumentException if the input isn't a cursor previously created by {@link #toString()}.
+         */
+        public static Cursor parse(String input) {
+            var separator = input.indexOf(':', PREFIX.length());
+
+            try {
+                if (input.startsWith(PREFIX) && separator >= 0) {
+                    return new Cursor(Integer.parseInt(input.substring(PREFIX.length(), separator)), Integer.parseInt(input.substring(separator + 1)));
+                }
+            } catch (NumberFormatException ignored) {
+                // handled below
+            }
+            throw new IllegalArgumentException("Invalid page: " + input);
+        }
+
+        @Override
+        public String toString() {
+            return PREFIX + snapshotId + ":" + minId;
+        }
+    }
+}
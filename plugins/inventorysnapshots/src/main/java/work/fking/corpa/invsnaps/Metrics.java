@@ -0,0 +1,215 @@
+package work.fking.corpa.invsnaps;
+
+import java.time.Instant;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Registry of the plugin's metrics: histograms of latencies and sizes, counters and gauges. Everything is safe to
+ * update and read from any thread, and cumulative since the plugin was enabled.
+ */
+public final class Metrics {
+
+    private final Map<String, Histogram> histograms = new ConcurrentSkipListMap<>();
+    private final Map<String, LongAdder> counters = new ConcurrentSkipListMap<>();
+    private final Map<String, LongSupplier> gauges = new ConcurrentSkipListMap<>();
+
+    /**
+     * A histogram of durations, recorded in microseconds.
+     */
+    public Histogram latency(String name) {
+        return histograms.computeIfAbsent(name, ignored -> new Histogram(Unit.MICROSECONDS));
+    }
+
+    /**
+     * A histogram of sizes, recorded in bytes.
+     */
+    public Histogram size(String name) {
+        return histograms.computeIfAbsent(name, ignored -> new Histogram(Unit.BYTES));
+    }
+
+    public LongAdder counter(String name) {
+        return counters.computeIfAbsent(name, ignored -> new LongAdder());
+    }
+
+    public void gauge(String name, LongSupplier supplier) {
+        gauges.put(name, supplier);
+    }
+
+    public Map<String, Histogram> histograms() {
+        return histograms;
+    }
+
+    public Map<String, LongAdder> counters() {
+        return counters;
+    }
+
+    public Map<String, LongSupplier> gauges() {
+        return gauges;
+    }
+
+    /**
+     * Writes the current value of every metric as a single line of JSON.
+     */
+    public String toJson(Instant time) {
+        var json = new StringBuilder(1024);
+        json.append("{\"time\":\"").append(time).append('"');
+
+        json.append(",\"counters\":{");
+        var first = true;
+
+        for (var entry : counters.entrySet()) {
+            first = appendKey(json, entry.getKey(), first);
+            json.append(entry.getValue().sum());
+        }
+        json.append("},\"gauges\":{");
+        first = true;
+
+        for (var entry : gauges.entrySet()) {
+            first = appendKey(json, entry.getKey(), first);
+            json.append(entry.getValue().getAsLong());
+        }
+        json.append("},\"histograms\":{");
+        first = true;
+
+        for (var entry : histograms.entrySet()) {
+            var summary = entry.getValue().summary();
+            first = appendKey(json, entry.getKey(), first);
+            json.append("{\"unit\":\"").append(entry.getValue().unit().symbol()).append('"')
+                .append(",\"count\":").append(summary.count())
+                .append(",\"mean\":").append(Math.round(summary.mean()))
+                .append(",\"p50\":").append(summary.p50())
+                .append(",\"p95\":").append(summary.p95())
+                .append(",\"p99\":").append(summary.p99())
+                .append(",\"max\":").append(summary.max())
+                .append('}');
+        }
+        return json.append("}}").toString();
+    }
+
+    // metric names are plain identifiers, they never need escaping
+    private static boolean appendKey(StringBuilder json, String key, boolean first) {
+        if (!first) {
+            json.append(',');
+        }
+        json.append('"').append(key).append("\":");
+        return false;
+    }
+
+    public enum Unit {
+        MICROSECONDS("us"),
+        BYTES("B");
+
+        private final String symbol;
+
+        Unit(String symbol) {
+            this.symbol = symbol;
+        }
+
+        public String symbol() {
+            return symbol;
+        }
+    }
+
+    /**
+     * Histogram with log-linear buckets: every power of two is split into 8 buckets, so that the reported percentiles
+     * are within 12.5% of the recorded values while the histogram stays a fixed few KiB.
+     */
+    public static final class Histogram {
+
+        private static final int SUB_BUCKET_BITS = 3;
+        private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+        private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+        private final Unit unit;
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+        private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+        private Histogram(Unit unit) {
+            this.unit = unit;
+        }
+
+        public Unit unit() {
+            return unit;
+        }
+
+        public void record(long value) {
+            value = Math.max(0, value);
+            buckets.incrementAndGet(bucket(value));
+            count.increment();
+            sum.add(value);
+            max.accumulate(value);
+        }
+
+        /**
+         * Records the time elapsed since the given {@link System#nanoTime()}.
+         */
+        public void recordSince(long startNanos) {
+            record((System.nanoTime() - startNanos) / 1000);
+        }
+
+        public Summary summary() {
+            var counts = new long[BUCKETS];
+            var total = 0L;
+
+            for (int i = 0; i < BUCKETS; i++) {
+                counts[i] = buckets.get(i);
+                total += counts[i];
+            }
+            var max = this.max.get();
+            return new Summary(
+                    total,
+                    total == 0 ? 0 : (double) sum.sum() / total,
+                    percentile(counts, total, 0.50, max),
+                    percentile(counts, total, 0.95, max),
+                    percentile(counts, total, 0.99, max),
+                    max
+            );
+        }
+
+        private static long percentile(long[] counts, long total, double percentile, long max) {
+            if (total == 0) {
+                return 0;
+            }
+            var rank = (long) Math.ceil(percentile * total);
+            var seen = 0L;
+
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+
+                if (seen >= rank) {
+                    return Math.min(upperBound(i), max);
+                }
+            }
+            return max;
+        }
+
+        private static int bucket(long value) {
+            if (value < SUB_BUCKETS) {
+                return (int) value;
+            }
+            var exponent = 63 - Long.numberOfLeadingZeros(value);
+            var subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+            return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+        }
+
+        private static long upperBound(int bucket) {
+            if (bucket < SUB_BUCKETS) {
+                return bucket;
+            }
+            var exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+            var subBucket = bucket % SUB_BUCKETS;
+            var width = 1L << (exponent - SUB_BUCKET_BITS);
+            return ((long) (SUB_BUCKETS + subBucket) << (exponent - SUB_BUCKET_BITS)) + width - 1;
+        }
+    }
+
+    public record Summary(long count, double mean, long p50, long p95, long p99, long max) {
+    }
+}
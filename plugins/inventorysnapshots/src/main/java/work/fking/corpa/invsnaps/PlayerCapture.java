@@ -0,0 +1,78 @@
+package work.fking.corpa.invsnaps;
+
+import org.bukkit.entity.Player;
+import org.bukkit.inventory.ItemStack;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.time.LocalDateTime;
+import java.util.UUID;
+import java.util.zip.Deflater;
+
+/**
+ * A copy of everything a snapshot holds of a player, taken on the main thread, which can be serialized from any thread.
+ * <p>
+ * Inventories hand out items backed by the live ones, every item is cloned so that the copy doesn't change afterwards.
+ * Cloning is far cheaper than serializing, which is left for later.
+ */
+public record PlayerCapture(
+        UUID playerUuid,
+        SnapshotReason reason,
+        LocalDateTime createdAt,
+        ItemStack[] contents,
+        ItemStack[] enderChest,
+        PlayerState.Experience experience,
+        @Nullable PlayerState.Position location
+) {
+
+    public static PlayerCapture of(Player player, SnapshotReason reason) {
+        var location = player.getLocation();
+        var world = location.getWorld();
+
+        return new PlayerCapture(
+                player.getUniqueId(),
+                reason,
+                LocalDateTime.now(),
+                copy(player.getInventory().getContents()),
+                copy(player.getEnderChest().getContents()),
+                new PlayerState.Experience(player.getLevel(), player.getExp(), player.getTotalExperience()),
+                world == null ? null : new PlayerState.Position(world.getName(), location.getX(), location.getY(), location.getZ(), location.getYaw(), location.getPitch())
+        );
+    }
+
+    /**
+     * Serializes the copy, with the inventory in the version 1 format and the ender chest compressed.
+     *
+     * @param compressInventory whether the inventory is compressed in the slotted format too, sparing the store's
+     *                          writer from doing it.
+     */
+    public Snapshot serialize(boolean compressInventory) {
+        var inventory = ItemStackSerializer.serialize(contents);
+        byte[] enderChestInventory;
+
+        try {
+            if (compressInventory) {
+                inventory = ItemStackSerializer.writeSlotted(ItemStackSerializer.read(inventory), Deflater.DEFAULT_COMPRESSION, inventory.length / 4);
+            }
+            var serialized = ItemStackSerializer.serialize(enderChest);
+            enderChestInventory = ItemStackSerializer.writeSlotted(ItemStackSerializer.read(serialized), Deflater.DEFAULT_COMPRESSION, serialized.length / 4);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to compress the inventories of " + playerUuid, e);
+        }
+        var state = new PlayerState(enderChestInventory, experience, location);
+        return new Snapshot(-1, playerUuid, reason, inventory, createdAt, state.encode());
+    }
+
+    /**
+     * Clones the items of the contents in place, for them to be read off the main thread. The contents handed out by
+     * inventories are already a copy of their own.
+     */
+    static ItemStack[] copy(ItemStack[] contents) {
+        for (int slot = 0; slot < contents.length; slot++) {
+            if (contents[slot] != null) {
+                contents[slot] = contents[slot].clone();
+            }
+        }
+        return contents;
+    }
+}
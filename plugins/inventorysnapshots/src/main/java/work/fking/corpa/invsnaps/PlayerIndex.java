@@ -0,0 +1,218 @@
+package work.fking.corpa.invsnaps;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * In-memory index of the name of every player with snapshots, so that offline players can be looked up and completed
+ * by name without asking the server for their profile.
+ * <p>
+ * Names are matched regardless of case through a trie, whose nodes keep their children in arrays sorted by character.
+ * Names are completed in alphabetical order. A name only ever belongs to the player last seen with it.
+ */
+public final class PlayerIndex {
+
+    private static final char[] NO_KEYS = new char[0];
+    private static final Node[] NO_CHILDREN = new Node[0];
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Node root = new Node();
+    private final Map<UUID, String> names = new HashMap<>();
+
+    /**
+     * Records the player's current name.
+     *
+     * @return whether the name is new or changed.
+     */
+    public boolean put(UUID playerUuid, String name) {
+        lock.writeLock().lock();
+        try {
+            var previous = names.put(playerUuid, name);
+
+            if (name.equals(previous)) {
+                return false;
+            }
+            if (previous != null) {
+                remove(previous, playerUuid);
+            }
+            var node = root;
+
+            for (int i = 0; i < name.length(); i++) {
+                node = node.childOrCreate(Character.toLowerCase(name.charAt(i)));
+            }
+            if (node.entry != null && !node.entry.playerUuid().equals(playerUuid)) {
+                // someone else had the name before, it no longer is theirs
+                names.remove(node.entry.playerUuid());
+            }
+            node.entry = new Entry(playerUuid, name);
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Finds a player by name, regardless of case.
+     */
+    public @Nullable Entry find(String name) {
+        lock.readLock().lock();
+        try {
+            var node = node(name);
+            return node == null ? null : node.entry;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public @Nullable String name(UUID playerUuid) {
+        lock.readLock().lock();
+        try {
+            return names.get(playerUuid);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Lists the names starting with the prefix, regardless of case, in alphabetical order.
+     */
+    public List<String> complete(String prefix, int limit) {
+        var completions = new ArrayList<String>(Math.min(limit, 16));
+
+        lock.readLock().lock();
+        try {
+            var node = node(prefix);
+
+            if (node != null) {
+                collect(node, completions, limit);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return completions;
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return names.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private @Nullable Node node(String name) {
+        var node = root;
+
+        for (int i = 0; i < name.length() && node != null; i++) {
+            node = node.child(Character.toLowerCase(name.charAt(i)));
+        }
+        return node;
+    }
+
+    private static void collect(Node node, List<String> completions, int limit) {
+        if (node.entry != null) {
+            completions.add(node.entry.name());
+        }
+        for (int i = 0; i < node.keys.length && completions.size() < limit; i++) {
+            collect(node.children[i], completions, limit);
+        }
+    }
+
+    // unlinks the nodes which no longer lead to any name
+    private void remove(String name, UUID playerUuid) {
+        var path = new Node[name.length() + 1];
+        path[0] = root;
+
+        for (int i = 0; i < name.length(); i++) {
+            path[i + 1] = path[i].child(Character.toLowerCase(name.charAt(i)));
+
+            if (path[i + 1] == null) {
+                return;
+            }
+        }
+        var node = path[name.length()];
+
+        if (node.entry == null || !node.entry.playerUuid().equals(playerUuid)) {
+            return;
+        }
+        node.entry = null;
+
+        for (int i = name.length(); i > 0 && path[i].entry == null && path[i].keys.length == 0; i--) {
+            path[i - 1].removeChild(Character.toLowerCase(name.charAt(i - 1)));
+        }
+    }
+
+    public record Entry(UUID playerUuid, String name) {
+    }
+
+    private static final class Node {
+
+        private char[] keys = NO_KEYS;
+        private Node[] children = NO_CHILDREN;
+        private @Nullable Entry entry;
+
+        private @Nullable Node child(char key) {
+            var index = Arrays.binarySearch(keys, key);
+            return index < 0 ? null : children[index];
+        }
+
+        private Node childOrCreate(char key) {
+            var index = Arrays.binarySearch(keys, key);
+
+            if (index >= 0) {
+                return children[index];
+            }
+            index = -index - 1;
+            var child = new Node();
+            keys = insert(keys, index, key);
+            children = insert(children, index, child);
+            return child;
+        }
+
+        private void removeChild(char key) {
+            var index = Arrays.binarySearch(keys, key);
+
+            if (index < 0) {
+                return;
+            }
+            if (keys.length == 1) {
+                keys = NO_KEYS;
+                children = NO_CHILDREN;
+                return;
+            }
+            var newKeys = new char[keys.length - 1];
+            var newChildren = new Node[children.length - 1];
+            System.arraycopy(keys, 0, newKeys, 0, index);
+            System.arraycopy(keys, index + 1, newKeys, index, keys.length - index - 1);
+            System.arraycopy(children, 0, newChildren, 0, index);
+            System.arraycopy(children, index + 1, newChildren, index, children.length - index - 1);
+            keys = newKeys;
+            children = newChildren;
+        }
+
+        private static char[] insert(char[] array, int index, char value) {
+            var inserted = new char[array.length + 1];
+            System.arraycopy(array, 0, inserted, 0, index);
+            inserted[index] = value;
+            System.arraycopy(array, index, inserted, index + 1, array.length - index);
+            return inserted;
+        }
+
+        private static Node[] insert(Node[] array, int index, Node value) {
+            var inserted = new Node[array.length + 1];
+            System.arraycopy(array, 0, inserted, 0, index);
+            inserted[index] = value;
+            System.arraycopy(array, index, inserted, index + 1, array.length - index);
+            return inserted;
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package work.fking.corpa.invsnaps;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.EnumSet;
+import java.util.Set;
+
+/**
+ * What a snapshot holds of a player besides their inventory: their ender chest, experience and location.
+ * <p>
+ * Encoded as {@code [version][section count]} followed by every section framed as {@code [type][length][payload]}, so
+ * that readers skip the sections they don't know and restores only read the sections they apply. The ender chest is
+ * held as a serialized inventory, in any of the {@link ItemStackSerializer} versions which stand on their own.
+ */
+public record PlayerState(
+        @Nullable byte[] enderChest,
+        @Nullable Experience experience,
+        @Nullable Position location
+) {
+
+    private static final int VERSION = 1;
+
+    public static PlayerState decode(byte[] encoded) {
+        var buffer = ByteBuffer.wrap(encoded);
+        var version = buffer.get();
+
+        if (version != VERSION) {
+            throw new IllegalArgumentException("Unknown player state version " + version);
+        }
+        var sections = buffer.get() & 0xFF;
+        byte[] enderChest = null;
+        Experience experience = null;
+        Position location = null;
+
+        for (int i = 0; i < sections; i++) {
+            var type = buffer.get();
+            var length = buffer.getInt();
+            var payload = buffer.slice(buffer.position(), length);
+            buffer.position(buffer.position() + length);
+            var section = Section.of(type);
+
+            // written by a newer version
+            if (section == null) {
+                continue;
+            }
+            switch (section) {
+                case ENDER_CHEST -> {
+                    enderChest = new byte[length];
+                    payload.get(enderChest);
+                }
+                case EXPERIENCE -> experience = new Experience(payload.getInt(), payload.getFloat(), payload.getInt());
+                case LOCATION -> {
+                    var world = new byte[payload.getShort()];
+                    payload.get(world);
+                    location = new Position(new String(world, StandardCharsets.UTF_8), payload.getDouble(), payload.getDouble(), payload.getDouble(), payload.getFloat(), payload.getFloat());
+                }
+            }
+        }
+        return new PlayerState(enderChest, experience, location);
+    }
+
+    public byte[] encode() {
+        var bytes = new ByteArrayOutputStream(64 + (enderChest == null ? 0 : enderChest.length));
+        var out = new DataOutputStream(bytes);
+
+        try {
+            out.writeByte(VERSION);
+            out.writeByte(sections().size());
+
+            if (enderChest != null) {
+                out.writeByte(Section.ENDER_CHEST.type);
+                out.writeInt(enderChest.length);
+                out.write(enderChest);
+            }
+            if (experience != null) {
+                out.writeByte(Section.EXPERIENCE.type);
+                out.writeInt(4 + 4 + 4);
+                out.writeInt(experience.level());
+                out.writeFloat(experience.progress());
+                out.writeInt(experience.total());
+            }
+            if (location != null) {
+                var world = location.world().getBytes(StandardCharsets.UTF_8);
+                out.writeByte(Section.LOCATION.type);
+                out.writeInt(2 + world.length + 3 * 8 + 2 * 4);
+                out.writeShort(world.length);
+                out.write(world);
+                out.writeDouble(location.x());
+                out.writeDouble(location.y());
+                out.writeDouble(location.z());
+                out.writeFloat(location.yaw());
+                out.writeFloat(location.pitch());
+            }
+        } catch (IOException e) {
+            // can't happen, it's all in memory
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * The sections this state holds.
+     */
+    public Set<Section> sections() {
+        var sections = EnumSet.noneOf(Section.class);
+
+        if (enderChest != null) {
+            sections.add(Section.ENDER_CHEST);
+        }
+        if (experience != null) {
+            sections.add(Section.EXPERIENCE);
+        }
+        if (location != null) {
+            sections.add(Section.LOCATION);
+        }
+        return sections;
+    }
+
+    public enum Section {
+        ENDER_CHEST(1),
+        EXPERIENCE(2),
+        LOCATION(3);
+
+        private final byte type;
+
+        Section(int type) {
+            this.type = (byte) type;
+        }
+
+        private static @Nullable Section of(byte type) {
+            for (var section : values()) {
+                if (section.type == type) {
+                    return section;
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * @param progress the progress towards the next level, between 0 and 1.
+     * @param total    the total experience, which is what's dropped on death.
+     */
+    public record Experience(int level, float progress, int total) {
+    }
+
+    public record Position(String world, double x, double y, double z, float yaw, float pitch) {
+    }
+}
@@ -0,0 +1,1198 @@
+package work.fking.corpa.invsnaps;
+
+import org.bukkit.configuration.ConfigurationSection;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Stores snapshots in an append-only log split into memory-mapped segment files, for servers which write far more
+ * snapshots than they ever look up.
+ * <p>
+ * Snapshots are only ever appended, deletes append a tombstone. Once a segment is full a new one is started. Segments
+ * mostly made of deleted snapshots are compacted by copying their live records to the end of the log and deleting the
+ * segment file, followed by a marker so that a segment whose deletion didn't make it to disk is discarded on the next
+ * start. Every record is framed as {@code [length][crc32][payload]}, a torn record at the end of the log is ignored.
+ * <p>
+ * The whole index lives in memory and is rebuilt by reading the log on start: the location of every snapshot by id,
+ * the ids of every player's snapshots, and the last name record of every player. A player's snapshots are ordered by id, which is the order they were stored
+ * in, rather than by the time they were taken.
+ */
+public final class SegmentLogStore implements SnapshotStore {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SegmentLogStore.class);
+
+    public static final String DIRECTORY_NAME = "snapshot-log";
+
+    private static final Pattern SEGMENT_FILE = Pattern.compile("segment-(\\d+)\\.log");
+
+    private static final int MAGIC = 0x49534C47; // ISLG
+    private static final int FORMAT = 1;
+    private static final int HEADER_SIZE = 16;
+    private static final int RECORD_HEADER_SIZE = 8;
+
+    private static final byte TYPE_SNAPSHOT = 1;
+    private static final byte TYPE_DELETE = 2;
+    private static final byte TYPE_COMPACTED = 3;
+    private static final byte TYPE_PLAYER_NAME = 4;
+
+    private static final int QUEUE_CAPACITY = 1024;
+    private static final int MAX_BATCH_SIZE = 128;
+    private static final long POLL_TIMEOUT_MILLIS = 250;
+
+    private final Path directory;
+    private final Settings settings;
+    private final int storageVersion;
+
+    // segments and the index are only modified by the writer thread, which holds the write lock while doing so
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final ConcurrentSkipListMap<Integer, Segment> segments = new ConcurrentSkipListMap<>();
+    private final Map<UUID, IdList> players = new HashMap<>();
+    private final Map<UUID, String> names = new HashMap<>();
+    private final Map<UUID, Long> nameLocations = new HashMap<>();
+    private long[] locations = new long[1024];
+
+    private final BlockingQueue<WriteRequest> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final Thread thread;
+    private volatile boolean running = true;
+    private volatile boolean abandoned;
+
+    // only ever used by the writer thread
+    private Segment active;
+    private int nextId = 1;
+
+    private final Metrics.Histogram encodeLatency;
+    private final Metrics.Histogram syncLatency;
+    private final Metrics.Histogram storedSize;
+    private final LongAdder bytesWritten;
+    private final LongAdder compactions;
+
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong stalls = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicInteger lastBatchSize = new AtomicInteger();
+    private final AtomicInteger largestBatchSize = new AtomicInteger();
+
+    private SegmentLogStore(Path directory, Settings settings, boolean compress, Metrics metrics) {
+        this.directory = directory;
+        this.settings = settings;
+        this.storageVersion = compress ? ItemStackSerializer.VERSION_SLOTTED : ItemStackSerializer.VERSION_PLAIN;
+        this.thread = new Thread(this::run, "InventorySnapshots-Log-Writer");
+        this.encodeLatency = metrics.latency("encode");
+        this.syncLatency = metrics.latency("log.sync");
+        this.storedSize = metrics.size("stored_size");
+        this.bytesWritten = metrics.counter("bytes_written");
+        this.compactions = metrics.counter("log.compactions");
+
+        metrics.gauge("log.segments", segments::size);
+    }
+
+    /**
+     * Opens the log in the given directory, reading it whole to rebuild the index.
+     */
+    public static SegmentLogStore open(Path directory, Settings settings, SnapshotRepository.Settings storageSettings, Metrics metrics) throws IOException {
+        if (storageSettings.deduplicate()) {
+            LOGGER.warn("The snapshot log does not deduplicate items, snapshots are stored whole");
+        }
+        Files.createDirectories(directory);
+        var store = new SegmentLogStore(directory, settings, storageSettings.compress(), metrics);
+        store.load();
+        store.thread.start();
+        return store;
+    }
+
+    private void load() throws IOException {
+        var ids = new ArrayList<Integer>();
+
+        try (var files = Files.list(directory)) {
+            files.forEach(file -> {
+                var matcher = SEGMENT_FILE.matcher(file.getFileName().toString());
+
+                if (matcher.matches()) {
+                    ids.add(Integer.parseInt(matcher.group(1)));
+                }
+            });
+        }
+        ids.sort(Comparator.naturalOrder());
+        var compacted = new ArrayList<Integer>();
+        var start = System.nanoTime();
+
+        for (var id : ids) {
+            var segment = Segment.map(segmentFile(id), id, -1);
+
+            if (segment.buffer.getInt(0) != MAGIC || segment.buffer.getInt(4) != FORMAT) {
+                throw new IOException("Not a snapshot log segment: " + segment.file);
+            }
+            nextId = Math.max(nextId, segment.buffer.getInt(8));
+            segments.put(id, segment);
+            segment.end = scan(segment, segment.capacity(), (offset, payload) -> apply(segment, offset, payload, compacted));
+
+            if (segment.end + RECORD_HEADER_SIZE <= segment.capacity() && segment.buffer.getInt(segment.end) != 0) {
+                LOGGER.warn("Ignoring the corrupted end of {} at offset {}", segment.file, segment.end);
+            }
+            segment.synced = segment.end;
+        }
+        for (var id : compacted) {
+            var segment = segments.remove(id);
+
+            if (segment != null) {
+                deleteSegmentFile(segment);
+            }
+        }
+        if (segments.isEmpty()) {
+            active = createSegment(1, settings.segmentBytes());
+        } else {
+            active = segments.lastEntry().getValue();
+        }
+        LOGGER.info("Loaded {} snapshots from {} log segments in {} ms", countSnapshots(), segments.size(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    }
+
+    private void apply(Segment segment, int offset, ByteBuffer payload, List<Integer> compacted) {
+        var type = payload.get(0);
+
+        if (type == TYPE_SNAPSHOT) {
+            var id = payload.getInt(1);
+            var previous = location(id);
+
+            if (previous != 0) {
+                // copied by a compaction, the original is dead now
+                segments.get(segmentId(previous)).liveBytes -= recordSize(previous);
+            } else {
+                players.computeIfAbsent(readSummary(payload).playerUuid(), uuid -> new IdList()).add(id);
+            }
+            setLocation(id, location(segment.id, offset));
+            segment.liveBytes += RECORD_HEADER_SIZE + payload.limit();
+            nextId = Math.max(nextId, id + 1);
+        } else if (type == TYPE_DELETE) {
+            removeFromIndex(payload.getInt(1));
+        } else if (type == TYPE_PLAYER_NAME) {
+            indexName(readNameUuid(payload), readName(payload), location(segment.id, offset));
+        } else if (type == TYPE_COMPACTED) {
+            var compactedId = payload.getInt(1);
+
+            if (segments.containsKey(compactedId)) {
+                // its live records were all copied before the marker, whatever is left pointing to it is dead
+                for (int id = 0; id < locations.length; id++) {
+                    if (locations[id] != 0 && segmentId(locations[id]) == compactedId) {
+                        removeFromIndex(id);
+                    }
+                }
+                compacted.add(compactedId);
+            }
+        }
+    }
+
+    private int countSnapshots() {
+        var count = 0;
+
+        for (var list : players.values()) {
+            count += list.size;
+        }
+        return count;
+    }
+
+    @Override
+    public @Nullable Snapshot findById(int id) {
+        lock.readLock().lock();
+        try {
+            var location = location(id);
+
+            if (location == 0) {
+                return null;
+            }
+            var snapshot = readSnapshot(payload(location));
+            return snapshot.withInventory(resolve(id, snapshot.inventory()));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Inventories stored as changes to another snapshot are resolved against it, it is never deleted before they are.
+     */
+    private byte[] resolve(int id, byte[] inventory) {
+        if (ItemStackSerializer.version(inventory) != ItemStackSerializer.VERSION_DELTA) {
+            return inventory;
+        }
+        var baseId = ItemStackSerializer.deltaBaseId(inventory);
+        var baseLocation = location(baseId);
+
+        try {
+            if (baseLocation == 0) {
+                throw new IOException("Snapshot " + baseId + " is missing");
+            }
+            var base = resolve(baseId, readSnapshot(payload(baseLocation)).inventory());
+            return ItemStackSerializer.resolveDelta(base, inventory);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to resolve the inventory of snapshot " + id + " against its base", e);
+        }
+    }
+
+    @Override
+    public SnapshotPage findForList(UUID playerUuid, @Nullable SnapshotPage.Cursor cursor, int pageSize) {
+        var rows = new ArrayList<SnapshotSummary>(pageSize + 1);
+
+        lock.readLock().lock();
+        try {
+            var ids = players.get(playerUuid);
+
+            if (ids != null) {
+                // one extra row tells us whether there's another page
+                if (cursor == null) {
+                    addRows(rows, ids, ids.size - 1, -1, pageSize + 1);
+                } else if (cursor.newer()) {
+                    addRows(rows, ids, ids.indexAfter(cursor.snapshotId()), 1, pageSize + 1);
+                } else {
+                    addRows(rows, ids, ids.indexAfter(cursor.snapshotId() - 1) - 1, -1, pageSize + 1);
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return SnapshotPage.fromRows(rows, cursor, pageSize);
+    }
+
+    private void addRows(List<SnapshotSummary> rows, IdList ids, int from, int step, int limit) {
+        for (int i = from; i >= 0 && i < ids.size && rows.size() < limit; i += step) {
+            rows.add(readSummary(payload(location(ids.ids[i]))));
+        }
+    }
+
+    /**
+     * Materials aren't indexed, finding them would mean decoding every snapshot in the log.
+     */
+    @Override
+    public MaterialIndex.Page search(String material, int minAmount, int flags, LocalDateTime since, @Nullable MaterialIndex.Cursor cursor, int pageSize) {
+        throw new UnsupportedOperationException("Searching snapshots requires the sqlite backend");
+    }
+
+    /**
+     * A player's snapshots are ordered by id rather than time, all of them are read to find the latest one.
+     */
+    @Override
+    public List<SnapshotSummary> findLatestBefore(LocalDateTime before, @Nullable Collection<UUID> playerUuids) {
+        var latest = new ArrayList<SnapshotSummary>();
+
+        lock.readLock().lock();
+        try {
+            for (var playerUuid : playerUuids == null ? players.keySet() : playerUuids) {
+                var ids = players.get(playerUuid);
+
+                if (ids == null) {
+                    continue;
+                }
+                SnapshotSummary found = null;
+
+                for (int i = ids.size - 1; i >= 0; i--) {
+                    var summary = readSummary(payload(location(ids.ids[i])));
+
+                    if (summary.createdAt().isBefore(before) && (found == null || summary.createdAt().isAfter(found.createdAt()))) {
+                        found = summary;
+                    }
+                }
+                if (found != null) {
+                    latest.add(found);
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return latest;
+    }
+
+    @Override
+    public boolean contains(Snapshot snapshot) {
+        lock.readLock().lock();
+        try {
+            var ids = players.get(snapshot.playerUuid());
+
+            if (ids == null) {
+                return false;
+            }
+            for (int i = ids.size - 1; i >= 0; i--) {
+                var summary = readSummary(payload(location(ids.ids[i])));
+
+                if (summary.reason() == snapshot.reason() && summary.createdAt().equals(snapshot.createdAt())) {
+                    return true;
+                }
+            }
+            return false;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Queues the snapshot to be appended by the store's writer thread, blocking if the queue is currently full.
+     *
+     * @return a future completed with the persisted snapshot, including its id, once its batch has been synced.
+     */
+    @Override
+    public CompletableFuture<Snapshot> save(Snapshot snapshot) {
+        var request = new SaveRequest(snapshot, new CompletableFuture<>());
+        offer(request, request.future());
+        return request.future();
+    }
+
+    /**
+     * Appends the snapshots as a single batch, synced once, even if the writer has other saves queued.
+     */
+    @Override
+    public CompletableFuture<List<Snapshot>> saveAll(List<Snapshot> snapshots) {
+        return submit(() -> {
+            var batch = new ArrayList<SaveRequest>(snapshots.size());
+            snapshots.forEach(snapshot -> batch.add(new SaveRequest(snapshot, new CompletableFuture<>())));
+            var futures = batch.stream().map(SaveRequest::future).toList();
+            writeBatch(batch);
+            return futures.stream().map(CompletableFuture::join).toList();
+        });
+    }
+
+    /**
+     * Players are visited in the same order as the SQLite store does, by the textual form of their id.
+     */
+    @Override
+    public void forEachSummary(Consumer<SnapshotSummary> consumer) {
+        List<UUID> playerUuids;
+
+        lock.readLock().lock();
+        try {
+            playerUuids = new ArrayList<>(players.keySet());
+        } finally {
+            lock.readLock().unlock();
+        }
+        playerUuids.sort(Comparator.comparing(UUID::toString));
+        var summaries = new ArrayList<SnapshotSummary>();
+
+        for (var playerUuid : playerUuids) {
+            lock.readLock().lock();
+            try {
+                var ids = players.get(playerUuid);
+
+                if (ids != null) {
+                    addRows(summaries, ids, ids.size - 1, -1, Integer.MAX_VALUE);
+                }
+            } finally {
+                lock.readLock().unlock();
+            }
+            // the consumer runs without holding the lock, it may take its time
+            summaries.forEach(consumer);
+            summaries.clear();
+        }
+    }
+
+    @Override
+    public void forEachPlayer(BiConsumer<UUID, String> consumer) {
+        var playerNames = new HashMap<UUID, String>();
+
+        lock.readLock().lock();
+        try {
+            players.keySet().forEach(playerUuid -> playerNames.put(playerUuid, null));
+            playerNames.putAll(names);
+        } finally {
+            lock.readLock().unlock();
+        }
+        playerNames.forEach(consumer);
+    }
+
+    /**
+     * Appends a name record, only the last one of every player is kept by compactions.
+     */
+    @Override
+    public CompletableFuture<Void> savePlayerName(UUID playerUuid, String name) {
+        return submit(() -> {
+            var location = append(encodePlayerName(playerUuid, name));
+            sync();
+
+            lock.writeLock().lock();
+            try {
+                indexName(playerUuid, name, location);
+            } finally {
+                lock.writeLock().unlock();
+            }
+            return null;
+        });
+    }
+
+    private void indexName(UUID playerUuid, String name, long location) {
+        var previous = nameLocations.put(playerUuid, location);
+
+        if (previous != null) {
+            segments.get(segmentId(previous)).liveBytes -= recordSize(previous);
+        }
+        names.put(playerUuid, name);
+        segments.get(segmentId(location)).liveBytes += recordSize(location);
+    }
+
+    /**
+     * Appends a tombstone for every snapshot on the writer thread, their space is reclaimed once their segments are
+     * compacted.
+     */
+    @Override
+    public CompletableFuture<Long> delete(List<SnapshotSummary> snapshots) {
+        return submit(() -> {
+            var bytes = 0L;
+            var deleted = new ArrayList<Integer>(snapshots.size());
+            var materialized = materializeDependents(snapshots);
+
+            for (var snapshot : snapshots) {
+                var location = location(snapshot.id());
+
+                if (location == 0) {
+                    continue;
+                }
+                bytes += storedLength(payload(location));
+                append(encodeDelete(snapshot.id(), segmentId(location)));
+                deleted.add(snapshot.id());
+            }
+            sync();
+
+            lock.writeLock().lock();
+            try {
+                for (var entry : materialized.entrySet()) {
+                    var previous = location(entry.getKey());
+                    segments.get(segmentId(previous)).liveBytes -= recordSize(previous);
+                    setLocation(entry.getKey(), entry.getValue());
+                    segments.get(segmentId(entry.getValue())).liveBytes += recordSize(entry.getValue());
+                }
+                deleted.forEach(this::removeFromIndex);
+            } finally {
+                lock.writeLock().unlock();
+            }
+            return bytes;
+        });
+    }
+
+    /**
+     * Appends the full inventory of the snapshots stored as changes to one of the deleted snapshots, under the same id.
+     * Only restorations are stored as changes, always to a snapshot of the same player.
+     *
+     * @return the location of the appended records, by snapshot id.
+     */
+    private Map<Integer, Long> materializeDependents(List<SnapshotSummary> deleted) throws IOException {
+        var deletedIds = new HashSet<Integer>();
+        var playerUuids = new HashSet<UUID>();
+        var dependents = new ArrayList<Snapshot>();
+
+        for (var snapshot : deleted) {
+            deletedIds.add(snapshot.id());
+            playerUuids.add(snapshot.playerUuid());
+        }
+        lock.readLock().lock();
+        try {
+            for (var playerUuid : playerUuids) {
+                var ids = players.get(playerUuid);
+
+                for (int i = 0; ids != null && i < ids.size; i++) {
+                    var payload = payload(location(ids.ids[i]));
+
+                    if (readSummary(payload).reason() != SnapshotReason.RESTORATION || deletedIds.contains(ids.ids[i])) {
+                        continue;
+                    }
+                    var snapshot = readSnapshot(payload);
+                    var inventory = snapshot.inventory();
+
+                    if (ItemStackSerializer.version(inventory) == ItemStackSerializer.VERSION_DELTA && deletedIds.contains(ItemStackSerializer.deltaBaseId(inventory))) {
+                        dependents.add(snapshot.withInventory(resolve(snapshot.id(), inventory)));
+                    }
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        var locations = new HashMap<Integer, Long>();
+
+        for (var snapshot : dependents) {
+            var stored = snapshot.withInventory(encodeForStorage(snapshot.inventory()));
+            locations.put(snapshot.id(), append(encodeSnapshot(stored)));
+        }
+        return locations;
+    }
+
+    /**
+     * Compacts the segment with the least live records, if it's below the configured ratio. A single segment is
+     * compacted per call, regardless of the amount of pages.
+     */
+    @Override
+    public CompletableFuture<Long> releaseFreeSpace(int maxPages) {
+        return submit(this::compact);
+    }
+
+    /**
+     * Items are never deduplicated, there is nothing to collect.
+     */
+    @Override
+    public ItemBlobStore.Sweep collectUnusedItems() {
+        return new ItemBlobStore.Sweep(0, 0);
+    }
+
+    @Override
+    public int storageVersion() {
+        return storageVersion;
+    }
+
+    /**
+     * Records are never rewritten, snapshots stay in the version they were stored in.
+     */
+    @Override
+    public List<Snapshot> findForMigration(int afterId, int limit) {
+        return List.of();
+    }
+
+    @Override
+    public CompletableFuture<List<Snapshot>> reencode(List<Snapshot> snapshots) {
+        return CompletableFuture.failedFuture(new UnsupportedOperationException("Snapshots in the log can't be re-encoded"));
+    }
+
+    @Override
+    public SnapshotWriter.Stats writerStats() {
+        return new SnapshotWriter.Stats(
+                queue.size(),
+                QUEUE_CAPACITY,
+                batches.get(),
+                written.get(),
+                failed.get(),
+                lastBatchSize.get(),
+                largestBatchSize.get(),
+                stalls.get(),
+                dropped.get()
+        );
+    }
+
+    /**
+     * Stops accepting new requests and waits for the queued ones to be written. Once the timeout elapses the writer
+     * finishes its current batch and fails the requests still queued.
+     */
+    @Override
+    public void close(Duration timeout) {
+        running = false;
+        try {
+            thread.join(timeout.toMillis());
+
+            if (thread.isAlive()) {
+                LOGGER.warn("Timed out writing the {} queued snapshots", queue.size());
+                abandoned = true;
+                thread.join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private <T> CompletableFuture<T> submit(LogTask<T> task) {
+        var request = new TaskRequest<>(task, new CompletableFuture<>());
+        offer(request, request.future());
+        return request.future();
+    }
+
+    private void offer(WriteRequest request, CompletableFuture<?> future) {
+        if (!running) {
+            future.completeExceptionally(new IllegalStateException("The snapshot log has been closed"));
+            return;
+        }
+        if (!queue.offer(request)) {
+            stalls.incrementAndGet();
+
+            // the server's tick must never wait on the disk
+            if (SnapshotWriter.onMainThread()) {
+                dropped.incrementAndGet();
+                future.completeExceptionally(new RejectedExecutionException("The snapshot log's queue is full"));
+                return;
+            }
+            try {
+                queue.put(request);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                future.completeExceptionally(e);
+                return;
+            }
+        }
+        // closed meanwhile, the writer may have drained the queue for the last time already
+        if (!running && queue.remove(request)) {
+            future.completeExceptionally(new IllegalStateException("The snapshot log has been closed"));
+        }
+    }
+
+    private void run() {
+        var requests = new ArrayList<WriteRequest>(MAX_BATCH_SIZE);
+        var saves = new ArrayList<SaveRequest>(MAX_BATCH_SIZE);
+
+        try {
+            while ((running || !queue.isEmpty()) && !abandoned) {
+                var first = queue.poll(POLL_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+
+                if (first == null) {
+                    continue;
+                }
+                requests.add(first);
+                queue.drainTo(requests, MAX_BATCH_SIZE - 1);
+
+                // consecutive saves are written together, tasks run in the order they were submitted
+                for (var request : requests) {
+                    if (request instanceof SaveRequest save) {
+                        saves.add(save);
+                        continue;
+                    }
+                    writeBatch(saves);
+                    runTask((TaskRequest<?>) request);
+                }
+                writeBatch(saves);
+                requests.clear();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            running = false;
+            failRemaining(requests);
+        }
+    }
+
+    private void writeBatch(List<SaveRequest> batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        var persisted = new ArrayList<Snapshot>(batch.size());
+        var stored = new long[batch.size()];
+
+        try {
+            for (int i = 0; i < batch.size(); i++) {
+                var snapshot = batch.get(i).snapshot();
+                var start = System.nanoTime();
+                var inventory = encodeForStorage(snapshot.inventory());
+                encodeLatency.recordSince(start);
+
+                var withId = new Snapshot(nextId++, snapshot.playerUuid(), snapshot.reason(), inventory, snapshot.createdAt(), snapshot.state());
+                stored[i] = append(encodeSnapshot(withId));
+                persisted.add(withId);
+                storedSize.record(inventory.length);
+                bytesWritten.add(inventory.length + (withId.state() == null ? 0 : withId.state().length));
+            }
+            sync();
+        } catch (Exception e) {
+            // malformed inventories throw runtime exceptions, they mustn't take the writer down
+            LOGGER.warn("Failed to write a batch of {} snapshots", batch.size(), e);
+            failed.addAndGet(batch.size());
+            batch.forEach(save -> save.future().completeExceptionally(e));
+            batch.clear();
+            return;
+        }
+        lock.writeLock().lock();
+        try {
+            for (int i = 0; i < persisted.size(); i++) {
+                var snapshot = persisted.get(i);
+                setLocation(snapshot.id(), stored[i]);
+                segments.get(segmentId(stored[i])).liveBytes += recordSize(stored[i]);
+                players.computeIfAbsent(snapshot.playerUuid(), uuid -> new IdList()).add(snapshot.id());
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        batches.incrementAndGet();
+        written.addAndGet(batch.size());
+        lastBatchSize.set(batch.size());
+        largestBatchSize.accumulateAndGet(batch.size(), Math::max);
+
+        for (int i = 0; i < batch.size(); i++) {
+            batch.get(i).future().complete(persisted.get(i));
+        }
+        batch.clear();
+    }
+
+    private <T> void runTask(TaskRequest<T> task) {
+        try {
+            task.future().complete(task.task().run());
+        } catch (Exception e) {
+            task.future().completeExceptionally(e);
+        }
+    }
+
+    /**
+     * @param inFlight the requests taken off the queue when the writer stopped, those already completed are left as is.
+     */
+    private void failRemaining(List<WriteRequest> inFlight) {
+        var remaining = new ArrayList<>(inFlight);
+        queue.drainTo(remaining);
+
+        if (remaining.isEmpty()) {
+            return;
+        }
+        var error = new IllegalStateException("The snapshot log has been closed");
+
+        for (var request : remaining) {
+            if (request instanceof SaveRequest save) {
+                save.future().completeExceptionally(error);
+            } else if (request instanceof TaskRequest<?> task) {
+                task.future().completeExceptionally(error);
+            }
+        }
+        LOGGER.warn("Discarded {} write requests that could not be processed", remaining.size());
+    }
+
+    private byte[] encodeForStorage(byte[] serialized) throws IOException {
+        var currentVersion = ItemStackSerializer.version(serialized);
+
+        // resolved inventories are handed out in the slotted format too, but uncompressed
+        var stored = currentVersion == storageVersion && (currentVersion != ItemStackSerializer.VERSION_SLOTTED || ItemStackSerializer.isDeflated(serialized));
+
+        if (stored || storageVersion == ItemStackSerializer.VERSION_PLAIN) {
+            return serialized;
+        }
+        if (currentVersion == ItemStackSerializer.VERSION_DELTA) {
+            return ItemStackSerializer.compressDelta(serialized);
+        }
+        var inventory = ItemStackSerializer.read(serialized);
+        return ItemStackSerializer.writeSlotted(inventory, Deflater.DEFAULT_COMPRESSION, serialized.length / 4);
+    }
+
+    private long compact() throws IOException {
+        Segment candidate = null;
+
+        for (var segment : segments.values()) {
+            if (segment == active || segment.liveRatio() >= settings.compactBelowLiveRatio()) {
+                continue;
+            }
+            if (candidate == null || segment.liveRatio() < candidate.liveRatio()) {
+                candidate = segment;
+            }
+        }
+        if (candidate == null) {
+            return 0;
+        }
+        var source = candidate;
+        var movedIds = new ArrayList<Integer>();
+        var movedLocations = new ArrayList<Long>();
+        var movedNames = new ArrayList<Long>();
+
+        scan(source, source.end, (offset, payload) -> {
+            var type = payload.get(0);
+            var keep = switch (type) {
+                case TYPE_SNAPSHOT -> location(payload.getInt(1)) == location(source.id, offset);
+                case TYPE_PLAYER_NAME -> Long.valueOf(location(source.id, offset)).equals(nameLocations.get(readNameUuid(payload)));
+                // tombstones are needed for as long as the segment with the deleted snapshot is around
+                case TYPE_DELETE -> segments.containsKey(payload.getInt(5));
+                case TYPE_COMPACTED -> Files.exists(segmentFile(payload.getInt(1)));
+                default -> false;
+            };
+            if (!keep) {
+                return;
+            }
+            var record = new byte[RECORD_HEADER_SIZE + payload.limit()];
+            source.buffer.get(offset, record);
+            var location = append(record);
+
+            if (type == TYPE_SNAPSHOT) {
+                movedIds.add(payload.getInt(1));
+                movedLocations.add(location);
+            } else if (type == TYPE_PLAYER_NAME) {
+                movedNames.add(location);
+            }
+        });
+        append(encodeCompacted(source.id));
+        sync();
+
+        lock.writeLock().lock();
+        try {
+            for (int i = 0; i < movedIds.size(); i++) {
+                var location = movedLocations.get(i);
+                setLocation(movedIds.get(i), location);
+                segments.get(segmentId(location)).liveBytes += recordSize(location);
+            }
+            for (var location : movedNames) {
+                var payload = payload(location);
+                indexName(readNameUuid(payload), readName(payload), location);
+            }
+            segments.remove(source.id);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        compactions.increment();
+        LOGGER.info("Compacted {}, moving {} snapshots", source.file, movedIds.size());
+        deleteSegmentFile(source);
+        return source.capacity();
+    }
+
+    private static void deleteSegmentFile(Segment segment) {
+        try {
+            Files.deleteIfExists(segment.file);
+        } catch (IOException e) {
+            // e.g. still mapped on windows, it's discarded again on the next start
+            LOGGER.warn("Failed to delete {}", segment.file, e);
+        }
+    }
+
+    /**
+     * Appends the framed record to the active segment, starting a new segment if it doesn't fit.
+     *
+     * @return the record's location.
+     */
+    private long append(byte[] record) throws IOException {
+        if (active.end + record.length > active.capacity()) {
+            sync();
+            active = createSegment(active.id + 1, Math.max(settings.segmentBytes(), HEADER_SIZE + record.length));
+        }
+        var offset = active.end;
+        active.buffer.put(offset, record);
+        active.end += record.length;
+        return location(active.id, offset);
+    }
+
+    private void sync() {
+        if (active.synced == active.end) {
+            return;
+        }
+        var start = System.nanoTime();
+        active.buffer.force(active.synced, active.end - active.synced);
+        active.synced = active.end;
+        syncLatency.recordSince(start);
+    }
+
+    private Segment createSegment(int id, int capacity) throws IOException {
+        var segment = Segment.map(segmentFile(id), id, capacity);
+        // ids must keep increasing even once the snapshots with the highest ids have been compacted away
+        segment.buffer.putInt(0, MAGIC)
+                      .putInt(4, FORMAT)
+                      .putInt(8, nextId);
+        segment.buffer.force(0, HEADER_SIZE);
+        segment.end = HEADER_SIZE;
+        segment.synced = HEADER_SIZE;
+        segments.put(id, segment);
+        return segment;
+    }
+
+    private Path segmentFile(int id) {
+        return directory.resolve(String.format("segment-%08d.log", id));
+    }
+
+    private void removeFromIndex(int id) {
+        var location = location(id);
+
+        if (location == 0) {
+            return;
+        }
+        var payload = payload(location);
+        var ids = players.get(readSummary(payload).playerUuid());
+
+        if (ids != null && ids.remove(id) && ids.size == 0) {
+            players.remove(readSummary(payload).playerUuid());
+        }
+        segments.get(segmentId(location)).liveBytes -= RECORD_HEADER_SIZE + payload.limit();
+        locations[id] = 0;
+    }
+
+    private long location(int id) {
+        return id >= 0 && id < locations.length ? locations[id] : 0;
+    }
+
+    private void setLocation(int id, long location) {
+        if (id >= locations.length) {
+            locations = Arrays.copyOf(locations, Math.max(id + 1, locations.length * 2));
+        }
+        locations[id] = location;
+    }
+
+    private ByteBuffer payload(long location) {
+        var segment = segments.get(segmentId(location));
+        var offset = (int) location;
+        return segment.buffer.slice(offset + RECORD_HEADER_SIZE, segment.buffer.getInt(offset));
+    }
+
+    private int recordSize(long location) {
+        return RECORD_HEADER_SIZE + segments.get(segmentId(location)).buffer.getInt((int) location);
+    }
+
+    private static long location(int segmentId, int offset) {
+        return (long) segmentId << 32 | offset;
+    }
+
+    private static int segmentId(long location) {
+        return (int) (location >>> 32);
+    }
+
+    /**
+     * Visits the segment's valid records, up to the limit.
+     *
+     * @return the offset the valid records end at.
+     */
+    private static int scan(Segment segment, int limit, RecordVisitor visitor) throws IOException {
+        var buffer = segment.buffer;
+        var offset = HEADER_SIZE;
+        var crc = new CRC32();
+
+        while (offset + RECORD_HEADER_SIZE <= limit) {
+            var length = buffer.getInt(offset);
+
+            if (length <= 0 || length > limit - offset - RECORD_HEADER_SIZE) {
+                break;
+            }
+            var payload = buffer.slice(offset + RECORD_HEADER_SIZE, length);
+            crc.reset();
+            crc.update(payload.duplicate());
+
+            if ((int) crc.getValue() != buffer.getInt(offset + 4)) {
+                break;
+            }
+            visitor.visit(offset, payload);
+            offset += RECORD_HEADER_SIZE + length;
+        }
+        return offset;
+    }
+
+    private static byte[] encodeSnapshot(Snapshot snapshot) {
+        var reason = snapshot.reason().name().getBytes(StandardCharsets.US_ASCII);
+        var inventory = snapshot.inventory();
+        var state = snapshot.state();
+        var record = frame(1 + 4 + 16 + 12 + 1 + reason.length + 4 + inventory.length + (state == null ? 0 : 4 + state.length));
+        record.put(TYPE_SNAPSHOT)
+              .putInt(snapshot.id())
+              .putLong(snapshot.playerUuid().getMostSignificantBits())
+              .putLong(snapshot.playerUuid().getLeastSignificantBits())
+              .putLong(snapshot.createdAt().toEpochSecond(ZoneOffset.UTC))
+              .putInt(snapshot.createdAt().getNano())
+              .put((byte) reason.length)
+              .put(reason)
+              .putInt(inventory.length)
+              .put(inventory);
+
+        // absent from the records of snapshots without a state, and from the records written before it was captured
+        if (state != null) {
+            record.putInt(state.length)
+                  .put(state);
+        }
+        return seal(record);
+    }
+
+    private static byte[] encodeDelete(int id, int segmentId) {
+        return seal(frame(1 + 4 + 4).put(TYPE_DELETE).putInt(id).putInt(segmentId));
+    }
+
+    private static byte[] encodeCompacted(int segmentId) {
+        return seal(frame(1 + 4).put(TYPE_COMPACTED).putInt(segmentId));
+    }
+
+    private static byte[] encodePlayerName(UUID playerUuid, String name) {
+        var bytes = name.getBytes(StandardCharsets.UTF_8);
+        var record = frame(1 + 16 + bytes.length);
+        record.put(TYPE_PLAYER_NAME)
+              .putLong(playerUuid.getMostSignificantBits())
+              .putLong(playerUuid.getLeastSignificantBits())
+              .put(bytes);
+        return seal(record);
+    }
+
+    private static ByteBuffer frame(int payloadLength) {
+        return ByteBuffer.allocate(RECORD_HEADER_SIZE + payloadLength).position(RECORD_HEADER_SIZE);
+    }
+
+    private static byte[] seal(ByteBuffer record) {
+        var payloadLength = record.capacity() - RECORD_HEADER_SIZE;
+        var crc = new CRC32();
+        crc.update(record.array(), RECORD_HEADER_SIZE, payloadLength);
+        record.putInt(0, payloadLength)
+              .putInt(4, (int) crc.getValue());
+        return record.array();
+    }
+
+    private static SnapshotSummary readSummary(ByteBuffer payload) {
+        var id = payload.getInt(1);
+        var playerUuid = new UUID(payload.getLong(5), payload.getLong(13));
+        var createdAt = LocalDateTime.ofEpochSecond(payload.getLong(21), payload.getInt(29), ZoneOffset.UTC);
+        var reason = new byte[payload.get(33)];
+        payload.get(34, reason);
+        return new SnapshotSummary(id, playerUuid, SnapshotReason.valueOf(new String(reason, StandardCharsets.US_ASCII)), createdAt);
+    }
+
+    private static UUID readNameUuid(ByteBuffer payload) {
+        return new UUID(payload.getLong(1), payload.getLong(9));
+    }
+
+    private static String readName(ByteBuffer payload) {
+        var bytes = new byte[payload.limit() - 17];
+        payload.get(17, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static Snapshot readSnapshot(ByteBuffer payload) {
+        var summary = readSummary(payload);
+        var offset = 34 + payload.get(33);
+        var inventory = new byte[payload.getInt(offset)];
+        payload.get(offset + 4, inventory);
+        offset += 4 + inventory.length;
+        byte[] state = null;
+
+        if (offset < payload.limit()) {
+            state = new byte[payload.getInt(offset)];
+            payload.get(offset + 4, state);
+        }
+        return new Snapshot(summary.id(), summary.playerUuid(), summary.reason(), inventory, summary.createdAt(), state);
+    }
+
+    /**
+     * The length of the snapshot's inventory and state.
+     */
+    private static int storedLength(ByteBuffer payload) {
+        var offset = 34 + payload.get(33);
+        var inventoryEnd = offset + 4 + payload.getInt(offset);
+        return payload.limit() - offset - 4 - (inventoryEnd < payload.limit() ? 4 : 0);
+    }
+
+    private static final class Segment {
+
+        private final int id;
+        private final Path file;
+        private final MappedByteBuffer buffer;
+        // only ever used by the writer thread
+        private int end;
+        private int synced;
+        private long liveBytes;
+
+        private Segment(int id, Path file, MappedByteBuffer buffer) {
+            this.id = id;
+            this.file = file;
+            this.buffer = buffer;
+        }
+
+        /**
+         * Maps the whole segment file, creating it with the given capacity if it's not negative.
+         */
+        private static Segment map(Path file, int id, int capacity) throws IOException {
+            try (var channel = capacity < 0
+                    ? FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)
+                    : FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                var size = capacity < 0 ? channel.size() : capacity;
+                // the mapping stays valid once the channel is closed
+                return new Segment(id, file, channel.map(FileChannel.MapMode.READ_WRITE, 0, size));
+            }
+        }
+
+        private int capacity() {
+            return buffer.capacity();
+        }
+
+        private double liveRatio() {
+            var used = end - HEADER_SIZE;
+            return used == 0 ? 1 : (double) liveBytes / used;
+        }
+    }
+
+    /**
+     * A player's snapshot ids, sorted.
+     */
+    private static final class IdList {
+
+        private int[] ids = new int[8];
+        private int size;
+
+        private void add(int id) {
+            var index = size == 0 || ids[size - 1] < id ? size : Arrays.binarySearch(ids, 0, size, id);
+
+            if (index >= 0 && index < size) {
+                return;
+            }
+            if (index < 0) {
+                index = -index - 1;
+            }
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+            }
+            System.arraycopy(ids, index, ids, index + 1, size - index);
+            ids[index] = id;
+            size++;
+        }
+
+        private boolean remove(int id) {
+            var index = Arrays.binarySearch(ids, 0, size, id);
+
+            if (index < 0) {
+                return false;
+            }
+            System.arraycopy(ids, index + 1, ids, index, size - index - 1);
+            size--;
+            return true;
+        }
+
+        /**
+         * @return the index of the first id greater than the given one.
+         */
+        private int indexAfter(int id) {
+            var index = Arrays.binarySearch(ids, 0, size, id);
+            return index >= 0 ? index + 1 : -index - 1;
+        }
+    }
+
+    @FunctionalInterface
+    private interface RecordVisitor {
+
+        void visit(int offset, ByteBuffer payload) throws IOException;
+    }
+
+    @FunctionalInterface
+    private interface LogTask<T> {
+
+        T run() throws IOException;
+    }
+
+    private sealed interface WriteRequest permits SaveRequest, TaskRequest {
+    }
+
+    private record SaveRequest(Snapshot snapshot, CompletableFuture<Snapshot> future) implements WriteRequest {
+    }
+
+    private record TaskRequest<T>(LogTask<T> task, CompletableFuture<T> future) implements WriteRequest {
+    }
+
+    public record Settings(
+            int segmentSizeMib,
+            double compactBelowLiveRatio
+    ) {
+
+        public int segmentBytes() {
+            return segmentSizeMib * 1024 * 1024;
+        }
+
+        public static Settings fromConfig(ConfigurationSection section) {
+            return new Settings(
+                    Math.max(1, Math.min(1024, section.getInt("segment-size-mib", 64))),
+                    section.getDouble("compact-below-live-ratio", 0.5)
+            );
+        }
+    }
+}
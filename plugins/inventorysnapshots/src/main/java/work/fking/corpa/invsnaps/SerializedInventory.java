@@ -0,0 +1,29 @@
+package work.fking.corpa.invsnaps;
+
+import java.util.List;
+
+/**
+ * The items of an inventory in their serialized form, independent of the format the inventory is stored in.
+ */
+public record SerializedInventory(int size, List<Item> items) {
+
+    /**
+     * The item's gzip wrapping was removed and {@link Item#data()} holds its raw NBT.
+     */
+    public static final int FLAG_GZIP_STRIPPED = 1;
+    /**
+     * The slot was emptied, only used by the changes of a version 5 inventory. The item has no data.
+     */
+    public static final int FLAG_CLEARED = 2;
+
+    /**
+     * @param data the output of {@link org.bukkit.inventory.ItemStack#serializeAsBytes()}, or its raw NBT if the
+     *             {@link #FLAG_GZIP_STRIPPED} flag is set.
+     */
+    public record Item(int slot, int flags, byte[] data) {
+
+        public boolean gzipStripped() {
+            return (flags & FLAG_GZIP_STRIPPED) != 0;
+        }
+    }
+}
@@ -1,31 +1,38 @@
 package work.fking.corpa.invsnaps;
 
-import org.bukkit.entity.Player;
 import org.bukkit.inventory.ItemStack;
+import org.jetbrains.annotations.Nullable;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.time.Duration;
 import java.time.LocalDateTime;
 import java.util.UUID;
 
+/**
+ * @param state the {@link PlayerState} besides the inventory, or null for the snapshots taken before it was captured.
+ */
 public record Snapshot(
         int id,
         UUID playerUuid,
         SnapshotReason reason,
         byte[] inventory,
-        LocalDateTime createdAt
+        LocalDateTime createdAt,
+        @Nullable byte[] state
 ) {
 
-    public static Snapshot from(Player player, SnapshotReason reason) {
-        var outputStream = new ByteArrayOutputStream();
-        ItemStackSerializer.serialize(outputStream, player.getInventory().getContents());
+    public Snapshot withId(int id) {
+        return new Snapshot(id, playerUuid, reason, inventory, createdAt, state);
+    }
 
-        return new Snapshot(-1, player.getUniqueId(), reason, outputStream.toByteArray(), LocalDateTime.now());
+    public Snapshot withInventory(byte[] inventory) {
+        return new Snapshot(id, playerUuid, reason, inventory, createdAt, state);
     }
 
     public ItemStack[] itemStacks() {
-        return ItemStackSerializer.deserialize(new ByteArrayInputStream(inventory));
+        return ItemStackSerializer.deserialize(inventory);
+    }
+
+    public @Nullable PlayerState playerState() {
+        return state == null ? null : PlayerState.decode(state);
     }
 
     public Duration timeSince() {
@@ -0,0 +1,246 @@
+package work.fking.corpa.invsnaps;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.util.LinkedHashMap;
+import java.util.UUID;
+
+/**
+ * In-memory cache of recently used snapshots, bounded both by size and by age.
+ * <p>
+ * Snapshots are cached by id along with an {@link InventoryView} of their inventory once it has been read, so that
+ * looking up a snapshot and then restoring it only reads it once, and only decodes each item once. The most recent
+ * page of every player's snapshot list is cached by player, and dropped whenever a new snapshot of the player is saved.
+ * <p>
+ * Views hand out copies of their decoded items, callers are free to modify them.
+ */
+public final class SnapshotCache {
+
+    // rough heap cost of the bookkeeping of an entry and of a decoded item stack along with its NBT
+    private static final int ENTRY_WEIGHT = 128;
+    private static final int DECODED_ITEM_WEIGHT = 1024;
+    private static final int SUMMARY_WEIGHT = 128;
+
+    private final long maxBytes;
+    private final long expireAfterNanos;
+    private final Metrics.Histogram decodeLatency;
+    private final Metrics.Histogram viewLatency;
+
+    // keyed by snapshot id for snapshots, and by player uuid for their latest page
+    private final LinkedHashMap<Object, Entry> entries = new LinkedHashMap<>(128, 0.75f, true);
+    private long bytes;
+    private long generation;
+
+    private long hits;
+    private long misses;
+    private long viewHits;
+    private long viewMisses;
+    private long evictions;
+
+    /**
+     * @param decodeLatency where the time spent decoding every item is recorded.
+     * @param viewLatency   where the time spent reading inventories into views is recorded.
+     */
+    public SnapshotCache(long maxBytes, long expireAfterSeconds, Metrics.Histogram decodeLatency, Metrics.Histogram viewLatency) {
+        this.maxBytes = maxBytes;
+        this.expireAfterNanos = expireAfterSeconds * 1_000_000_000L;
+        this.decodeLatency = decodeLatency;
+        this.viewLatency = viewLatency;
+    }
+
+    public synchronized @Nullable Snapshot snapshot(int id) {
+        var entry = get(id);
+        return entry == null ? null : (Snapshot) entry.value;
+    }
+
+    public synchronized void putSnapshot(Snapshot snapshot) {
+        var existing = entries.get(snapshot.id());
+
+        if (existing != null && !existing.expired(System.nanoTime())) {
+            return;
+        }
+        put(snapshot.id(), new Entry(snapshot, weight(snapshot), System.nanoTime() + expireAfterNanos));
+    }
+
+    /**
+     * Reads the snapshot's inventory into a view, or hands out the view it was read into before.
+     */
+    public InventoryView view(Snapshot snapshot) {
+        synchronized (this) {
+            var entry = entries.get(snapshot.id());
+
+            if (entry != null && entry.view != null && !entry.expired(System.nanoTime())) {
+                viewHits++;
+                return entry.view;
+            }
+            viewMisses++;
+        }
+        // inflating compressed inventories isn't free either, it's done without holding the lock
+        var start = System.nanoTime();
+        var view = InventoryView.of(snapshot.inventory(), decodeLatency);
+        viewLatency.recordSince(start);
+
+        synchronized (this) {
+            var entry = entries.get(snapshot.id());
+
+            if (entry == null || entry.expired(System.nanoTime())) {
+                entry = new Entry(snapshot, weight(snapshot), System.nanoTime() + expireAfterNanos);
+                put(snapshot.id(), entry);
+            }
+            // the entry may already have been evicted if the cache is tiny
+            if (entry.view == null && entries.get(snapshot.id()) == entry) {
+                var weight = decodedWeight(view);
+                entry.view = view;
+                entry.weight += weight;
+                bytes += weight;
+                evict();
+            }
+            return entry.view != null ? entry.view : view;
+        }
+    }
+
+    /**
+     * Removes a snapshot which no longer exists.
+     */
+    public synchronized void invalidate(int id) {
+        remove(id);
+    }
+
+    /**
+     * The generation must be read before querying the page which is later handed to {@link #putLatestPage}, pages
+     * queried before the player's last invalidation are then discarded instead of cached.
+     */
+    public synchronized long generation() {
+        return generation;
+    }
+
+    public synchronized @Nullable SnapshotPage latestPage(UUID playerUuid, int pageSize) {
+        var entry = get(playerUuid);
+
+        if (entry == null) {
+            return null;
+        }
+        var page = (CachedPage) entry.value;
+        return page.pageSize() == pageSize ? page.page() : null;
+    }
+
+    public synchronized void putLatestPage(UUID playerUuid, int pageSize, SnapshotPage page, long generation) {
+        if (generation != this.generation) {
+            return;
+        }
+        var weight = ENTRY_WEIGHT + page.summaries().size() * SUMMARY_WEIGHT;
+        put(playerUuid, new Entry(new CachedPage(pageSize, page), weight, System.nanoTime() + expireAfterNanos));
+    }
+
+    /**
+     * Drops the player's cached page, to be called once a new snapshot of the player has been saved.
+     */
+    public synchronized void invalidatePlayer(UUID playerUuid) {
+        generation++;
+        remove(playerUuid);
+    }
+
+    public synchronized Stats stats() {
+        return new Stats(entries.size(), bytes, maxBytes, hits, misses, viewHits, viewMisses, evictions);
+    }
+
+    private @Nullable Entry get(Object key) {
+        var entry = entries.get(key);
+
+        if (entry != null && entry.expired(System.nanoTime())) {
+            remove(key);
+            entry = null;
+        }
+        if (entry == null) {
+            misses++;
+        } else {
+            hits++;
+        }
+        return entry;
+    }
+
+    private void put(Object key, Entry entry) {
+        remove(key);
+        entries.put(key, entry);
+        bytes += entry.weight;
+        evict();
+    }
+
+    private void remove(Object key) {
+        var removed = entries.remove(key);
+
+        if (removed != null) {
+            bytes -= removed.weight;
+        }
+    }
+
+    private void evict() {
+        var now = System.nanoTime();
+        var iterator = entries.values().iterator();
+
+        // the iteration order is least recently used first, expired entries are dropped along the way
+        while (iterator.hasNext()) {
+            var entry = iterator.next();
+
+            if (bytes <= maxBytes && !entry.expired(now)) {
+                break;
+            }
+            bytes -= entry.weight;
+            iterator.remove();
+            evictions++;
+        }
+    }
+
+    // charged up front as if every item was going to be decoded
+    private static long weight(Snapshot snapshot) {
+        return ENTRY_WEIGHT + snapshot.inventory().length + (snapshot.state() == null ? 0 : snapshot.state().length);
+    }
+
+    private static long decodedWeight(InventoryView view) {
+        var weight = 0L;
+
+        for (int slot = 0; slot < view.size(); slot++) {
+            if (!view.isEmpty(slot)) {
+                weight += DECODED_ITEM_WEIGHT + view.serializedSize(slot);
+            }
+        }
+        return weight;
+    }
+
+    private static final class Entry {
+
+        private final Object value;
+        private final long expiresAt;
+        private long weight;
+        private InventoryView view;
+
+        private Entry(Object value, long weight, long expiresAt) {
+            this.value = value;
+            this.weight = weight;
+            this.expiresAt = expiresAt;
+        }
+
+        private boolean expired(long now) {
+            return now - expiresAt > 0;
+        }
+    }
+
+    private record CachedPage(int pageSize, SnapshotPage page) {
+    }
+
+    public record Stats(
+            int entries,
+            long bytes,
+            long maxBytes,
+            long hits,
+            long misses,
+            long viewHits,
+            long viewMisses,
+            long evictions
+    ) {
+
+        public double hitRate() {
+            return hits + misses == 0 ? 0 : (double) hits / (hits + misses);
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package work.fking.corpa.invsnaps;
+
+import org.bukkit.entity.Player;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.Listener;
+import org.bukkit.event.entity.PlayerDeathEvent;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.zip.Deflater;
+
+/**
+ * Captures the inventories and state of players, and saves them when they die.
+ * <p>
+ * Snapshots which are saved right away only cost the main thread a {@link PlayerCapture copy} of the player, which is
+ * serialized, compressed and saved on the workers. Only needs the repository, not the plugin, so that the capture
+ * path can be driven by a load test without a server.
+ */
+public final class SnapshotCapture implements Listener {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SnapshotCapture.class);
+
+    private final SnapshotRepository repository;
+    private final Executor workers;
+    private final Metrics.Histogram copyLatency;
+    private final Metrics.Histogram serializeLatency;
+    private final Metrics.Histogram capturedSize;
+
+    public SnapshotCapture(SnapshotRepository repository, Metrics metrics, Executor workers) {
+        this.repository = repository;
+        this.workers = workers;
+        this.copyLatency = metrics.latency("capture.copy");
+        this.serializeLatency = metrics.latency("serialize");
+        this.capturedSize = metrics.size("captured_size");
+    }
+
+    /**
+     * Captures the player's current inventory and state, serializing them right away. Runs on the main thread.
+     */
+    public Snapshot capture(Player player, SnapshotReason reason) {
+        return serialize(copy(player, reason), false);
+    }
+
+    /**
+     * Copies the player's current inventory and state, then serializes and saves them on the workers. Runs on the main
+     * thread.
+     *
+     * @return a future completed with the persisted snapshot.
+     */
+    public CompletableFuture<Snapshot> save(Player player, SnapshotReason reason) {
+        var copy = copy(player, reason);
+        var compress = repository.storageVersion() == ItemStackSerializer.VERSION_SLOTTED;
+
+        // the store logs its own failures
+        return CompletableFuture.supplyAsync(() -> serialize(copy, compress), workers)
+                                .whenComplete((snapshot, e) -> {
+                                    if (e != null) {
+                                        LOGGER.warn("Failed to serialize the snapshot of {} taken on {}", copy.playerUuid(), copy.reason(), e);
+                                    }
+                                })
+                                .thenCompose(repository::save);
+    }
+
+    @EventHandler
+    public void onPlayerDeath(PlayerDeathEvent event) {
+        save(event.getPlayer(), SnapshotReason.PLAYER_DEATH);
+    }
+
+    /**
+     * Serializes what a player held before a restore on the workers, and compares it to the restored inventory on the
+     * serialized items. The items of the slots which differ are decoded, for the main thread not to have to.
+     *
+     * @param previous the copy of the player taken right before the restore.
+     * @return a future completed with the snapshot, which is yet to be saved, and the slots to restore.
+     */
+    public CompletableFuture<Restoration> restoration(PlayerCapture previous, int snapshotId, InventoryView restored) {
+        return CompletableFuture.supplyAsync(() -> {
+            var snapshot = serialize(previous, false);
+
+            try {
+                var table = ItemStackSerializer.slotTable(snapshot.inventory());
+                var diff = InventoryDiff.compare(restored.table(), table);
+
+                for (var change : diff.changes()) {
+                    if (change.slot() < restored.size()) {
+                        restored.decode(change.slot());
+                    }
+                }
+                return new Restoration(snapshot.withInventory(ItemStackSerializer.writeDelta(snapshotId, diff.changedItems(table), Deflater.NO_COMPRESSION, 0)), diff);
+            } catch (IOException e) {
+                // the whole inventory then, there's no reason for this to happen
+                LOGGER.warn("Failed to store the inventory of {} as changes to snapshot {}", previous.playerUuid(), snapshotId, e);
+                return new Restoration(snapshot, null);
+            }
+        }, workers);
+    }
+
+    /**
+     * Copies the player's current inventory and state. Runs on the main thread.
+     */
+    public PlayerCapture copy(Player player, SnapshotReason reason) {
+        repository.rememberPlayer(player.getUniqueId(), player.getName());
+        var start = System.nanoTime();
+        var copy = PlayerCapture.of(player, reason);
+        copyLatency.recordSince(start);
+        return copy;
+    }
+
+    private Snapshot serialize(PlayerCapture copy, boolean compress) {
+        var start = System.nanoTime();
+        var snapshot = copy.serialize(compress);
+        serializeLatency.recordSince(start);
+        capturedSize.record(snapshot.inventory().length);
+        return snapshot;
+    }
+
+    /**
+     * @param snapshot what the player held before the restore.
+     * @param diff     the slots which differ from the restored inventory, null if they couldn't be compared.
+     */
+    public record Restoration(Snapshot snapshot, @Nullable InventoryDiff diff) {
+    }
+}
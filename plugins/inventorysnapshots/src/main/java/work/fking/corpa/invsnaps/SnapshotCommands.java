@@ -0,0 +1,772 @@
+package work.fking.corpa.invsnaps;
+
+import net.kyori.adventure.text.Component;
+import org.bukkit.Bukkit;
+import org.bukkit.Material;
+import org.bukkit.command.Command;
+import org.bukkit.command.CommandExecutor;
+import org.bukkit.command.CommandSender;
+import org.bukkit.command.TabCompleter;
+import org.bukkit.entity.Player;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+
+import java.time.DateTimeException;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.IntPredicate;
+import java.util.function.Supplier;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+/**
+ * The {@code /inventorysnapshots} command.
+ * <p>
+ * Commands which read snapshots load and decode them on the worker pool, only the parts touching players or sending
+ * messages run back on the main thread. Every sender may only have a limited amount of these requests in progress.
+ */
+public final class SnapshotCommands implements CommandExecutor, TabCompleter {
+
+    private static final int LOOKUP_PAGE_SIZE = 10;
+    private static final int SEARCH_PAGE_SIZE = 10;
+    private static final int MAX_PLAYER_SUGGESTIONS = 20;
+    // items bigger than this, mostly filled containers, are only decoded when inspected on their own
+    private static final int INLINE_ITEM_MAX_BYTES = 1024;
+    private static final Duration DEFAULT_SEARCH_WINDOW = Duration.ofDays(7);
+    private static final Pattern DURATION = Pattern.compile("(\\d+)([dhm])");
+
+    private final InventorySnapshots plugin;
+    private final Logger logger;
+    private final SnapshotRepository repository;
+    private final SnapshotRollback rollback;
+    private final Metrics metrics;
+    private final SnapshotMessages messages;
+    private final Executor workers;
+    private final Executor mainThread;
+    private final int maxInFlightPerSender;
+
+    // only ever accessed from the main thread
+    private final Map<String, Integer> inFlight = new HashMap<>();
+    private final Set<Integer> restoring = new HashSet<>();
+    private final AtomicInteger totalInFlight = new AtomicInteger();
+
+    private SnapshotMigration migration;
+    private boolean rollingBack;
+
+    public SnapshotCommands(InventorySnapshots plugin, SnapshotRepository repository, SnapshotRollback rollback, Metrics metrics, Executor workers, int maxInFlightPerSender) {
+        this.plugin = plugin;
+        this.logger = plugin.getSLF4JLogger();
+        this.repository = repository;
+        this.rollback = rollback;
+        this.metrics = metrics;
+        this.messages = new SnapshotMessages(repository.players());
+        this.workers = workers;
+        this.mainThread = task -> Bukkit.getScheduler().runTask(plugin, task);
+        this.maxInFlightPerSender = maxInFlightPerSender;
+
+        metrics.gauge("commands.in_flight", totalInFlight::get);
+    }
+
+    /**
+     * Cancels the work the commands started in the background.
+     */
+    public void close() {
+        if (migration != null) {
+            migration.cancel();
+        }
+    }
+
+    @Override
+    public @Nullable List<String> onTabComplete(@NotNull CommandSender sender, @NotNull Command command, @NotNull String alias, @NotNull String[] args) {
+        var argPos = args.length;
+
+        if (argPos == 1) {
+            return List.of("lookup", "search", "diff", "rollback", "stats", "migrate");
+        } else if (argPos == 2) {
+            var subcommand = args[0];
+
+            if ("lookup".equals(subcommand)) {
+                return suggestPlayers(args[1]);
+            }
+            if ("search".equals(subcommand)) {
+                return suggestMaterials(args[1]);
+            }
+            if ("stats".equals(subcommand)) {
+                return List.of("metrics");
+            }
+        } else if (argPos == 3 && "rollback".equals(args[0])) {
+            return suggestPlayerList(args[2]);
+        } else if (argPos > 2 && "search".equals(args[0])) {
+            return List.of("named", "enchanted");
+        }
+        return List.of();
+    }
+
+    private List<String> suggestPlayers(String prefix) {
+        return repository.players().complete(prefix, MAX_PLAYER_SUGGESTIONS);
+    }
+
+    // completes the last name of a comma separated list
+    private List<String> suggestPlayerList(String arg) {
+        var separator = arg.lastIndexOf(',');
+        var previous = arg.substring(0, separator + 1);
+        var suggestions = new ArrayList<String>();
+
+        if (separator < 0 && "all".startsWith(arg)) {
+            suggestions.add("all");
+        }
+        for (var name : suggestPlayers(arg.substring(separator + 1))) {
+            suggestions.add(previous + name);
+        }
+        return suggestions;
+    }
+
+    private List<String> suggestMaterials(String prefix) {
+        var upperPrefix = prefix.toUpperCase(Locale.ROOT);
+        return Arrays.stream(Material.values())
+                     .filter(material -> material.isItem() && !material.isAir() && material.name().startsWith(upperPrefix))
+                     .map(material -> material.name().toLowerCase(Locale.ROOT))
+                     .collect(Collectors.toList());
+    }
+
+    @Override
+    public boolean onCommand(@NotNull CommandSender sender, @NotNull Command command, @NotNull String label, @NotNull String[] args) {
+
+        if (args.length == 0) {
+            sender.sendMessage("Insufficient amount of arguments.");
+            return true;
+        }
+        var subCommand = args[0];
+
+        switch (subCommand) {
+            case "restore" -> handleRestore(sender, Arrays.copyOfRange(args, 1, args.length));
+            case "lookup" -> handleLookup(sender, Arrays.copyOfRange(args, 1, args.length));
+            case "search" -> handleSearch(sender, Arrays.copyOfRange(args, 1, args.length));
+            case "diff" -> handleDiff(sender, Arrays.copyOfRange(args, 1, args.length));
+            case "rollback" -> handleRollback(sender, Arrays.copyOfRange(args, 1, args.length));
+            case "stats" -> handleStats(sender, Arrays.copyOfRange(args, 1, args.length));
+            case "migrate" -> handleMigrate(sender);
+            default -> {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * {@code /is restore <id> [confirm] [all|hotbar|storage|armor|offhand|ender_chest|experience|location]}
+     */
+    private void handleRestore(CommandSender sender, String[] args) {
+        if (args.length < 1) {
+            sender.sendMessage("Insufficient amount of arguments.");
+            return;
+        }
+        int snapshotId;
+
+        try {
+            snapshotId = Integer.parseInt(args[0]);
+        } catch (NumberFormatException e) {
+            sender.sendMessage("Invalid snapshot id.");
+            return;
+        }
+        var part = RestorePart.ALL;
+
+        for (int i = 1; i < args.length; i++) {
+            if (!"confirm".equals(args[i])) {
+                try {
+                    part = RestorePart.valueOf(args[i].toUpperCase(Locale.ROOT));
+                } catch (IllegalArgumentException e) {
+                    sender.sendMessage("Unknown part, expected one of all, hotbar, storage, armor, offhand, ender_chest, experience or location.");
+                    return;
+                }
+            }
+        }
+        if (!restoring.add(snapshotId)) {
+            sender.sendMessage("This snapshot is already being restored.");
+            return;
+        }
+        var restoredPart = part;
+
+        runAsync(sender, () -> loadSnapshot(snapshotId, restoredPart::contains, Integer.MAX_VALUE, restoredPart.sections), loaded -> {
+            if (loaded == null) {
+                sender.sendMessage("Could not find the requested player snapshot.");
+                return;
+            }
+            var player = plugin.getServer().getPlayer(loaded.snapshot().playerUuid());
+
+            if (player == null) {
+                sender.sendMessage("The player is not online, cannot restore snapshot.");
+                return;
+            }
+            var sections = loaded.state() == null ? Set.<PlayerState.Section>of() : loaded.state().sections();
+
+            // older snapshots only hold the inventory
+            if (restoredPart.isStateOnly() && !sections.containsAll(restoredPart.sections)) {
+                sender.sendMessage("This snapshot doesn't hold the player's " + restoredPart.displayName() + ".");
+                return;
+            }
+            // only the slots which differ are restored, and the player's current state is kept just in case...
+            plugin.restore(player, snapshotId, loaded.inventory(), restoredPart::contains).thenCompose(repository::save);
+
+            if (loaded.state() != null) {
+                plugin.restoreState(player, loaded.state(), loaded.enderChest(), restoredPart.sections);
+            }
+            var restored = restoredPart == RestorePart.ALL ? "inventory" : restoredPart.displayName();
+            sender.sendMessage(Component.text("Successfully restored the player's " + restored + " to the snapshot.").color(SnapshotMessages.PRIMARY_TEXT_COLOR));
+            player.sendMessage(Component.text("Your inventory has been restored to a previous state.").color(SnapshotMessages.SECONDARY_TEXT_COLOR));
+        }).thenRun(() -> restoring.remove(snapshotId));
+    }
+
+    private void handleLookup(CommandSender sender, String[] args) {
+        if (args.length < 1) {
+            sender.sendMessage("Insufficient amount of arguments.");
+            return;
+        }
+        var subject = args[0];
+
+        try {
+            // if the subject is an integer, we're looking up at a specific snapshot
+            var snapshotId = Integer.parseInt(subject);
+
+            if (args.length > 1) {
+                handleSlotLookup(sender, snapshotId, args[1]);
+                return;
+            }
+            runAsync(sender, () -> loadSnapshot(snapshotId, slot -> true, INLINE_ITEM_MAX_BYTES), loaded -> {
+                if (loaded == null) {
+                    sender.sendMessage("Could not find the requested player snapshot.");
+                    return;
+                }
+                sender.sendMessage(messages.buildSnapshotDetails(loaded.snapshot(), loaded.inventory()));
+            });
+        } catch (NumberFormatException e) {
+            handlePlayerLookup(sender, subject, args.length > 1 ? args[1] : null);
+        }
+    }
+
+    private void handleSlotLookup(CommandSender sender, int snapshotId, String slotArg) {
+        int slot;
+
+        try {
+            slot = Integer.parseInt(slotArg);
+        } catch (NumberFormatException e) {
+            sender.sendMessage("Invalid slot.");
+            return;
+        }
+        runAsync(sender, () -> loadSnapshot(snapshotId, decoded -> decoded == slot, Integer.MAX_VALUE), loaded -> {
+            if (loaded == null) {
+                sender.sendMessage("Could not find the requested player snapshot.");
+                return;
+            }
+            var itemStack = slot >= 0 && slot < loaded.inventory().size() ? loaded.inventory().item(slot) : null;
+
+            if (itemStack == null) {
+                sender.sendMessage("This slot is empty.");
+                return;
+            }
+            sender.sendMessage(
+                    Component.empty()
+                             .append(Component.text("Slot " + slot + ":").color(SnapshotMessages.PRIMARY_TEXT_COLOR))
+                             .append(Component.space())
+                             .append(messages.buildItem(itemStack))
+            );
+        });
+    }
+
+    /**
+     * Offline players are found by the name they last had when a snapshot of them was taken, or by their id.
+     */
+    private void handlePlayerLookup(CommandSender sender, String subject, @Nullable String page) {
+        var player = findPlayer(subject);
+
+        if (player == null) {
+            sender.sendMessage("Unknown player.");
+            return;
+        }
+        SnapshotPage.Cursor cursor = null;
+
+        if (page != null) {
+            try {
+                cursor = SnapshotPage.Cursor.parse(page);
+            } catch (IllegalArgumentException e) {
+                sender.sendMessage("Invalid page.");
+                return;
+            }
+        }
+        var playerUuid = player.playerUuid();
+        var playerName = player.name();
+        var pageCursor = cursor;
+
+        runAsync(sender, () -> repository.findForList(playerUuid, pageCursor, LOOKUP_PAGE_SIZE), snapshotPage -> {
+            if (snapshotPage.summaries().isEmpty()) {
+                sender.sendMessage(pageCursor == null ? "This player doesn't have any snapshots." : "There are no more snapshots.");
+                return;
+            }
+            sender.sendMessage(messages.buildSnapshotList(playerName, snapshotPage));
+        });
+    }
+
+    /**
+     * {@code /is diff <id> <other id|current>}, lists the slots which differ from the first snapshot to the second one,
+     * or to the player's current inventory.
+     */
+    private void handleDiff(CommandSender sender, String[] args) {
+        if (args.length < 2) {
+            sender.sendMessage("Insufficient amount of arguments.");
+            return;
+        }
+        int fromId;
+        var toId = -1;
+
+        try {
+            fromId = Integer.parseInt(args[0]);
+
+            if (!"current".equals(args[1])) {
+                toId = Integer.parseInt(args[1]);
+            }
+        } catch (NumberFormatException e) {
+            sender.sendMessage("Invalid snapshot id.");
+            return;
+        }
+        if (toId < 0) {
+            runAsync(sender, () -> loadSnapshot(fromId, slot -> true, INLINE_ITEM_MAX_BYTES), from -> {
+                if (from == null) {
+                    sender.sendMessage("Could not find the requested player snapshot.");
+                    return;
+                }
+                var player = plugin.getServer().getPlayer(from.snapshot().playerUuid());
+
+                if (player == null) {
+                    sender.sendMessage("The player is not online, cannot compare to their current inventory.");
+                    return;
+                }
+                // only copied on the main thread, serialized and compared on the workers like captures are
+                var contents = PlayerCapture.copy(player.getInventory().getContents());
+
+                runAsync(sender, () -> InventoryDiff.compare(from.inventory(), InventoryView.of(ItemStackSerializer.serialize(contents))), diff -> {
+                    sender.sendMessage(messages.buildDiff(from.snapshot(), from.inventory(), "current inventory", diff, slot -> slot < contents.length && contents[slot] != null ? messages.buildItem(contents[slot]) : null));
+                });
+            });
+            return;
+        }
+        var otherId = toId;
+
+        runAsync(sender, () -> {
+            var from = loadSnapshot(fromId, slot -> false, 0);
+            var to = loadSnapshot(otherId, slot -> false, 0);
+
+            if (from == null || to == null) {
+                return null;
+            }
+            var diff = InventoryDiff.compare(from.inventory(), to.inventory());
+
+            // only the changed items are shown, they're the only ones worth decoding
+            for (var change : diff.changes()) {
+                decodeInline(from.inventory(), change.slot());
+                decodeInline(to.inventory(), change.slot());
+            }
+            return new LoadedDiff(from, to, diff);
+        }, loaded -> {
+            if (loaded == null) {
+                sender.sendMessage("Could not find the requested player snapshots.");
+                return;
+            }
+            var to = loaded.to();
+            var from = loaded.from();
+            sender.sendMessage(messages.buildDiff(from.snapshot(), from.inventory(), "snapshot " + to.snapshot().id(), loaded.diff(), slot -> messages.buildSlot(to.snapshot().id(), to.inventory(), slot)));
+        });
+    }
+
+    private static void decodeInline(InventoryView inventory, int slot) {
+        if (slot < inventory.size() && inventory.serializedSize(slot) <= INLINE_ITEM_MAX_BYTES) {
+            inventory.decode(slot);
+        }
+    }
+
+    /**
+     * {@code /is search <material> [min amount] [since, like 7d, 12h or 30m] [named] [enchanted] [page]}, where named and
+     * enchanted only find snapshots with a stack of the material having a custom name, or enchantments.
+     */
+    private void handleSearch(CommandSender sender, String[] args) {
+        if (args.length < 1) {
+            sender.sendMessage("Insufficient amount of arguments.");
+            return;
+        }
+        var material = Material.matchMaterial(args[0]);
+
+        if (material == null || material.isAir()) {
+            sender.sendMessage("Unknown material.");
+            return;
+        }
+        var minAmount = 1;
+        var flags = 0;
+        var window = DEFAULT_SEARCH_WINDOW;
+        MaterialIndex.Cursor cursor = null;
+
+        for (int i = 1; i < args.length; i++) {
+            var arg = args[i];
+
+            try {
+                var duration = parseDuration(arg);
+
+                if (duration != null) {
+                    window = duration;
+                } else if ("named".equals(arg)) {
+                    flags |= MaterialIndex.FLAG_NAMED;
+                } else if ("enchanted".equals(arg)) {
+                    flags |= MaterialIndex.FLAG_ENCHANTED;
+                } else if (arg.indexOf(':') >= 0) {
+                    cursor = MaterialIndex.Cursor.parse(arg);
+                } else {
+                    minAmount = Math.max(1, Integer.parseInt(arg));
+                }
+            } catch (IllegalArgumentException | ArithmeticException e) {
+                sender.sendMessage("Invalid argument: " + arg);
+                return;
+            }
+        }
+        LocalDateTime since;
+
+        try {
+            since = LocalDateTime.now().minus(window);
+        } catch (DateTimeException | ArithmeticException e) {
+            sender.sendMessage("The time window is too large.");
+            return;
+        }
+        var materialName = material.name();
+        var searchMinAmount = minAmount;
+        var searchFlags = flags;
+        var searchWindow = window;
+        var pageCursor = cursor;
+
+        runAsync(sender, () -> {
+            try {
+                return repository.search(materialName, searchMinAmount, searchFlags, since, pageCursor, SEARCH_PAGE_SIZE);
+            } catch (UnsupportedOperationException e) {
+                return null;
+            }
+        }, page -> {
+            if (page == null) {
+                sender.sendMessage("Searching snapshots requires the sqlite storage backend.");
+                return;
+            }
+            if (page.matches().isEmpty()) {
+                sender.sendMessage(pageCursor == null ? "No snapshots hold this material." : "There are no more snapshots.");
+                return;
+            }
+            var command = "/is search " + materialName.toLowerCase(Locale.ROOT) + " " + searchMinAmount + " " + SnapshotMessages.formatSearchWindow(searchWindow)
+                    + ((searchFlags & MaterialIndex.FLAG_NAMED) != 0 ? " named" : "")
+                    + ((searchFlags & MaterialIndex.FLAG_ENCHANTED) != 0 ? " enchanted" : "");
+            sender.sendMessage(messages.buildSearchResults(command, page));
+        });
+    }
+
+    /**
+     * {@code /is rollback <time> [all|player,player...] [confirm]}, where the time is how long ago like 30m, 2h or 1d,
+     * a time of the last day like 14:30, or a date and time like 2022-03-01T14:30.
+     * <p>
+     * Every player is rolled back to their latest snapshot taken before that time. Without confirming, only tells how
+     * many players would be.
+     */
+    private void handleRollback(CommandSender sender, String[] args) {
+        if (args.length < 1) {
+            sender.sendMessage("Insufficient amount of arguments.");
+            return;
+        }
+        LocalDateTime before;
+
+        try {
+            before = parseTime(args[0]);
+        } catch (IllegalArgumentException | ArithmeticException | DateTimeException e) {
+            sender.sendMessage("Invalid time, expected how long ago like 30m, 2h or 1d, a time like 14:30 or a date like 2022-03-01T14:30.");
+            return;
+        }
+        var confirmed = args.length > 1 && "confirm".equals(args[args.length - 1]);
+        var playersArg = args.length > 1 && !"confirm".equals(args[1]) ? args[1] : "all";
+        List<UUID> playerUuids = null;
+
+        if (!"all".equals(playersArg)) {
+            playerUuids = new ArrayList<>();
+
+            for (var name : playersArg.split(",")) {
+                var player = findPlayer(name);
+
+                if (player == null) {
+                    sender.sendMessage("Unknown player: " + name);
+                    return;
+                }
+                playerUuids.add(player.playerUuid());
+            }
+        }
+        if (rollingBack) {
+            sender.sendMessage("A rollback is already in progress.");
+            return;
+        }
+        var targetUuids = playerUuids;
+
+        if (!confirmed) {
+            runAsync(sender, () -> repository.findLatestBefore(before, targetUuids), snapshots -> {
+                if (snapshots.isEmpty()) {
+                    sender.sendMessage("No player has a snapshot from before that time.");
+                    return;
+                }
+                var online = snapshots.stream().filter(snapshot -> plugin.getServer().getPlayer(snapshot.playerUuid()) != null).count();
+                sender.sendMessage(messages.buildRollbackConfirmation(before, playersArg, snapshots, online));
+            });
+            return;
+        }
+        rollingBack = true;
+        var online = plugin.getServer().getOnlinePlayers().stream().map(Player::getUniqueId).collect(Collectors.toSet());
+
+        runAsync(sender, () -> rollback.prepare(repository.findLatestBefore(before, targetUuids), online), restores -> {
+            if (restores.isEmpty()) {
+                sender.sendMessage("No player has a snapshot from before that time.");
+                return;
+            }
+            sender.sendMessage(Component.text("Rolling back " + restores.size() + " players...").color(SnapshotMessages.PRIMARY_TEXT_COLOR));
+            rollback.start(restores, result -> {
+                rollingBack = false;
+                sender.sendMessage(Component.text("Rolled back " + result.restored() + " online players, " + result.deferred()
+                        + " offline players will be rolled back when they join.").color(SnapshotMessages.PRIMARY_TEXT_COLOR));
+            });
+        }).thenRun(() -> rollingBack = rollback.isRunning());
+    }
+
+    /**
+     * @throws DateTimeException if the time is neither a duration, a time or a date and time.
+     */
+    private static LocalDateTime parseTime(String arg) {
+        var duration = parseDuration(arg);
+        var now = LocalDateTime.now();
+
+        if (duration != null) {
+            return now.minus(duration);
+        }
+        if (arg.indexOf('T') < 0) {
+            var today = LocalTime.parse(arg).atDate(now.toLocalDate());
+            return today.isAfter(now) ? today.minusDays(1) : today;
+        }
+        return LocalDateTime.parse(arg);
+    }
+
+    /**
+     * Parses a duration like 7d, 12h or 30m.
+     *
+     * @return null if the argument isn't a duration.
+     */
+    private static @Nullable Duration parseDuration(String arg) {
+        var matcher = DURATION.matcher(arg);
+
+        if (!matcher.matches()) {
+            return null;
+        }
+        var amount = Long.parseLong(matcher.group(1));
+        return switch (matcher.group(2)) {
+            case "d" -> Duration.ofDays(amount);
+            case "h" -> Duration.ofHours(amount);
+            default -> Duration.ofMinutes(amount);
+        };
+    }
+
+    private @Nullable PlayerIndex.Entry findPlayer(String subject) {
+        var online = plugin.getServer().getPlayerExact(subject);
+
+        if (online != null) {
+            return new PlayerIndex.Entry(online.getUniqueId(), online.getName());
+        }
+        var indexed = repository.players().find(subject);
+
+        if (indexed != null) {
+            return indexed;
+        }
+        try {
+            var playerUuid = UUID.fromString(subject);
+            var name = repository.players().name(playerUuid);
+            return new PlayerIndex.Entry(playerUuid, name == null ? subject : name);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private void handleStats(CommandSender sender, String[] args) {
+        if (args.length > 0 && "metrics".equals(args[0])) {
+            sender.sendMessage(messages.buildMetrics(metrics));
+            return;
+        }
+        var stats = repository.writerStats();
+        var cacheStats = repository.cacheStats();
+
+        sender.sendMessage(
+                Component.empty()
+                         .append(messages.buildLine("Write queue:", stats.queueDepth() + "/" + stats.queueCapacity()))
+                         .append(messages.buildLine("Snapshots written:", stats.written() + " in " + stats.batches() + " batches"))
+                         .append(messages.buildLine("Batch size:", String.format("%.1f avg, %d last, %d largest", stats.averageBatchSize(), stats.lastBatchSize(), stats.largestBatchSize())))
+                         .append(messages.buildLine("Failed writes:", String.valueOf(stats.failed())))
+                         .append(messages.buildLine("Queue full stalls:", String.valueOf(stats.stalls())))
+                         .append(messages.buildLine("Dropped on the main thread:", String.valueOf(stats.dropped())))
+                         .append(messages.buildLine("Snapshot cache:", cacheStats.entries() + " entries, " + SnapshotMessages.formatBytes(cacheStats.bytes()) + " of " + SnapshotMessages.formatBytes(cacheStats.maxBytes())))
+                         .append(messages.buildLine("Cache lookups:", String.format("%d hits, %d misses (%.1f%%), %d evicted", cacheStats.hits(), cacheStats.misses(), cacheStats.hitRate() * 100, cacheStats.evictions())))
+                         .append(messages.buildLine("Inventory views:", cacheStats.viewHits() + " reused, " + cacheStats.viewMisses() + " read"))
+        );
+    }
+
+    private void handleMigrate(CommandSender sender) {
+        if (migration != null) {
+            sender.sendMessage("A migration is already running.");
+            return;
+        }
+        if (repository.storageVersion() == ItemStackSerializer.VERSION_PLAIN) {
+            sender.sendMessage("Snapshots are stored uncompressed, there is nothing to migrate.");
+            return;
+        }
+        migration = new SnapshotMigration(repository, logger, result -> mainThread.execute(() -> {
+            migration = null;
+
+            if (result.failure() != null) {
+                sender.sendMessage("The migration failed after migrating " + result.migrated() + " snapshots, check the server logs.");
+                return;
+            }
+            var message = result.cancelled() ? "Migration cancelled" : "Migration complete";
+            sender.sendMessage(Component.text(message + ", migrated " + result.migrated() + " snapshots from "
+                    + SnapshotMessages.formatBytes(result.bytesBefore()) + " to " + SnapshotMessages.formatBytes(result.bytesAfter()) + ".").color(SnapshotMessages.PRIMARY_TEXT_COLOR));
+        }));
+        Bukkit.getScheduler().runTaskAsynchronously(plugin, migration);
+        sender.sendMessage(Component.text("Migrating old snapshots to the current storage format in the background...").color(SnapshotMessages.PRIMARY_TEXT_COLOR));
+    }
+
+    /**
+     * Runs the task on the worker pool and hands its result to the callback on the main thread.
+     *
+     * @return a future completed on the main thread once the callback has run, or right away if the sender already
+     * has too many requests in progress.
+     */
+    private <T> CompletableFuture<Void> runAsync(CommandSender sender, Supplier<T> task, Consumer<T> callback) {
+        var key = sender instanceof Player player ? player.getUniqueId().toString() : sender.getName();
+        var requests = inFlight.getOrDefault(key, 0);
+
+        if (requests >= maxInFlightPerSender) {
+            sender.sendMessage("You already have requests in progress, please wait for them to complete.");
+            return CompletableFuture.completedFuture(null);
+        }
+        inFlight.put(key, requests + 1);
+        totalInFlight.incrementAndGet();
+
+        return CompletableFuture.supplyAsync(task, workers).handleAsync((result, error) -> {
+            inFlight.computeIfPresent(key, (ignored, count) -> count > 1 ? count - 1 : null);
+            totalInFlight.decrementAndGet();
+
+            try {
+                if (error != null) {
+                    throw error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+                }
+                callback.accept(result);
+            } catch (Throwable e) {
+                logger.warn("Failed to handle command for {}", sender.getName(), e);
+                sender.sendMessage("Something went wrong, check the server logs.");
+            }
+            return null;
+        }, mainThread);
+    }
+
+    /**
+     * @param decode       the slots whose items are decoded right away, for the main thread not to have to.
+     * @param maxItemBytes items bigger than this are left for later.
+     */
+    private @Nullable LoadedSnapshot loadSnapshot(int snapshotId, IntPredicate decode, int maxItemBytes) {
+        return loadSnapshot(snapshotId, decode, maxItemBytes, Set.of());
+    }
+
+    /**
+     * @param sections the sections of the snapshot's state which are read too, the whole ender chest is decoded.
+     */
+    private @Nullable LoadedSnapshot loadSnapshot(int snapshotId, IntPredicate decode, int maxItemBytes, Set<PlayerState.Section> sections) {
+        var snapshot = repository.findById(snapshotId);
+
+        if (snapshot == null) {
+            return null;
+        }
+        var inventory = repository.inventory(snapshot);
+
+        for (int slot = 0; slot < inventory.size(); slot++) {
+            if (decode.test(slot) && inventory.serializedSize(slot) <= maxItemBytes) {
+                inventory.decode(slot);
+            }
+        }
+        var state = sections.isEmpty() ? null : snapshot.playerState();
+        InventoryView enderChest = null;
+
+        if (state != null && state.enderChest() != null && sections.contains(PlayerState.Section.ENDER_CHEST)) {
+            enderChest = InventoryView.of(state.enderChest());
+
+            for (int slot = 0; slot < enderChest.size(); slot++) {
+                enderChest.decode(slot);
+            }
+        }
+        return new LoadedSnapshot(snapshot, inventory, state, enderChest);
+    }
+
+    /**
+     * A snapshot along with its inventory, the items the main thread needs are decoded beforehand, and the sections of
+     * its state which were asked for.
+     */
+    private record LoadedSnapshot(Snapshot snapshot, InventoryView inventory, @Nullable PlayerState state, @Nullable InventoryView enderChest) {
+    }
+
+    private record LoadedDiff(LoadedSnapshot from, LoadedSnapshot to, InventoryDiff diff) {
+    }
+
+    /**
+     * Parts of a snapshot which can be restored on their own: slots of a player's inventory, as laid out by
+     * {@link org.bukkit.inventory.PlayerInventory#getContents()}, and sections of their state. Teleporting players back
+     * is never done unless asked for.
+     */
+    private enum RestorePart {
+        ALL(0, Integer.MAX_VALUE, PlayerState.Section.ENDER_CHEST, PlayerState.Section.EXPERIENCE),
+        HOTBAR(0, 8),
+        STORAGE(9, 35),
+        ARMOR(36, 39),
+        OFFHAND(40, 40),
+        ENDER_CHEST(0, -1, PlayerState.Section.ENDER_CHEST),
+        EXPERIENCE(0, -1, PlayerState.Section.EXPERIENCE),
+        LOCATION(0, -1, PlayerState.Section.LOCATION);
+
+        private final int firstSlot;
+        private final int lastSlot;
+        private final Set<PlayerState.Section> sections;
+
+        RestorePart(int firstSlot, int lastSlot, PlayerState.Section... sections) {
+            this.firstSlot = firstSlot;
+            this.lastSlot = lastSlot;
+            this.sections = sections.length == 0 ? EnumSet.noneOf(PlayerState.Section.class) : EnumSet.copyOf(Arrays.asList(sections));
+        }
+
+        private boolean contains(int slot) {
+            return slot >= firstSlot && slot <= lastSlot;
+        }
+
+        private boolean isStateOnly() {
+            return lastSlot < firstSlot;
+        }
+
+        private String displayName() {
+            return name().toLowerCase(Locale.ROOT).replace('_', ' ');
+        }
+    }
+}
@@ -0,0 +1,284 @@
+package work.fking.corpa.invsnaps;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of the snapshots which haven't been committed to the database yet, so that the snapshots queued
+ * when the server stops or crashes are not lost. The journal is replayed on the next start.
+ * <p>
+ * Appending only queues the snapshot, the journal's own thread encodes the queued snapshots and writes them with a
+ * single fsync for the whole group. Once every appended snapshot has been committed to the database the journal is
+ * truncated. A snapshot may end up both in the journal and in the database, replaying has to skip those. Snapshots
+ * the database failed to write are written back to the journal whenever it's truncated, for the next start to retry.
+ * <p>
+ * Every record is framed as {@code [length][crc32][payload]}, a torn record at the end of the file is ignored.
+ */
+public final class SnapshotJournal {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SnapshotJournal.class);
+
+    private static final int MAX_GROUP_SIZE = 256;
+    private static final long POLL_TIMEOUT_MILLIS = 250;
+    private static final int MAX_RECORD_SIZE = 16 * 1024 * 1024;
+
+    private final Path file;
+    private final FileChannel channel;
+    private final LinkedBlockingQueue<Append> queue = new LinkedBlockingQueue<>();
+    private final AtomicLong outstanding = new AtomicLong();
+    private final Queue<Snapshot> failed = new ConcurrentLinkedQueue<>();
+    private final Thread thread;
+    private final Metrics.Histogram fsyncLatency;
+    private final Metrics.Histogram groupSize;
+
+    private volatile boolean running = true;
+    // only used by the journal's thread
+    private long failedSize;
+
+    private SnapshotJournal(Path file, FileChannel channel, Metrics metrics) {
+        this.file = file;
+        this.channel = channel;
+        this.thread = new Thread(this::run, "InventorySnapshots-Journal");
+        this.fsyncLatency = metrics.latency("journal.fsync");
+        this.groupSize = metrics.size("journal.group_size");
+    }
+
+    public static SnapshotJournal open(Path file, Metrics metrics) throws IOException {
+        var channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        channel.position(channel.size());
+        return new SnapshotJournal(file, channel, metrics);
+    }
+
+    /**
+     * Reads the snapshots left in the journal, to be called before the journal is started.
+     */
+    public List<Snapshot> readAll() throws IOException {
+        var snapshots = new ArrayList<Snapshot>();
+
+        try (var stream = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            while (true) {
+                int length;
+
+                try {
+                    length = stream.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                if (length <= 0 || length > MAX_RECORD_SIZE) {
+                    LOGGER.warn("Ignoring the corrupted end of the snapshot journal after {} snapshots", snapshots.size());
+                    break;
+                }
+                var checksum = stream.readInt();
+                var payload = stream.readNBytes(length);
+                var crc = new CRC32();
+                crc.update(payload);
+
+                if (payload.length != length || (int) crc.getValue() != checksum) {
+                    LOGGER.warn("Ignoring the torn end of the snapshot journal after {} snapshots", snapshots.size());
+                    break;
+                }
+                snapshots.add(decode(payload));
+            }
+        } catch (EOFException e) {
+            LOGGER.warn("Ignoring the torn end of the snapshot journal after {} snapshots", snapshots.size());
+        }
+        return snapshots;
+    }
+
+    /**
+     * Discards every record, to be called before the journal is started once the snapshots read have been replayed.
+     */
+    public void truncate() throws IOException {
+        channel.truncate(0);
+        channel.force(false);
+    }
+
+    public void start() {
+        thread.start();
+    }
+
+    /**
+     * Queues the snapshot to be appended to the journal.
+     *
+     * @return a future completed once the snapshot is durably stored in the journal.
+     */
+    public CompletableFuture<Void> append(Snapshot snapshot) {
+        var future = new CompletableFuture<Void>();
+
+        if (!running) {
+            future.completeExceptionally(new IllegalStateException("The snapshot journal has been closed"));
+            return future;
+        }
+        outstanding.incrementAndGet();
+        queue.add(new Append(snapshot, future));
+        return future;
+    }
+
+    /**
+     * To be called once an appended snapshot has been committed to the database, so that it may be truncated.
+     */
+    public void committed() {
+        outstanding.decrementAndGet();
+    }
+
+    /**
+     * To be called once the database failed to write an appended snapshot, which is then kept in the journal.
+     */
+    public void failed(Snapshot snapshot) {
+        failed.add(snapshot);
+        outstanding.decrementAndGet();
+    }
+
+    /**
+     * Writes the queued snapshots and closes the journal, waiting at most the given time.
+     */
+    public void close(Duration timeout) {
+        running = false;
+        try {
+            thread.join(timeout.toMillis());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (thread.isAlive()) {
+            LOGGER.warn("Timed out writing the snapshot journal, {} snapshots may be lost", queue.size());
+        }
+    }
+
+    private void run() {
+        var group = new ArrayList<Append>(MAX_GROUP_SIZE);
+
+        try (channel) {
+            while (running || !queue.isEmpty()) {
+                var first = queue.poll(POLL_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+
+                if (first == null) {
+                    truncateIfCommitted();
+                    continue;
+                }
+                group.add(first);
+                queue.drainTo(group, MAX_GROUP_SIZE - 1);
+                writeGroup(group);
+                group.clear();
+                truncateIfCommitted();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            LOGGER.warn("Failed to close the snapshot journal", e);
+        }
+    }
+
+    private void writeGroup(List<Append> group) {
+        try {
+            var output = new ByteArrayOutputStream(group.size() * 1024);
+
+            for (var append : group) {
+                writeRecord(output, append.snapshot());
+            }
+            groupSize.record(output.size());
+            var buffer = ByteBuffer.wrap(output.toByteArray());
+
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            var start = System.nanoTime();
+            channel.force(false);
+            fsyncLatency.recordSince(start);
+            group.forEach(append -> append.future().complete(null));
+        } catch (IOException e) {
+            LOGGER.warn("Failed to append {} snapshots to the journal", group.size(), e);
+            group.forEach(append -> append.future().completeExceptionally(e));
+        }
+    }
+
+    private void truncateIfCommitted() {
+        try {
+            // a snapshot committed before it was journaled may still be appended afterwards, replaying skips those
+            if (outstanding.get() == 0 && queue.isEmpty() && channel.size() > failedSize) {
+                channel.truncate(0);
+                failedSize = 0;
+
+                if (!failed.isEmpty()) {
+                    var output = new ByteArrayOutputStream();
+
+                    for (var snapshot : failed) {
+                        writeRecord(output, snapshot);
+                    }
+                    var buffer = ByteBuffer.wrap(output.toByteArray());
+
+                    while (buffer.hasRemaining()) {
+                        channel.write(buffer);
+                    }
+                    channel.force(false);
+                    failedSize = output.size();
+                }
+            }
+        } catch (IOException e) {
+            LOGGER.warn("Failed to truncate the snapshot journal", e);
+        }
+    }
+
+    private static void writeRecord(ByteArrayOutputStream output, Snapshot snapshot) throws IOException {
+        var payload = new ByteArrayOutputStream(snapshot.inventory().length + (snapshot.state() == null ? 0 : snapshot.state().length) + 64);
+        var stream = new DataOutputStream(payload);
+        stream.writeLong(snapshot.playerUuid().getMostSignificantBits());
+        stream.writeLong(snapshot.playerUuid().getLeastSignificantBits());
+        stream.writeUTF(snapshot.reason().name());
+        stream.writeLong(snapshot.createdAt().toEpochSecond(ZoneOffset.UTC));
+        stream.writeInt(snapshot.createdAt().getNano());
+        stream.writeInt(snapshot.inventory().length);
+        stream.write(snapshot.inventory());
+
+        // absent from the records of snapshots without a state, and from the records written before it was captured
+        if (snapshot.state() != null) {
+            stream.writeInt(snapshot.state().length);
+            stream.write(snapshot.state());
+        }
+        var bytes = payload.toByteArray();
+        var crc = new CRC32();
+        crc.update(bytes);
+        var header = new DataOutputStream(output);
+        header.writeInt(bytes.length);
+        header.writeInt((int) crc.getValue());
+        header.write(bytes);
+    }
+
+    private static Snapshot decode(byte[] payload) throws IOException {
+        var stream = new DataInputStream(new ByteArrayInputStream(payload));
+        var playerUuid = new UUID(stream.readLong(), stream.readLong());
+        var reason = SnapshotReason.valueOf(stream.readUTF());
+        var createdAt = LocalDateTime.ofEpochSecond(stream.readLong(), stream.readInt(), ZoneOffset.UTC);
+        var inventory = stream.readNBytes(stream.readInt());
+        var state = stream.available() > 0 ? stream.readNBytes(stream.readInt()) : null;
+        return new Snapshot(-1, playerUuid, reason, inventory, createdAt, state);
+    }
+
+    private record Append(Snapshot snapshot, CompletableFuture<Void> future) {
+    }
+}
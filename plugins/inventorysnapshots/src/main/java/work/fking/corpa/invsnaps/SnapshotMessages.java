@@ -0,0 +1,364 @@
+package work.fking.corpa.invsnaps;
+
+import com.google.common.base.Strings;
+import net.kyori.adventure.text.Component;
+import net.kyori.adventure.text.JoinConfiguration;
+import net.kyori.adventure.text.event.ClickEvent;
+import net.kyori.adventure.text.event.HoverEvent;
+import net.kyori.adventure.text.format.TextColor;
+import org.bukkit.inventory.ItemStack;
+import org.jetbrains.annotations.Nullable;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.UUID;
+import java.util.function.IntFunction;
+
+/**
+ * Renders the messages of the {@code /inventorysnapshots} command. Doesn't touch the server, so that it can be used
+ * from any thread.
+ */
+public final class SnapshotMessages {
+
+    public static final TextColor PRIMARY_TEXT_COLOR = TextColor.color(0xFF9800);
+    public static final TextColor SECONDARY_TEXT_COLOR = TextColor.color(0xBDBDBD);
+    public static final TextColor TERTIARY_TEXT_COLOR = TextColor.color(0x26C6DA);
+
+    public static final DateTimeFormatter DATE_TIME_FORMATTER = DateTimeFormatter.ofPattern("y-M-d H:m:s");
+
+    private final PlayerIndex players;
+
+    public SnapshotMessages(PlayerIndex players) {
+        this.players = players;
+    }
+
+    /**
+     * @return the last known name of the player, or their uuid if unknown.
+     */
+    public String playerName(UUID playerUuid) {
+        var name = players.name(playerUuid);
+        return name == null ? playerUuid.toString() : name;
+    }
+
+    public Component buildMetrics(Metrics metrics) {
+        var message = Component.empty();
+
+        for (var entry : metrics.histograms().entrySet()) {
+            var summary = entry.getValue().summary();
+
+            if (summary.count() == 0) {
+                continue;
+            }
+            var unit = entry.getValue().unit();
+            message = message.append(buildLine(entry.getKey() + ":", summary.count() + "x, p50 " + formatValue(summary.p50(), unit)
+                    + ", p99 " + formatValue(summary.p99(), unit) + ", max " + formatValue(summary.max(), unit)));
+        }
+        for (var entry : metrics.counters().entrySet()) {
+            message = message.append(buildLine(entry.getKey() + ":", String.valueOf(entry.getValue().sum())));
+        }
+        for (var entry : metrics.gauges().entrySet()) {
+            message = message.append(buildLine(entry.getKey() + ":", String.valueOf(entry.getValue().getAsLong())));
+        }
+        return message;
+    }
+
+    private static String formatValue(long value, Metrics.Unit unit) {
+        if (unit == Metrics.Unit.BYTES) {
+            return formatBytes(value);
+        }
+        if (value < 1000) {
+            return value + "\u00B5s";
+        }
+        return String.format("%.1fms", value / 1000.0);
+    }
+
+    public Component buildSnapshotList(String playerName, SnapshotPage page) {
+        List<Component> lines = new ArrayList<>();
+        lines.add(Component.text("The following snapshots were found:").color(PRIMARY_TEXT_COLOR));
+
+        for (SnapshotSummary snapshot : page.summaries()) {
+            var event = ClickEvent.runCommand("/is lookup " + snapshot.id());
+            var timeAgo = formatDuration(snapshot.timeSince()) + " ago";
+            lines.add(
+                    Component.text()
+                             .content("[" + DATE_TIME_FORMATTER.format(snapshot.createdAt()) + "]")
+                             .color(TERTIARY_TEXT_COLOR)
+                             .hoverEvent(HoverEvent.showText(Component.text(timeAgo)))
+                             .clickEvent(event)
+                             .append(Component.space(), Component.text("(" + snapshot.reason().fancyReason() + ")").color(SECONDARY_TEXT_COLOR))
+                             .build()
+
+            );
+        }
+        if (page.hasNewer() || page.hasOlder()) {
+            lines.add(buildPageNavigation(playerName, page));
+        }
+        return Component.join(JoinConfiguration.separator(Component.newline()), lines);
+    }
+
+    public Component buildSearchResults(String command, MaterialIndex.Page page) {
+        List<Component> lines = new ArrayList<>();
+        lines.add(Component.text("The following snapshots were found:").color(PRIMARY_TEXT_COLOR));
+
+        for (var match : page.matches()) {
+            var snapshot = match.snapshot();
+            var playerName = playerName(snapshot.playerUuid());
+            var details = new StringBuilder().append(match.amount()).append("x");
+
+            if (match.enchanted()) {
+                details.append(", enchanted");
+            }
+            if (match.named()) {
+                details.append(", named");
+            }
+            lines.add(
+                    Component.text()
+                             .content("[" + DATE_TIME_FORMATTER.format(snapshot.createdAt()) + "]")
+                             .color(TERTIARY_TEXT_COLOR)
+                             .hoverEvent(HoverEvent.showText(Component.text(formatDuration(snapshot.timeSince()) + " ago")))
+                             .clickEvent(ClickEvent.runCommand("/is lookup " + snapshot.id()))
+                             .append(
+                                     Component.space(),
+                                     Component.text(playerName + " " + details
+                                             + " (" + snapshot.reason().fancyReason() + ")").color(SECONDARY_TEXT_COLOR)
+                             )
+                             .build()
+            );
+        }
+        var olderCursor = page.olderCursor();
+
+        if (olderCursor != null) {
+            lines.add(
+                    Component.text()
+                             .content("[Older >]")
+                             .color(TERTIARY_TEXT_COLOR)
+                             .clickEvent(ClickEvent.runCommand(command + " " + olderCursor))
+                             .build()
+            );
+        }
+        return Component.join(JoinConfiguration.separator(Component.newline()), lines);
+    }
+
+    public static String formatSearchWindow(Duration window) {
+        if (window.toMinutesPart() != 0) {
+            return window.toMinutes() + "m";
+        }
+        if (window.toHoursPart() != 0) {
+            return window.toHours() + "h";
+        }
+        return window.toDays() + "d";
+    }
+
+    private Component buildPageNavigation(String playerName, SnapshotPage page) {
+        return Component.join(
+                JoinConfiguration.separator(Component.space()),
+                buildPageLink("[< Newer]", playerName, page.newerCursor()),
+                buildPageLink("[Older >]", playerName, page.olderCursor())
+        );
+    }
+
+    private Component buildPageLink(String label, String playerName, @Nullable SnapshotPage.Cursor cursor) {
+        if (cursor == null) {
+            return Component.text(label).color(SECONDARY_TEXT_COLOR);
+        }
+        return Component.text()
+                        .content(label)
+                        .color(TERTIARY_TEXT_COLOR)
+                        .clickEvent(ClickEvent.runCommand("/is lookup " + playerName + " " + cursor))
+                        .build();
+    }
+
+    /**
+     * @param online the amount of the players who are online.
+     */
+    public Component buildRollbackConfirmation(LocalDateTime before, String playersArg, List<SnapshotSummary> snapshots, long online) {
+        // the exact time, so that confirming later still rolls back to the same snapshots
+        var command = "/is rollback " + before.truncatedTo(ChronoUnit.SECONDS) + " " + playersArg + " confirm";
+
+        return Component.empty()
+                        .append(buildLine("Roll back to:", DATE_TIME_FORMATTER.format(before)))
+                        .append(buildLine("Players:", snapshots.size() + ", " + online + " online"))
+                        .append(Component.text("Offline players are rolled back when they join. Roll back?").color(PRIMARY_TEXT_COLOR))
+                        .append(Component.space())
+                        .append(
+                                Component.text()
+                                         .content("[Confirm]")
+                                         .color(TERTIARY_TEXT_COLOR)
+                                         .clickEvent(ClickEvent.runCommand(command))
+                        );
+    }
+
+    public Component buildSnapshotDetails(Snapshot snapshot, InventoryView inventory) {
+        return Component.empty()
+                        .append(Component.text(Strings.repeat("+", 53)).color(PRIMARY_TEXT_COLOR))
+                        .append(Component.newline())
+                        .append(buildLine("Player:", playerName(snapshot.playerUuid())))
+                        .append(buildLine("Snapshot time:", DATE_TIME_FORMATTER.format(snapshot.createdAt())))
+                        .append(buildState(snapshot.playerState()))
+                        .append(buildItemList(snapshot.id(), inventory))
+                        .append(buildConfirmation(snapshot));
+    }
+
+    private Component buildState(@Nullable PlayerState state) {
+        if (state == null) {
+            return Component.empty();
+        }
+        var component = Component.empty();
+        var experience = state.experience();
+        var location = state.location();
+
+        if (experience != null) {
+            component = component.append(buildLine("Experience:", "level " + experience.level() + " (" + experience.total() + " points)"));
+        }
+        if (location != null) {
+            component = component.append(buildLine("Location:", String.format(Locale.ROOT, "%s %.1f, %.1f, %.1f", location.world(), location.x(), location.y(), location.z())));
+        }
+        return component;
+    }
+
+    /**
+     * @param toItems renders the item of a slot of the inventory compared to, or returns null if the slot is empty.
+     */
+    public Component buildDiff(Snapshot snapshot, InventoryView inventory, String toLabel, InventoryDiff diff, IntFunction<Component> toItems) {
+        List<Component> lines = new ArrayList<>();
+        lines.add(Component.text("Changes from snapshot " + snapshot.id() + " (" + DATE_TIME_FORMATTER.format(snapshot.createdAt()) + ") to the " + toLabel + ":").color(PRIMARY_TEXT_COLOR));
+
+        if (diff.isEmpty()) {
+            lines.add(Component.text("No differences.").color(SECONDARY_TEXT_COLOR));
+        }
+        for (var change : diff.changes()) {
+            var slot = change.slot();
+            var fromItem = buildSlot(snapshot.id(), inventory, slot);
+            var toItem = toItems.apply(slot);
+            lines.add(
+                    Component.empty()
+                             .append(Component.text("Slot " + slot + ":").color(PRIMARY_TEXT_COLOR))
+                             .append(Component.space())
+                             .append(fromItem == null ? Component.text("empty").color(SECONDARY_TEXT_COLOR) : fromItem)
+                             .append(Component.text(" \u2192 ").color(SECONDARY_TEXT_COLOR))
+                             .append(toItem == null ? Component.text("empty").color(SECONDARY_TEXT_COLOR) : toItem)
+            );
+        }
+        return Component.join(JoinConfiguration.separator(Component.newline()), lines);
+    }
+
+    public Component buildLine(String left, String right) {
+        return Component.empty()
+                        .append(Component.text(left).color(PRIMARY_TEXT_COLOR))
+                        .append(Component.space())
+                        .append(Component.text(right).color(SECONDARY_TEXT_COLOR))
+                        .append(Component.newline());
+    }
+
+    private Component buildConfirmation(Snapshot snapshot) {
+        var command = "/is restore " + snapshot.id() + " confirm";
+        return Component.text("Restore player snapshot?")
+                        .append(Component.space())
+                        .append(
+                                Component.text()
+                                         .content("[Yes]")
+                                         .color(TERTIARY_TEXT_COLOR)
+                                         .clickEvent(ClickEvent.runCommand(command))
+                        )
+                        .append(Component.space())
+                        .append(
+                                Component.text()
+                                         .content("[Armor only]")
+                                         .color(TERTIARY_TEXT_COLOR)
+                                         .clickEvent(ClickEvent.runCommand(command + " armor"))
+                        );
+    }
+
+    /**
+     * Items which haven't been decoded are listed by their id only, and can be clicked to be looked up on their own.
+     */
+    public Component buildItemList(int snapshotId, InventoryView inventory) {
+        var items = new ArrayList<Component>();
+
+        for (int slot = 0; slot < inventory.size(); slot++) {
+            var item = buildSlot(snapshotId, inventory, slot);
+
+            if (item != null) {
+                items.add(item);
+            }
+        }
+        return Component.empty()
+                        .append(Component.text("Items:").color(PRIMARY_TEXT_COLOR))
+                        .append(Component.space())
+                        .append(Component.join(JoinConfiguration.separator(Component.space()), items))
+                        .append(Component.newline());
+    }
+
+    /**
+     * @return null if the slot is empty.
+     */
+    public @Nullable Component buildSlot(int snapshotId, InventoryView inventory, int slot) {
+        if (slot >= inventory.size() || inventory.isEmpty(slot)) {
+            return null;
+        }
+        if (inventory.isDecoded(slot)) {
+            return buildItem(inventory.item(slot));
+        }
+        var peek = inventory.peek(slot);
+        var label = peek == null ? "slot " + slot : peek.count() + "x " + peek.id().substring(peek.id().indexOf(':') + 1);
+        return Component.text()
+                        .content("[" + label + "]")
+                        .color(TERTIARY_TEXT_COLOR)
+                        .hoverEvent(HoverEvent.showText(Component.text("Click to inspect")))
+                        .clickEvent(ClickEvent.runCommand("/is lookup " + snapshotId + " " + slot))
+                        .build();
+    }
+
+    public Component buildItem(ItemStack itemStack) {
+        return Component.join(JoinConfiguration.noSeparators(),
+                Component.text(itemStack.getAmount() + "x ").color(SECONDARY_TEXT_COLOR),
+                itemStack.displayName().hoverEvent(itemStack.asHoverEvent())
+        );
+    }
+
+    public static String formatBytes(long bytes) {
+        if (bytes < 1024) {
+            return bytes + " B";
+        }
+        if (bytes < 1024 * 1024) {
+            return String.format("%.1f KiB", bytes / 1024.0);
+        }
+        return String.format("%.1f MiB", bytes / (1024.0 * 1024.0));
+    }
+
+    private static String formatDuration(Duration duration) {
+        StringBuilder builder = new StringBuilder();
+        long seconds = duration.getSeconds();
+        long minutes = ((seconds % 3600) / 60);
+        long hours = seconds / 3600;
+
+        if (hours > 0) {
+            builder.append(hours).append(" hour");
+
+            if (hours > 1) {
+                builder.append('s');
+            }
+            builder.append(' ');
+        }
+        if (minutes > 0) {
+            builder.append(minutes).append(" minute");
+
+            if (minutes > 1) {
+                builder.append('s');
+            }
+            builder.append(' ');
+        }
+        seconds %= 60;
+        builder.append(seconds).append(" second");
+
+        if (seconds > 1) {
+            builder.append('s');
+        }
+        return builder.toString();
+    }
+}
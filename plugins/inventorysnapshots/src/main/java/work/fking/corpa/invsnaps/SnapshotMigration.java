@@ -0,0 +1,80 @@
+package work.fking.corpa.invsnaps;
+
+import org.slf4j.Logger;
+
+import java.util.function.Consumer;
+
+/**
+ * Re-encodes the snapshots which are not stored in the repository's current storage version, one chunk at a time so
+ * that the writer keeps interleaving regular saves in between chunks.
+ */
+public final class SnapshotMigration implements Runnable {
+
+    private static final int CHUNK_SIZE = 256;
+    private static final long CHUNK_PAUSE_MILLIS = 50;
+    private static final int PROGRESS_LOG_INTERVAL = 10_000;
+
+    private final SnapshotRepository repository;
+    private final Logger logger;
+    private final Consumer<Result> onCompletion;
+
+    private volatile boolean cancelled;
+
+    public SnapshotMigration(SnapshotRepository repository, Logger logger, Consumer<Result> onCompletion) {
+        this.repository = repository;
+        this.logger = logger;
+        this.onCompletion = onCompletion;
+    }
+
+    public void cancel() {
+        cancelled = true;
+    }
+
+    @Override
+    public void run() {
+        var lastId = 0;
+        var migrated = 0;
+        var bytesBefore = 0L;
+        var bytesAfter = 0L;
+        Exception failure = null;
+
+        try {
+            while (!cancelled) {
+                var chunk = repository.findForMigration(lastId, CHUNK_SIZE);
+
+                if (chunk.isEmpty()) {
+                    break;
+                }
+                var stored = repository.reencode(chunk).join();
+
+                for (int i = 0; i < chunk.size(); i++) {
+                    bytesBefore += chunk.get(i).inventory().length;
+                    bytesAfter += stored.get(i).inventory().length;
+                }
+                lastId = chunk.get(chunk.size() - 1).id();
+
+                if ((migrated + chunk.size()) / PROGRESS_LOG_INTERVAL > migrated / PROGRESS_LOG_INTERVAL) {
+                    logger.info("Migrated {} snapshots so far", migrated + chunk.size());
+                }
+                migrated += chunk.size();
+                Thread.sleep(CHUNK_PAUSE_MILLIS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            failure = e;
+        } catch (RuntimeException e) {
+            logger.warn("Snapshot migration failed", e);
+            failure = e;
+        }
+        onCompletion.accept(new Result(migrated, bytesBefore, bytesAfter, cancelled, failure));
+    }
+
+    public record Result(
+            int migrated,
+            long bytesBefore,
+            long bytesAfter,
+            boolean cancelled,
+            Exception failure
+    ) {
+    }
+}
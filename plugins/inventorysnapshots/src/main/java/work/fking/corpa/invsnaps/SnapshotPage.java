@@ -0,0 +1,80 @@
+package work.fking.corpa.invsnaps;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A page of a player's snapshot summaries, newest first.
+ */
+public record SnapshotPage(
+        List<SnapshotSummary> summaries,
+        boolean hasNewer,
+        boolean hasOlder
+) {
+
+    /**
+     * Builds the page out of the rows fetched for it, in the order they were fetched: newest first, or oldest first
+     * when fetching newer snapshots. One row more than the page size tells whether there's another page.
+     */
+    public static SnapshotPage fromRows(List<SnapshotSummary> rows, @Nullable Cursor cursor, int pageSize) {
+        if (rows.isEmpty()) {
+            return new SnapshotPage(rows, false, false);
+        }
+        var hasMore = rows.size() > pageSize;
+
+        if (hasMore) {
+            rows = rows.subList(0, pageSize);
+        }
+        if (cursor == null) {
+            return new SnapshotPage(rows, false, hasMore);
+        }
+        if (cursor.newer()) {
+            rows = new ArrayList<>(rows);
+            Collections.reverse(rows);
+            return new SnapshotPage(rows, hasMore, true);
+        }
+        return new SnapshotPage(rows, true, hasMore);
+    }
+
+    public @Nullable Cursor newerCursor() {
+        return hasNewer ? new Cursor(true, summaries.get(0).id()) : null;
+    }
+
+    public @Nullable Cursor olderCursor() {
+        return hasOlder ? new Cursor(false, summaries.get(summaries.size() - 1).id()) : null;
+    }
+
+    /**
+     * Position of a page relative to a snapshot: the snapshots right before or after it.
+     */
+    public record Cursor(boolean newer, int snapshotId) {
+
+        private static final String NEWER_PREFIX = "newer:";
+        private static final String OLDER_PREFIX = "older:";
+
+        /**
+         * @throws IllegalArgumentException if the input isn't a cursor previously created by {@link #toString()}.
+         */
+        public static Cursor parse(String input) {
+            try {
+                if (input.startsWith(NEWER_PREFIX)) {
+                    return new Cursor(true, Integer.parseInt(input.substring(NEWER_PREFIX.length())));
+                }
+                if (input.startsWith(OLDER_PREFIX)) {
+                    return new Cursor(false, Integer.parseInt(input.substring(OLDER_PREFIX.length())));
+                }
+            } catch (NumberFormatException ignored) {
+                // handled below
+            }
+            throw new IllegalArgumentException("Invalid page: " + input);
+        }
+
+        @Override
+        public String toString() {
+            return (newer ? NEWER_PREFIX : OLDER_PREFIX) + snapshotId;
+        }
+    }
+}
@@ -2,7 +2,10 @@ package work.fking.corpa.invsnaps;
 
 public enum SnapshotReason {
     PLAYER_DEATH("Player died"),
-    RESTORATION("Inventory restored");
+    RESTORATION("Inventory restored"),
+    PERIODIC("Periodic snapshot"),
+    PLAYER_JOIN("Player joined"),
+    PLAYER_QUIT("Player quit");
 
     private final String fancyReason;
 
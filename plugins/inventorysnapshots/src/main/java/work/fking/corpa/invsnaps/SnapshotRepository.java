@@ -1,104 +1,382 @@
 package work.fking.corpa.invsnaps;
 
-import org.jdbi.v3.core.Jdbi;
-import org.jdbi.v3.core.mapper.reflect.ConstructorMapper;
-import org.jdbi.v3.sqlite3.SQLitePlugin;
+import org.bukkit.configuration.ConfigurationSection;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
 import java.nio.file.Path;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Function;
 
+/**
+ * Front of the configured {@link SnapshotStore}: caches recent snapshots and journals saves until the store has
+ * written them. Keeps the {@link PlayerIndex} of every player with snapshots.
+ */
 public class SnapshotRepository {
 
-    private static final String CREATE_TABLE = """
-            CREATE TABLE IF NOT EXISTS inventory_snapshot (
-                id INTEGER PRIMARY KEY AUTOINCREMENT,
-                player_uuid VARCHAR(36) NOT NULL,
-                reason VARCHAR(32) NOT NULL,
-                inventory blob NOT NULL,
-                created_at datetime NOT NULL
-            );
-            """;
-    private static final String CREATE_INDEX = """
-            CREATE INDEX IF NOT EXISTS idx__player_uuid ON inventory_snapshot(player_uuid);
-            """;
-
-    private static final String INSERT = """
-            INSERT INTO 
-                inventory_snapshot(player_uuid, reason, inventory, created_at) 
-            VALUES 
-                (:playerUuid, :reason, :inventory, :createdAt)
-            """;
-
-    private static final String LIST_BY_PLAYER_ID = """
-            SELECT 
-                id, 
-                player_uuid,
-                reason,
-                inventory, 
-                created_at 
-            FROM 
-                inventory_snapshot 
-            WHERE 
-                player_uuid = :uuid 
-            ORDER BY 
-                created_at DESC 
-            LIMIT 5
-            """;
-
-    private static final String FIND_BY_ID = """
-            SELECT
-                id, 
-                player_uuid,
-                reason,
-                inventory, 
-                created_at 
-            FROM 
-                inventory_snapshot 
-            WHERE 
-                id = :id
-            """;
-
-    private final Jdbi jdbi;
-
-    private SnapshotRepository(Jdbi jdbi) {
-        this.jdbi = jdbi;
-    }
-
-    public static SnapshotRepository create(Path directory) {
-        var jdbi = Jdbi.create("jdbc:sqlite:" + directory.resolve("inventory_snapshots.sqlite")).installPlugin(new SQLitePlugin());
-
-        try (var handle = jdbi.open()) {
-            handle.execute(CREATE_TABLE);
-            handle.execute(CREATE_INDEX);
+    private static final Logger LOGGER = LoggerFactory.getLogger(SnapshotRepository.class);
+
+    private final SnapshotStore store;
+    private final Settings settings;
+    private final SnapshotCache cache;
+    private final PlayerIndex players = new PlayerIndex();
+    private final List<UUID> unnamedPlayers = new ArrayList<>();
+    private final SnapshotJournal journal;
+    private final Metrics metrics;
+    private final Metrics.Histogram saveLatency;
+
+    private SnapshotRepository(SnapshotStore store, Settings settings, SnapshotJournal journal, Metrics metrics) {
+        this.store = store;
+        this.settings = settings;
+        this.journal = journal;
+        this.metrics = metrics;
+        this.saveLatency = metrics.latency("save");
+        this.cache = new SnapshotCache(settings.snapshotCacheMib() * 1024L * 1024L, settings.snapshotCacheExpireSeconds(), metrics.latency("deserialize_item"), metrics.latency("read_inventory"));
+    }
+
+    public static SnapshotRepository create(
+            Path directory,
+            SqliteDatabase.Settings databaseSettings,
+            SegmentLogStore.Settings logSettings,
+            Settings settings,
+            Metrics metrics
+    ) throws SQLException, IOException {
+        var store = openStore(settings.backend(), directory, databaseSettings, logSettings, settings, metrics);
+        var journal = SnapshotJournal.open(directory.resolve("snapshots.journal"), metrics);
+        var repository = new SnapshotRepository(store, settings, journal, metrics);
+        repository.loadPlayers();
+        repository.replay(journal.readAll());
+        journal.start();
+        return repository;
+    }
+
+    public static SnapshotStore openStore(
+            Backend backend,
+            Path directory,
+            SqliteDatabase.Settings databaseSettings,
+            SegmentLogStore.Settings logSettings,
+            Settings settings,
+            Metrics metrics
+    ) throws SQLException, IOException {
+        return switch (backend) {
+            case SQLITE -> SqliteSnapshotStore.open(directory.resolve(SqliteSnapshotStore.FILE_NAME), databaseSettings, settings, metrics);
+            case LOG -> SegmentLogStore.open(directory.resolve(SegmentLogStore.DIRECTORY_NAME), logSettings, settings, metrics);
+        };
+    }
+
+    private void loadPlayers() {
+        var start = System.nanoTime();
+
+        store.forEachPlayer((playerUuid, name) -> {
+            if (name == null) {
+                unnamedPlayers.add(playerUuid);
+            } else {
+                players.put(playerUuid, name);
+            }
+        });
+        LOGGER.info("Indexed {} player names in {} ms, {} players have no known name", players.size(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), unnamedPlayers.size());
+    }
+
+    /**
+     * Writes the snapshots left in the journal by the last run, skipping the ones which made it into the store.
+     */
+    private void replay(List<Snapshot> snapshots) throws IOException {
+        var seen = new HashSet<JournalKey>();
+        var saves = new ArrayList<CompletableFuture<Snapshot>>();
+
+        for (var snapshot : snapshots) {
+            var key = new JournalKey(snapshot.playerUuid(), snapshot.createdAt(), snapshot.reason());
+
+            if (!seen.add(key) || store.contains(snapshot)) {
+                continue;
+            }
+            saves.add(store.save(snapshot));
+        }
+        // the journal is kept if anything failed, it will be replayed again on the next start
+        CompletableFuture.allOf(saves.toArray(CompletableFuture[]::new)).join();
+        journal.truncate();
+
+        if (!snapshots.isEmpty()) {
+            LOGGER.info("Replayed {} snapshots from the journal, {} were already stored", saves.size(), snapshots.size() - saves.size());
+        }
+    }
+
+    public @Nullable Snapshot findById(int id) {
+        var cached = cache.snapshot(id);
+
+        if (cached != null) {
+            return cached;
+        }
+        var snapshot = store.findById(id);
+
+        if (snapshot != null) {
+            cache.putSnapshot(snapshot);
         }
-        jdbi.registerRowMapper(Snapshot.class, ConstructorMapper.of(Snapshot.class));
-        return new SnapshotRepository(jdbi);
+        return snapshot;
+    }
+
+    /**
+     * Reads the snapshot's inventory, items are only decoded as they're accessed. Views are cached along with their
+     * decoded items, the items they hand out may be freely modified.
+     */
+    public InventoryView inventory(Snapshot snapshot) {
+        return cache.view(snapshot);
     }
 
-    public Snapshot findById(int id) {
-        try (var handle = jdbi.open()) {
-            return handle.createQuery(FIND_BY_ID)
-                         .bind("id", id)
-                         .mapTo(Snapshot.class)
-                         .one();
+    /**
+     * Lists a page of the player's snapshots, newest first. The most recent page is cached.
+     *
+     * @param cursor the page to fetch, or null for the most recent snapshots.
+     */
+    public SnapshotPage findForList(UUID playerUuid, @Nullable SnapshotPage.Cursor cursor, int pageSize) {
+        if (cursor == null) {
+            var cached = cache.latestPage(playerUuid, pageSize);
+
+            if (cached != null) {
+                return cached;
+            }
+            var generation = cache.generation();
+            var page = store.findForList(playerUuid, null, pageSize);
+            cache.putLatestPage(playerUuid, pageSize, page, generation);
+            return page;
         }
+        return store.findForList(playerUuid, cursor, pageSize);
+    }
+
+    /**
+     * @see SnapshotStore#search(String, int, int, LocalDateTime, MaterialIndex.Cursor, int)
+     */
+    public MaterialIndex.Page search(String material, int minAmount, int flags, LocalDateTime since, @Nullable MaterialIndex.Cursor cursor, int pageSize) {
+        return store.search(material, minAmount, flags, since, cursor, pageSize);
+    }
+
+    /**
+     * @see SnapshotStore#findLatestBefore(LocalDateTime, Collection)
+     */
+    public List<SnapshotSummary> findLatestBefore(LocalDateTime before, @Nullable Collection<UUID> playerUuids) {
+        return store.findLatestBefore(before, playerUuids);
     }
 
-    public List<Snapshot> findForList(UUID playerUuid) {
-        try (var handle = jdbi.open()) {
-            return handle.createQuery(LIST_BY_PLAYER_ID)
-                         .bind("uuid", playerUuid)
-                         .mapTo(Snapshot.class)
-                         .list();
+    /**
+     * Queues the snapshot to be written by the store, as well as to the journal which keeps it safe until then.
+     *
+     * @return a future completed with the persisted snapshot, including its id, once it is both in the journal and
+     * written by the store.
+     */
+    public CompletableFuture<Snapshot> save(Snapshot snapshot) {
+        var start = System.nanoTime();
+        var journaled = journal.append(snapshot);
+
+        return store.save(snapshot).whenComplete((persisted, e) -> {
+            if (e != null) {
+                journal.failed(snapshot);
+            }
+        }).thenApply(persisted -> {
+            journal.committed();
+            saveLatency.recordSince(start);
+            metrics.counter("snapshots." + snapshot.reason().name().toLowerCase(Locale.ROOT)).increment();
+            cacheSaved(snapshot.withId(persisted.id()));
+            cache.invalidatePlayer(snapshot.playerUuid());
+            return persisted;
+        }).thenCombine(journaled, (persisted, ignored) -> persisted);
+    }
+
+    /**
+     * Queues the snapshots to be written by the store in a single write, journaling them until then.
+     *
+     * @return a future completed with the persisted snapshots, in the same order, once they are both in the journal
+     * and written by the store.
+     */
+    public CompletableFuture<List<Snapshot>> saveAll(List<Snapshot> snapshots) {
+        if (snapshots.isEmpty()) {
+            return CompletableFuture.completedFuture(List.of());
         }
+        var start = System.nanoTime();
+        var journaled = snapshots.stream().map(journal::append).toArray(CompletableFuture[]::new);
+
+        return store.saveAll(snapshots).whenComplete((persisted, e) -> {
+            if (e != null) {
+                snapshots.forEach(journal::failed);
+            }
+        }).thenApply(persisted -> {
+            for (int i = 0; i < persisted.size(); i++) {
+                var snapshot = snapshots.get(i);
+                journal.committed();
+                metrics.counter("snapshots." + snapshot.reason().name().toLowerCase(Locale.ROOT)).increment();
+                cacheSaved(snapshot.withId(persisted.get(i).id()));
+                cache.invalidatePlayer(snapshot.playerUuid());
+            }
+            saveLatency.recordSince(start);
+            return persisted;
+        }).thenCombine(CompletableFuture.allOf(journaled), (persisted, ignored) -> persisted);
+    }
+
+    // the captured inventory is cached rather than the stored one, it is the cheapest to decode
+    private void cacheSaved(Snapshot snapshot) {
+        // unless it only holds changes to another snapshot, it's resolved by the store when looked up
+        if (ItemStackSerializer.version(snapshot.inventory()) != ItemStackSerializer.VERSION_DELTA) {
+            cache.putSnapshot(snapshot);
+        }
+    }
+
+    public PlayerIndex players() {
+        return players;
     }
 
-    public void save(Snapshot snapshot) {
-        try (var handle = jdbi.open()) {
-            handle.createUpdate(INSERT)
-                  .bindMethods(snapshot)
-                  .execute();
+    /**
+     * Records the player's current name, writing it to the store if it changed.
+     */
+    public void rememberPlayer(UUID playerUuid, String name) {
+        if (players.put(playerUuid, name)) {
+            store.savePlayerName(playerUuid, name).exceptionally(e -> {
+                LOGGER.warn("Failed to save the name of {}", playerUuid, e);
+                return null;
+            });
+        }
+    }
+
+    /**
+     * Names the players whose snapshots were taken before names were recorded.
+     *
+     * @param resolver looks up a player's name, returning null if unknown.
+     */
+    public void nameUnnamedPlayers(Function<UUID, String> resolver) {
+        List<UUID> unnamed;
+
+        synchronized (unnamedPlayers) {
+            unnamed = new ArrayList<>(unnamedPlayers);
+            unnamedPlayers.clear();
+        }
+        var named = 0;
+
+        for (var playerUuid : unnamed) {
+            var name = resolver.apply(playerUuid);
+
+            // the player may have joined and been named in the meantime
+            if (name != null && players.name(playerUuid) == null) {
+                rememberPlayer(playerUuid, name);
+                named++;
+            }
+        }
+        if (!unnamed.isEmpty()) {
+            LOGGER.info("Named {} of {} players without a known name", named, unnamed.size());
+        }
+    }
+
+    /**
+     * The version inventories are stored in, depending on the storage settings.
+     */
+    public int storageVersion() {
+        return store.storageVersion();
+    }
+
+    /**
+     * @see SnapshotStore#findForMigration(int, int)
+     */
+    public List<Snapshot> findForMigration(int afterId, int limit) {
+        return store.findForMigration(afterId, limit);
+    }
+
+    /**
+     * @see SnapshotStore#reencode(List)
+     */
+    public CompletableFuture<List<Snapshot>> reencode(List<Snapshot> snapshots) {
+        return store.reencode(snapshots);
+    }
+
+    /**
+     * Streams the summary of every snapshot, grouped by player and newest first.
+     */
+    public void forEachSummary(Consumer<SnapshotSummary> consumer) {
+        store.forEachSummary(consumer);
+    }
+
+    /**
+     * Deletes the snapshots, in a single write of the store.
+     *
+     * @return a future completed with the total size of the deleted inventories.
+     */
+    public CompletableFuture<Long> delete(List<SnapshotSummary> snapshots) {
+        return store.delete(snapshots).thenApply(bytes -> {
+            snapshots.forEach(snapshot -> cache.invalidate(snapshot.id()));
+            snapshots.stream().map(SnapshotSummary::playerUuid).distinct().forEach(cache::invalidatePlayer);
+            return bytes;
+        });
+    }
+
+    /**
+     * @see SnapshotStore#releaseFreeSpace(int)
+     */
+    public CompletableFuture<Long> releaseFreeSpace(int maxPages) {
+        return store.releaseFreeSpace(maxPages);
+    }
+
+    /**
+     * @see SnapshotStore#collectUnusedItems()
+     */
+    public ItemBlobStore.Sweep collectUnusedItems() {
+        return store.collectUnusedItems();
+    }
+
+    public SnapshotWriter.Stats writerStats() {
+        return store.writerStats();
+    }
+
+    public SnapshotCache.Stats cacheStats() {
+        return cache.stats();
+    }
+
+    /**
+     * Stops the store, waiting a bounded time for the queued snapshots to be written. The snapshots which don't make
+     * it remain in the journal.
+     */
+    public void close() {
+        var timeout = Duration.ofSeconds(settings.shutdownTimeoutSeconds());
+        journal.close(timeout);
+        store.close(timeout);
+    }
+
+    private record JournalKey(UUID playerUuid, LocalDateTime createdAt, SnapshotReason reason) {
+    }
+
+    public enum Backend {
+        SQLITE,
+        LOG
+    }
+
+    public record Settings(
+            Backend backend,
+            boolean compress,
+            boolean deduplicate,
+            int itemCacheMib,
+            int snapshotCacheMib,
+            int snapshotCacheExpireSeconds,
+            int shutdownTimeoutSeconds
+    ) {
+
+        public static Settings fromConfig(ConfigurationSection section) {
+            return new Settings(
+                    Backend.valueOf(section.getString("backend", "sqlite").toUpperCase(Locale.ROOT)),
+                    section.getBoolean("compress", true),
+                    section.getBoolean("deduplicate", false),
+                    section.getInt("item-cache-mib", 32),
+                    section.getInt("snapshot-cache-mib", 64),
+                    section.getInt("snapshot-cache-expire-seconds", 600),
+                    section.getInt("shutdown-timeout-seconds", 10)
+            );
         }
     }
 }
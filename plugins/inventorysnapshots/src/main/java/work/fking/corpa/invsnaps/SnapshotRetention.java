@@ -0,0 +1,217 @@
+package work.fking.corpa.invsnaps;
+
+import org.bukkit.configuration.ConfigurationSection;
+import org.slf4j.Logger;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Deletes old snapshots according to tiers of decreasing resolution, e.g. every snapshot of the last day, one per hour
+ * for the last week and one per day for the last month. The most recent deaths of every player are always kept.
+ * <p>
+ * A pass first finds the expired snapshots from a read connection, then deletes them in small batches on the writer so
+ * that saves are never held up for long, releasing the freed pages from the database file after each batch.
+ */
+public final class SnapshotRetention implements Runnable {
+
+    private static final long BATCH_PAUSE_MILLIS = 50;
+
+    private final SnapshotRepository repository;
+    private final Logger logger;
+    private final Settings settings;
+    private final AtomicBoolean running = new AtomicBoolean();
+
+    private final LongAdder deletedSnapshots;
+    private final LongAdder reclaimedBytes;
+    private final LongAdder releasedBytes;
+
+    private volatile boolean cancelled;
+
+    public SnapshotRetention(SnapshotRepository repository, Logger logger, Metrics metrics, Settings settings) {
+        this.repository = repository;
+        this.logger = logger;
+        this.settings = settings;
+        this.deletedSnapshots = metrics.counter("retention.deleted_snapshots");
+        this.reclaimedBytes = metrics.counter("retention.reclaimed_bytes");
+        this.releasedBytes = metrics.counter("retention.released_file_bytes");
+    }
+
+    public void cancel() {
+        cancelled = true;
+    }
+
+    @Override
+    public void run() {
+        // passes are scheduled periodically, a slow pass must not overlap with the next one
+        if (cancelled || !running.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            var result = runPass();
+            logger.info("Retention deleted {} snapshots ({} bytes) and {} unused items ({} bytes), released {} bytes of the database file in {} ms{}",
+                    result.snapshots(), result.snapshotBytes(), result.items(), result.itemBytes(), result.releasedBytes(),
+                    result.duration().toMillis(), result.cancelled() ? ", cancelled" : "");
+        } catch (Exception e) {
+            logger.warn("Retention pass failed", e);
+        } finally {
+            running.set(false);
+        }
+    }
+
+    private Result runPass() throws InterruptedException {
+        var start = System.nanoTime();
+        var selector = new Selector(LocalDateTime.now());
+        var expired = new ArrayList<SnapshotSummary>();
+
+        repository.forEachSummary(summary -> {
+            if (!selector.keep(summary)) {
+                expired.add(summary);
+            }
+        });
+        var snapshotBytes = 0L;
+        var released = 0L;
+        var deleted = 0;
+
+        for (int i = 0; i < expired.size() && !cancelled; i += settings.batchSize()) {
+            var batch = expired.subList(i, Math.min(expired.size(), i + settings.batchSize()));
+            var bytes = repository.delete(batch).join();
+            snapshotBytes += bytes;
+            deleted += batch.size();
+            deletedSnapshots.add(batch.size());
+            reclaimedBytes.add(bytes);
+            released += releasePages();
+            Thread.sleep(BATCH_PAUSE_MILLIS);
+        }
+        var swept = new ItemBlobStore.Sweep(0, 0);
+
+        if (deleted > 0 && !cancelled) {
+            swept = repository.collectUnusedItems();
+            reclaimedBytes.add(swept.bytes());
+        }
+        // whatever the batches didn't get around to releasing
+        while (!cancelled) {
+            var bytes = releasePages();
+
+            if (bytes == 0) {
+                break;
+            }
+            released += bytes;
+            Thread.sleep(BATCH_PAUSE_MILLIS);
+        }
+        return new Result(deleted, snapshotBytes, swept.items(), swept.bytes(), released, Duration.ofNanos(System.nanoTime() - start), cancelled);
+    }
+
+    private long releasePages() {
+        if (settings.vacuumPagesPerBatch() <= 0) {
+            return 0;
+        }
+        var bytes = repository.releaseFreeSpace(settings.vacuumPagesPerBatch()).join();
+        releasedBytes.add(bytes);
+        return bytes;
+    }
+
+    /**
+     * Decides which snapshots to keep, fed the snapshots of one player after the other, newest first.
+     */
+    private final class Selector {
+
+        private final LocalDateTime now;
+        private final Set<Bucket> keptBuckets = new HashSet<>();
+        private UUID playerUuid;
+        private int deaths;
+
+        private Selector(LocalDateTime now) {
+            this.now = now;
+        }
+
+        private boolean keep(SnapshotSummary snapshot) {
+            if (!snapshot.playerUuid().equals(playerUuid)) {
+                playerUuid = snapshot.playerUuid();
+                deaths = 0;
+                keptBuckets.clear();
+            }
+            if (snapshot.reason() == SnapshotReason.PLAYER_DEATH && deaths++ < settings.keepLastDeaths()) {
+                return true;
+            }
+            var age = Duration.between(snapshot.createdAt(), now);
+            var tiers = settings.tiers();
+
+            for (int i = 0; i < tiers.size(); i++) {
+                var tier = tiers.get(i);
+
+                if (age.compareTo(tier.maxAge()) >= 0) {
+                    continue;
+                }
+                if (tier.bucket().isZero()) {
+                    return true;
+                }
+                // the first snapshot seen in a bucket is its newest one, the one that's kept
+                var bucket = snapshot.createdAt().toEpochSecond(ZoneOffset.UTC) / tier.bucket().toSeconds();
+                return keptBuckets.add(new Bucket(i, bucket));
+            }
+            return false;
+        }
+    }
+
+    private record Bucket(int tier, long index) {
+    }
+
+    public record Result(
+            int snapshots,
+            long snapshotBytes,
+            int items,
+            long itemBytes,
+            long releasedBytes,
+            Duration duration,
+            boolean cancelled
+    ) {
+    }
+
+    /**
+     * Snapshots younger than the max age are kept once per bucket, or all of them if the bucket is zero.
+     */
+    public record Tier(Duration maxAge, Duration bucket) {
+    }
+
+    public record Settings(
+            boolean enabled,
+            int intervalMinutes,
+            int batchSize,
+            int vacuumPagesPerBatch,
+            int keepLastDeaths,
+            List<Tier> tiers
+    ) {
+
+        public static Settings fromConfig(ConfigurationSection section) {
+            var tiers = new ArrayList<Tier>();
+
+            for (Map<?, ?> tier : section.getMapList("tiers")) {
+                tiers.add(new Tier(
+                        Duration.ofHours(((Number) tier.get("max-age-hours")).longValue()),
+                        Duration.ofMinutes(tier.get("bucket-minutes") instanceof Number minutes ? minutes.longValue() : 0)
+                ));
+            }
+            tiers.sort(Comparator.comparing(Tier::maxAge));
+
+            return new Settings(
+                    section.getBoolean("enabled", false),
+                    Math.max(1, section.getInt("interval-minutes", 60)),
+                    Math.max(1, section.getInt("batch-size", 500)),
+                    section.getInt("vacuum-pages-per-batch", 2048),
+                    Math.max(0, section.getInt("keep-last-deaths", 10)),
+                    List.copyOf(tiers)
+            );
+        }
+    }
+}
@@ -0,0 +1,241 @@
+package work.fking.corpa.invsnaps;
+
+import net.kyori.adventure.text.Component;
+import net.kyori.adventure.text.format.TextColor;
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.entity.Player;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.Listener;
+import org.bukkit.event.player.PlayerJoinEvent;
+import org.bukkit.scheduler.BukkitTask;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Rolls the inventories of many players back to a point in time at once, like after a griefing incident.
+ * <p>
+ * The snapshots to restore are loaded and fully decoded on a worker thread beforehand. The main thread only copies the
+ * players, until its time budget is spent every tick, and later hands them the items which differ once the capture
+ * workers compared them. Players who are offline are restored the next time they join, until the server stops, only
+ * the id of their snapshot is kept until then and it is loaded once they join. What players held before being rolled back is kept in snapshots, which are
+ * saved together in a single write once every online player is restored.
+ */
+public final class SnapshotRollback implements Runnable, Listener {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SnapshotRollback.class);
+    private static final TextColor MESSAGE_COLOR = TextColor.color(0xBDBDBD);
+
+    private final InventorySnapshots plugin;
+    private final SnapshotRepository repository;
+    private final Executor workers;
+    private final Executor mainThread;
+    private final Settings settings;
+
+    // only ever accessed from the main thread
+    private final ArrayDeque<Restore> queue = new ArrayDeque<>();
+    // snapshot ids by player
+    private final Map<UUID, Integer> pendingOnJoin = new HashMap<>();
+    private final List<CompletableFuture<Snapshot>> safetySnapshots = new ArrayList<>();
+    private Consumer<Result> onCompletion;
+    private BukkitTask task;
+    private int restored;
+    private int deferred;
+
+    private final LongAdder restoredCounter;
+    private final LongAdder budgetExceeded;
+
+    /**
+     * @param workers where the snapshots of players who join while pending are loaded.
+     */
+    public SnapshotRollback(InventorySnapshots plugin, SnapshotRepository repository, Metrics metrics, Executor workers, Settings settings) {
+        this.plugin = plugin;
+        this.repository = repository;
+        this.workers = workers;
+        this.mainThread = task -> plugin.getServer().getScheduler().runTask(plugin, task);
+        this.settings = settings;
+        this.restoredCounter = metrics.counter("rollback.restored");
+        this.budgetExceeded = metrics.counter("rollback.budget_exceeded");
+
+        metrics.gauge("rollback.pending_on_join", pendingOnJoin::size);
+    }
+
+    /**
+     * Loads the snapshots of the online players and decodes their every item, for the main thread not to have to. The
+     * snapshots of offline players are only loaded once they join. Runs off the main thread.
+     *
+     * @param online the players who were online when the rollback was confirmed.
+     */
+    public List<Restore> prepare(List<SnapshotSummary> snapshots, Set<UUID> online) {
+        var restores = new ArrayList<Restore>(snapshots.size());
+
+        for (var summary : snapshots) {
+            if (!online.contains(summary.playerUuid())) {
+                restores.add(new Restore(summary.playerUuid(), summary.id(), null));
+                continue;
+            }
+            var restore = load(summary.id());
+
+            // deleted by retention in the meantime
+            if (restore != null) {
+                restores.add(restore);
+            }
+        }
+        return restores;
+    }
+
+    private @Nullable Restore load(int snapshotId) {
+        var snapshot = repository.findById(snapshotId);
+
+        if (snapshot == null) {
+            return null;
+        }
+        var inventory = repository.inventory(snapshot);
+
+        for (int slot = 0; slot < inventory.size(); slot++) {
+            inventory.decode(slot);
+        }
+        return new Restore(snapshot.playerUuid(), snapshot.id(), inventory);
+    }
+
+    public boolean isRunning() {
+        return task != null;
+    }
+
+    /**
+     * Starts restoring the inventories on the following ticks. Replaces the pending restores of the same players.
+     *
+     * @param onCompletion called on the main thread once every online player is restored.
+     */
+    public void start(List<Restore> restores, Consumer<Result> onCompletion) {
+        if (isRunning()) {
+            throw new IllegalStateException("A rollback is already running");
+        }
+        for (var restore : restores) {
+            pendingOnJoin.remove(restore.playerUuid());
+        }
+        queue.addAll(restores);
+        this.onCompletion = onCompletion;
+        this.restored = 0;
+        this.deferred = 0;
+        this.task = plugin.getServer().getScheduler().runTaskTimer(plugin, this, 1, 1);
+    }
+
+    @Override
+    public void run() {
+        var deadline = System.nanoTime() + settings.tickBudgetNanos();
+        var processed = 0;
+
+        while (!queue.isEmpty()) {
+            // at least one player per tick, so that a tiny budget still makes progress
+            if (processed > 0 && System.nanoTime() - deadline > 0) {
+                budgetExceeded.increment();
+                return;
+            }
+            var restore = queue.poll();
+            var player = plugin.getServer().getPlayer(restore.playerUuid());
+
+            if (player == null) {
+                pendingOnJoin.put(restore.playerUuid(), restore.snapshotId());
+                deferred++;
+            } else if (restore.inventory() == null) {
+                // joined since the rollback was confirmed
+                restoreLater(player, restore.snapshotId());
+                restored++;
+            } else {
+                safetySnapshots.add(apply(player, restore));
+                restored++;
+            }
+            processed++;
+        }
+        finish();
+    }
+
+    private void finish() {
+        task.cancel();
+        task = null;
+        var pending = List.copyOf(safetySnapshots);
+        safetySnapshots.clear();
+
+        // serialized on the capture workers, then written together
+        CompletableFuture.allOf(pending.toArray(CompletableFuture[]::new))
+                         .thenCompose(ignored -> repository.saveAll(pending.stream().map(CompletableFuture::join).toList()))
+                         .exceptionally(e -> {
+                             LOGGER.warn("Failed to save {} snapshots taken before rolling players back", pending.size(), e);
+                             return null;
+                         });
+        onCompletion.accept(new Result(restored, deferred));
+        onCompletion = null;
+    }
+
+    @EventHandler
+    public void onPlayerJoin(PlayerJoinEvent event) {
+        var player = event.getPlayer();
+        var snapshotId = pendingOnJoin.remove(player.getUniqueId());
+
+        if (snapshotId != null) {
+            restoreLater(player, snapshotId);
+        }
+    }
+
+    private void restoreLater(Player player, int snapshotId) {
+        CompletableFuture.supplyAsync(() -> load(snapshotId), workers).thenAcceptAsync(restore -> {
+            if (restore == null) {
+                return;
+            }
+            // left before their snapshot was loaded, unless a later rollback replaced it
+            if (!player.isOnline()) {
+                pendingOnJoin.putIfAbsent(restore.playerUuid(), restore.snapshotId());
+                return;
+            }
+            apply(player, restore).thenCompose(repository::save);
+        }, mainThread).exceptionally(e -> {
+            LOGGER.warn("Failed to roll {} back to snapshot {}", player.getName(), snapshotId, e);
+            return null;
+        });
+    }
+
+    /**
+     * @return a future completed with the snapshot of what the player held before.
+     */
+    private CompletableFuture<Snapshot> apply(Player player, Restore restore) {
+        var safetySnapshot = plugin.restore(player, restore.snapshotId(), restore.inventory(), slot -> true);
+        player.sendMessage(Component.text("Your inventory has been rolled back to a previous state.").color(MESSAGE_COLOR));
+        restoredCounter.increment();
+        return safetySnapshot;
+    }
+
+    /**
+     * A player's inventory as it is to be restored, with every item decoded.
+     *
+     * @param inventory null for players who were offline, whose snapshot is loaded once they join.
+     */
+    public record Restore(UUID playerUuid, int snapshotId, @Nullable InventoryView inventory) {
+    }
+
+    /**
+     * @param restored the amount of online players who were restored.
+     * @param deferred the amount of offline players who will be restored when they join.
+     */
+    public record Result(int restored, int deferred) {
+    }
+
+    public record Settings(long tickBudgetNanos) {
+
+        public static Settings fromConfig(ConfigurationSection section) {
+            return new Settings(Math.max(0, section.getLong("tick-budget-micros", 2000)) * 1000);
+        }
+    }
+}
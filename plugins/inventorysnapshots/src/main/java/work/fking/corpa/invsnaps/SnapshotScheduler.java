@@ -0,0 +1,185 @@
+package work.fking.corpa.invsnaps;
+
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.entity.Player;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.player.PlayerJoinEvent;
+import org.bukkit.event.player.PlayerQuitEvent;
+import org.bukkit.inventory.ItemStack;
+
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Takes periodic snapshots of online players, as well as snapshots when they join and quit.
+ * <p>
+ * Every player is given a random phase within the interval when they join, so captures are spread evenly across ticks
+ * rather than all happening at once. Each tick only captures players until its time budget is spent, players left over
+ * are captured on the next ticks. Players whose inventory, ender chest and experience haven't changed since their last
+ * automatic snapshot are skipped, which is detected by hashing them rather than serializing them. Their position isn't
+ * hashed, so players who only moved around are skipped too.
+ * <p>
+ * Runs entirely on the main thread.
+ */
+public final class SnapshotScheduler implements Runnable, Listener {
+
+    private final InventorySnapshots plugin;
+    private final Settings settings;
+
+    private final PriorityQueue<DueCapture> queue = new PriorityQueue<>(Comparator.comparingLong(DueCapture::tick));
+    private final Map<UUID, Long> captureHashes = new HashMap<>();
+    private long currentTick;
+    // read from other threads by the metrics dump
+    private volatile int overdue;
+
+    private final LongAdder skippedUnchanged;
+    private final LongAdder budgetExceeded;
+
+    public SnapshotScheduler(InventorySnapshots plugin, Metrics metrics, Settings settings) {
+        this.plugin = plugin;
+        this.settings = settings;
+        this.skippedUnchanged = metrics.counter("scheduler.skipped_unchanged");
+        this.budgetExceeded = metrics.counter("scheduler.budget_exceeded");
+
+        metrics.gauge("scheduler.overdue", () -> overdue);
+    }
+
+    /**
+     * Schedules the players who were already online, in case the plugin was enabled while the server is running.
+     */
+    public void start() {
+        for (var player : plugin.getServer().getOnlinePlayers()) {
+            schedule(player.getUniqueId());
+        }
+        if (settings.periodic()) {
+            plugin.getServer().getScheduler().runTaskTimer(plugin, this, 1, 1);
+        }
+    }
+
+    @Override
+    public void run() {
+        currentTick++;
+        var deadline = System.nanoTime() + settings.tickBudgetNanos();
+        var processed = 0;
+        overdue = 0;
+
+        while (!queue.isEmpty() && queue.peek().tick() <= currentTick) {
+            // at least one player per tick, so that a tiny budget still makes progress
+            if (processed > 0 && System.nanoTime() - deadline > 0) {
+                budgetExceeded.increment();
+                overdue = countOverdue();
+                break;
+            }
+            var due = queue.poll();
+            var player = plugin.getServer().getPlayer(due.playerUuid());
+
+            if (player == null) {
+                continue;
+            }
+            captureIfChanged(player, SnapshotReason.PERIODIC);
+            processed++;
+            // keep the player's phase, unless they're running so late that it would be due again right away
+            queue.add(new DueCapture(Math.max(due.tick() + settings.intervalTicks(), currentTick + 1), due.playerUuid()));
+        }
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onPlayerJoin(PlayerJoinEvent event) {
+        var player = event.getPlayer();
+
+        if (settings.onJoin()) {
+            captureIfChanged(player, SnapshotReason.PLAYER_JOIN);
+        }
+        schedule(player.getUniqueId());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onPlayerQuit(PlayerQuitEvent event) {
+        var player = event.getPlayer();
+
+        if (settings.onQuit()) {
+            captureIfChanged(player, SnapshotReason.PLAYER_QUIT);
+        }
+        var playerUuid = player.getUniqueId();
+        captureHashes.remove(playerUuid);
+        queue.removeIf(due -> due.playerUuid().equals(playerUuid));
+    }
+
+    private void schedule(UUID playerUuid) {
+        if (settings.periodic()) {
+            var phase = ThreadLocalRandom.current().nextLong(settings.intervalTicks());
+            queue.add(new DueCapture(currentTick + 1 + phase, playerUuid));
+        }
+    }
+
+    private void captureIfChanged(Player player, SnapshotReason reason) {
+        var hash = hash(player.getInventory().getContents());
+        hash = hash * 31 + hash(player.getEnderChest().getContents());
+        hash = hash * 31 + player.getLevel();
+        hash = hash * 31 + Float.floatToIntBits(player.getExp());
+        hash = hash * 31 + player.getTotalExperience();
+        var previous = captureHashes.put(player.getUniqueId(), hash);
+
+        if (previous != null && previous == hash) {
+            skippedUnchanged.increment();
+            return;
+        }
+        plugin.save(player, reason);
+    }
+
+    private int countOverdue() {
+        var count = 0;
+
+        for (var due : queue) {
+            if (due.tick() <= currentTick) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    // mixes in the slot as well, so that moving an item around counts as a change
+    private static long hash(ItemStack[] contents) {
+        var hash = 1L;
+
+        for (int slot = 0; slot < contents.length; slot++) {
+            var item = contents[slot];
+
+            if (item != null) {
+                hash = hash * 0x9E3779B97F4A7C15L + ((long) slot << 32 | (item.hashCode() & 0xFFFFFFFFL));
+            }
+        }
+        return hash;
+    }
+
+    private record DueCapture(long tick, UUID playerUuid) {
+    }
+
+    public record Settings(
+            int intervalTicks,
+            long tickBudgetNanos,
+            boolean onJoin,
+            boolean onQuit
+    ) {
+
+        public boolean periodic() {
+            return intervalTicks > 0;
+        }
+
+        public static Settings fromConfig(ConfigurationSection section) {
+            return new Settings(
+                    Math.max(0, section.getInt("periodic-interval-seconds", 300)) * 20,
+                    Math.max(0, section.getLong("tick-budget-micros", 500)) * 1000,
+                    section.getBoolean("on-join", true),
+                    section.getBoolean("on-quit", true)
+            );
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package work.fking.corpa.invsnaps;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.Collection;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * Where snapshots are persisted. Implementations do their own writing on a single thread of their own, reads may
+ * happen from any thread.
+ *
+ * @see SqliteSnapshotStore
+ * @see SegmentLogStore
+ */
+public interface SnapshotStore {
+
+    /**
+     * @return the snapshot, with an inventory which can be deserialized on its own.
+     */
+    @Nullable Snapshot findById(int id);
+
+    /**
+     * Lists a page of the player's snapshots, newest first.
+     *
+     * @param cursor the page to fetch, or null for the most recent snapshots.
+     */
+    SnapshotPage findForList(UUID playerUuid, @Nullable SnapshotPage.Cursor cursor, int pageSize);
+
+    /**
+     * Lists a page of the snapshots which held at least the given amount of the material, newest first.
+     *
+     * @param material the name of the {@link org.bukkit.Material}.
+     * @param flags    the {@link MaterialIndex} flags, like {@link MaterialIndex#FLAG_NAMED}, a stack of the material
+     *                 must have had all of them, 0 for any stack.
+     * @param cursor   the page to fetch, or null for the most recent snapshots.
+     * @throws UnsupportedOperationException if the store doesn't index materials.
+     */
+    MaterialIndex.Page search(String material, int minAmount, int flags, LocalDateTime since, @Nullable MaterialIndex.Cursor cursor, int pageSize);
+
+    /**
+     * Finds the latest snapshot taken before the given time of every player, or of the given players only.
+     *
+     * @param playerUuids the players to look for, or null for every player.
+     */
+    List<SnapshotSummary> findLatestBefore(LocalDateTime before, @Nullable Collection<UUID> playerUuids);
+
+    /**
+     * Whether a snapshot of the same player, reason and time is already stored.
+     */
+    boolean contains(Snapshot snapshot);
+
+    /**
+     * Queues the snapshot to be written.
+     *
+     * @return a future completed with the persisted snapshot, including its id.
+     */
+    CompletableFuture<Snapshot> save(Snapshot snapshot);
+
+    /**
+     * Queues the snapshots to be written together, in a single write.
+     *
+     * @return a future completed with the persisted snapshots, in the same order.
+     */
+    CompletableFuture<List<Snapshot>> saveAll(List<Snapshot> snapshots);
+
+    /**
+     * Streams the summary of every snapshot, grouped by player and newest first.
+     */
+    void forEachSummary(Consumer<SnapshotSummary> consumer);
+
+    /**
+     * Visits every player with snapshots or a known name, along with their last known name, or null if unknown.
+     */
+    void forEachPlayer(BiConsumer<UUID, String> consumer);
+
+    /**
+     * Queues the player's current name to be written.
+     */
+    CompletableFuture<Void> savePlayerName(UUID playerUuid, String name);
+
+    /**
+     * Deletes the snapshots.
+     *
+     * @return a future completed with the total size of the deleted inventories.
+     */
+    CompletableFuture<Long> delete(List<SnapshotSummary> snapshots);
+
+    /**
+     * Gives the space freed by deletes back to the file system, a bounded amount of work at a time.
+     *
+     * @return a future completed with the amount of bytes released, zero once there's nothing left to release.
+     */
+    CompletableFuture<Long> releaseFreeSpace(int maxPages);
+
+    /**
+     * Collects the stored items which are no longer referenced by any snapshot, if the store deduplicates items.
+     */
+    ItemBlobStore.Sweep collectUnusedItems();
+
+    /**
+     * The version inventories are stored in.
+     */
+    int storageVersion();
+
+    /**
+     * Lists the snapshots which are not stored in the current {@link #storageVersion()}, in id order.
+     *
+     * @param afterId only snapshots with a greater id are listed.
+     */
+    List<Snapshot> findForMigration(int afterId, int limit);
+
+    /**
+     * Re-encodes the inventories of the given snapshots in the current {@link #storageVersion()}.
+     *
+     * @return a future completed with the snapshots as they are now stored.
+     */
+    CompletableFuture<List<Snapshot>> reencode(List<Snapshot> snapshots);
+
+    SnapshotWriter.Stats writerStats();
+
+    /**
+     * Stops writing, waiting at most the given time for the queued snapshots to be written.
+     */
+    void close(Duration timeout);
+}
@@ -0,0 +1,88 @@
+package work.fking.corpa.invsnaps;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Copies every snapshot from one store to another, while the server is stopped. Snapshots are copied in the order they
+ * were taken and given new ids by the target store, which must not exist yet.
+ * <p>
+ * Run with the plugin jar and its libraries on the class path:
+ * {@code java -cp <classpath> work.fking.corpa.invsnaps.SnapshotStoreConverter <plugin data folder> <sqlite|log> <sqlite|log>}
+ */
+public final class SnapshotStoreConverter {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SnapshotStoreConverter.class);
+
+    private static final int BATCH_SIZE = 512;
+    private static final Duration CLOSE_TIMEOUT = Duration.ofMinutes(1);
+
+    private SnapshotStoreConverter() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length != 3) {
+            System.err.println("Usage: SnapshotStoreConverter <plugin data folder> <sqlite|log> <sqlite|log>");
+            System.exit(1);
+        }
+        var directory = Path.of(args[0]);
+        var from = SnapshotRepository.Backend.valueOf(args[1].toUpperCase(Locale.ROOT));
+        var to = SnapshotRepository.Backend.valueOf(args[2].toUpperCase(Locale.ROOT));
+
+        if (from == to) {
+            System.err.println("The source and target stores must differ");
+            System.exit(1);
+        }
+        var target = switch (to) {
+            case SQLITE -> directory.resolve(SqliteSnapshotStore.FILE_NAME);
+            case LOG -> directory.resolve(SegmentLogStore.DIRECTORY_NAME);
+        };
+        if (Files.exists(target)) {
+            System.err.println(target + " already exists, move it away first");
+            System.exit(1);
+        }
+        var metrics = new Metrics();
+        // the settings the plugin defaults to, except deduplication which isn't worth it for a one-off copy
+        var databaseSettings = new SqliteDatabase.Settings(1, 8192, 256, 5000, false);
+        var logSettings = new SegmentLogStore.Settings(64, 0.5);
+        var settings = new SnapshotRepository.Settings(to, true, false, 32, 0, 0, 10);
+
+        var source = SnapshotRepository.openStore(from, directory, databaseSettings, logSettings, settings, metrics);
+        var destination = SnapshotRepository.openStore(to, directory, databaseSettings, logSettings, settings, metrics);
+
+        try {
+            var summaries = new ArrayList<SnapshotSummary>();
+            source.forEachSummary(summaries::add);
+            summaries.sort(Comparator.comparing(SnapshotSummary::createdAt).thenComparingInt(SnapshotSummary::id));
+            LOGGER.info("Copying {} snapshots from the {} store to the {} store", summaries.size(), from, to);
+
+            var start = System.nanoTime();
+
+            for (int i = 0; i < summaries.size(); i += BATCH_SIZE) {
+                var saves = new ArrayList<CompletableFuture<Snapshot>>(BATCH_SIZE);
+
+                for (var summary : summaries.subList(i, Math.min(summaries.size(), i + BATCH_SIZE))) {
+                    var snapshot = source.findById(summary.id());
+
+                    if (snapshot != null) {
+                        saves.add(destination.save(snapshot));
+                    }
+                }
+                CompletableFuture.allOf(saves.toArray(CompletableFuture[]::new)).join();
+                LOGGER.info("Copied {} of {} snapshots", Math.min(summaries.size(), i + BATCH_SIZE), summaries.size());
+            }
+            LOGGER.info("Done in {} s, set storage.backend to {} to use the new store", Duration.ofNanos(System.nanoTime() - start).toSeconds(), to.name().toLowerCase(Locale.ROOT));
+        } finally {
+            destination.close(CLOSE_TIMEOUT);
+            source.close(CLOSE_TIMEOUT);
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package work.fking.corpa.invsnaps;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.UUID;
+
+/**
+ * Snapshot metadata, without the serialized inventory.
+ */
+public record SnapshotSummary(
+        int id,
+        UUID playerUuid,
+        SnapshotReason reason,
+        LocalDateTime createdAt
+) {
+
+    public Duration timeSince() {
+        return Duration.between(createdAt, LocalDateTime.now());
+    }
+}
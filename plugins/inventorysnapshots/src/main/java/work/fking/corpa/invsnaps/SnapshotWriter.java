@@ -0,0 +1,300 @@
+package work.fking.corpa.invsnaps;
+
+import org.bukkit.Bukkit;
+import org.jdbi.v3.core.Handle;
+import org.jdbi.v3.core.HandleCallback;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Single writer for the snapshot database.
+ * <p>
+ * Saves are queued and drained by a dedicated thread which writes them in batches, one transaction per batch. When the
+ * queue is full callers block until the writer catches up, except for the server's main thread whose requests are
+ * rejected instead. Other writes can be submitted as tasks, which run on the same thread in between batches so that
+ * they never compete with saves for the database lock.
+ */
+public final class SnapshotWriter {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SnapshotWriter.class);
+
+    private static final int QUEUE_CAPACITY = 1024;
+    private static final int MAX_BATCH_SIZE = 128;
+    private static final long POLL_TIMEOUT_MILLIS = 250;
+
+    private final BlockingQueue<WriteRequest> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final Handle handle;
+    private final BatchWriter batchWriter;
+    private final TransactionListener transactionListener;
+    private final Thread thread;
+
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong stalls = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicInteger lastBatchSize = new AtomicInteger();
+    private final AtomicInteger largestBatchSize = new AtomicInteger();
+
+    private volatile boolean running = true;
+    private volatile boolean abandoned;
+
+    private SnapshotWriter(Handle handle, BatchWriter batchWriter, TransactionListener transactionListener) {
+        this.handle = handle;
+        this.batchWriter = batchWriter;
+        this.transactionListener = transactionListener;
+        this.thread = new Thread(this::run, "InventorySnapshots-Writer");
+    }
+
+    /**
+     * Starts a writer which takes ownership of the given handle, the handle is closed once the writer is stopped.
+     */
+    public static SnapshotWriter start(Handle handle, BatchWriter batchWriter, TransactionListener transactionListener) {
+        var writer = new SnapshotWriter(handle, batchWriter, transactionListener);
+        writer.thread.start();
+        return writer;
+    }
+
+    /**
+     * Queues the snapshot to be written, blocking if the queue is currently full. The main thread is never blocked, its
+     * snapshot is rejected instead.
+     *
+     * @return a future completed with the persisted snapshot once its batch has been committed.
+     */
+    public CompletableFuture<Snapshot> enqueue(Snapshot snapshot) {
+        var request = new SaveRequest(snapshot, new CompletableFuture<>());
+        offer(request, request.future());
+        return request.future();
+    }
+
+    /**
+     * Queues a task to be run in its own transaction on the writer thread.
+     */
+    public <T> CompletableFuture<T> submit(HandleCallback<T, Exception> callback) {
+        var request = new TaskRequest<>(callback, new CompletableFuture<>());
+        offer(request, request.future());
+        return request.future();
+    }
+
+    private void offer(WriteRequest request, CompletableFuture<?> future) {
+        if (!running) {
+            future.completeExceptionally(new IllegalStateException("The snapshot writer has been stopped"));
+            return;
+        }
+        if (!queue.offer(request)) {
+            stalls.incrementAndGet();
+
+            // the server's tick must never wait on the database
+            if (onMainThread()) {
+                dropped.incrementAndGet();
+                future.completeExceptionally(new RejectedExecutionException("The snapshot writer's queue is full"));
+                return;
+            }
+            try {
+                queue.put(request);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                future.completeExceptionally(e);
+                return;
+            }
+        }
+        // stopped meanwhile, the writer may have drained the queue for the last time already
+        if (!running && queue.remove(request)) {
+            future.completeExceptionally(new IllegalStateException("The snapshot writer has been stopped"));
+        }
+    }
+
+    /**
+     * Whether the caller is the server's main thread, which must never be blocked. Always false without a server, like
+     * when converting stores.
+     */
+    static boolean onMainThread() {
+        return Bukkit.getServer() != null && Bukkit.isPrimaryThread();
+    }
+
+    /**
+     * Stops accepting new requests and waits for the queued ones to be written. Once the timeout elapses the writer
+     * finishes its current batch and fails the requests still queued.
+     */
+    public void stop(Duration timeout) {
+        running = false;
+        try {
+            thread.join(timeout.toMillis());
+
+            if (thread.isAlive()) {
+                LOGGER.warn("Timed out writing the {} queued snapshots", queue.size());
+                abandoned = true;
+                thread.join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public Stats stats() {
+        return new Stats(
+                queue.size(),
+                QUEUE_CAPACITY,
+                batches.get(),
+                written.get(),
+                failed.get(),
+                lastBatchSize.get(),
+                largestBatchSize.get(),
+                stalls.get(),
+                dropped.get()
+        );
+    }
+
+    private void run() {
+        var requests = new ArrayList<WriteRequest>(MAX_BATCH_SIZE);
+        var saves = new ArrayList<SaveRequest>(MAX_BATCH_SIZE);
+
+        try (handle) {
+            while ((running || !queue.isEmpty()) && !abandoned) {
+                var first = queue.poll(POLL_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+
+                if (first == null) {
+                    continue;
+                }
+                requests.add(first);
+                queue.drainTo(requests, MAX_BATCH_SIZE - 1);
+
+                // consecutive saves are written together, tasks run in the order they were submitted
+                for (var request : requests) {
+                    if (request instanceof SaveRequest save) {
+                        saves.add(save);
+                        continue;
+                    }
+                    writeBatch(saves);
+                    runTask((TaskRequest<?>) request);
+                }
+                writeBatch(saves);
+                requests.clear();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            running = false;
+            failRemaining();
+        }
+    }
+
+    private void writeBatch(List<SaveRequest> batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        var snapshots = new ArrayList<Snapshot>(batch.size());
+        batch.forEach(save -> snapshots.add(save.snapshot()));
+        List<Snapshot> persisted;
+
+        try {
+            persisted = handle.inTransaction(transaction -> batchWriter.write(transaction, snapshots));
+            transactionListener.committed();
+        } catch (Exception e) {
+            transactionListener.rolledBack();
+            LOGGER.warn("Failed to write a batch of {} snapshots", batch.size(), e);
+            failed.addAndGet(batch.size());
+            batch.forEach(save -> save.future().completeExceptionally(e));
+            batch.clear();
+            return;
+        }
+        batches.incrementAndGet();
+        written.addAndGet(batch.size());
+        lastBatchSize.set(batch.size());
+        largestBatchSize.accumulateAndGet(batch.size(), Math::max);
+
+        for (int i = 0; i < batch.size(); i++) {
+            batch.get(i).future().complete(persisted.get(i));
+        }
+        batch.clear();
+    }
+
+    private <T> void runTask(TaskRequest<T> task) {
+        try {
+            var result = handle.inTransaction(task.callback());
+            transactionListener.committed();
+            task.future().complete(result);
+        } catch (Exception e) {
+            transactionListener.rolledBack();
+            task.future().completeExceptionally(e);
+        }
+    }
+
+    private void failRemaining() {
+        var remaining = new ArrayList<WriteRequest>();
+        queue.drainTo(remaining);
+
+        if (remaining.isEmpty()) {
+            return;
+        }
+        var error = new IllegalStateException("The snapshot writer has been stopped");
+
+        for (var request : remaining) {
+            if (request instanceof SaveRequest save) {
+                save.future().completeExceptionally(error);
+            } else if (request instanceof TaskRequest<?> task) {
+                task.future().completeExceptionally(error);
+            }
+        }
+        LOGGER.warn("Discarded {} write requests that could not be processed", remaining.size());
+    }
+
+    /**
+     * Writes a batch of snapshots, in a transaction owned by the writer.
+     */
+    @FunctionalInterface
+    public interface BatchWriter {
+
+        /**
+         * @return the persisted snapshots, in the same order as the given ones.
+         */
+        List<Snapshot> write(Handle handle, List<Snapshot> snapshots) throws Exception;
+    }
+
+    /**
+     * Notified on the writer thread once each of the writer's transactions has completed.
+     */
+    public interface TransactionListener {
+
+        void committed();
+
+        void rolledBack();
+    }
+
+    private sealed interface WriteRequest permits SaveRequest, TaskRequest {
+    }
+
+    private record SaveRequest(Snapshot snapshot, CompletableFuture<Snapshot> future) implements WriteRequest {
+    }
+
+    private record TaskRequest<T>(HandleCallback<T, Exception> callback, CompletableFuture<T> future) implements WriteRequest {
+    }
+
+    public record Stats(
+            int queueDepth,
+            int queueCapacity,
+            long batches,
+            long written,
+            long failed,
+            int lastBatchSize,
+            int largestBatchSize,
+            long stalls,
+            long dropped
+    ) {
+
+        public double averageBatchSize() {
+            return batches == 0 ? 0 : (double) written / batches;
+        }
+    }
+}
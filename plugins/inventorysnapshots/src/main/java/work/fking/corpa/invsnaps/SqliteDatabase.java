@@ -0,0 +1,221 @@
+package work.fking.corpa.invsnaps;
+
+import org.bukkit.configuration.ConfigurationSection;
+import org.jdbi.v3.core.ConnectionFactory;
+import org.jdbi.v3.core.Jdbi;
+import org.jdbi.v3.sqlite3.SQLitePlugin;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.sqlite.SQLiteConfig;
+
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Long-lived connections to the snapshot database: a single writer connection and a small pool of read-only
+ * connections. The database runs in WAL mode so that reads are never blocked by the writer committing.
+ * <p>
+ * New databases are created with incremental auto vacuum, letting deleted pages be released from the file a few at a
+ * time. Databases created before that need a full {@code VACUUM} to be converted, which is only done when enabled.
+ */
+public final class SqliteDatabase {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SqliteDatabase.class);
+
+    private static final long BORROW_TIMEOUT_SECONDS = 10;
+    private static final int AUTO_VACUUM_INCREMENTAL = 2;
+
+    private final Connection writeConnection;
+    private final List<Connection> readConnections;
+    private final BlockingQueue<Connection> idleReadConnections;
+    private final Map<Connection, CachingStatementBuilder> statementBuilders = new IdentityHashMap<>();
+    private final Jdbi writeJdbi;
+    private final Jdbi readJdbi;
+    private final boolean incrementalVacuum;
+
+    private SqliteDatabase(Connection writeConnection, List<Connection> readConnections, boolean incrementalVacuum) {
+        this.writeConnection = writeConnection;
+        this.incrementalVacuum = incrementalVacuum;
+        this.readConnections = readConnections;
+        this.idleReadConnections = new ArrayBlockingQueue<>(readConnections.size(), false, readConnections);
+
+        statementBuilders.put(writeConnection, new CachingStatementBuilder());
+        readConnections.forEach(connection -> statementBuilders.put(connection, new CachingStatementBuilder()));
+
+        this.writeJdbi = createJdbi(new ConnectionFactory() {
+            @Override
+            public Connection openConnection() {
+                return writeConnection;
+            }
+
+            @Override
+            public void closeConnection(Connection conn) {
+                // the writer connection is kept open until the database is closed
+            }
+        });
+        this.readJdbi = createJdbi(new ConnectionFactory() {
+            @Override
+            public Connection openConnection() throws SQLException {
+                return borrowReadConnection();
+            }
+
+            @Override
+            public void closeConnection(Connection conn) {
+                idleReadConnections.add(conn);
+            }
+        });
+    }
+
+    public static SqliteDatabase open(Path file, Settings settings) throws SQLException {
+        var url = "jdbc:sqlite:" + file;
+        // the writer is opened first as it is the one switching the database to WAL mode
+        var writeConnection = openConnection(url, settings, false);
+        var readConnections = new ArrayList<Connection>(settings.readConnections());
+        boolean incrementalVacuum;
+
+        try {
+            incrementalVacuum = enableIncrementalVacuum(writeConnection, settings);
+
+            for (int i = 0; i < settings.readConnections(); i++) {
+                readConnections.add(openConnection(url, settings, true));
+            }
+        } catch (SQLException e) {
+            readConnections.forEach(SqliteDatabase::closeQuietly);
+            closeQuietly(writeConnection);
+            throw e;
+        }
+        return new SqliteDatabase(writeConnection, readConnections, incrementalVacuum);
+    }
+
+    /**
+     * @return whether the database is in incremental auto vacuum mode.
+     */
+    private static boolean enableIncrementalVacuum(Connection connection, Settings settings) throws SQLException {
+        try (var statement = connection.createStatement()) {
+            if (autoVacuumMode(statement) == AUTO_VACUUM_INCREMENTAL) {
+                return true;
+            }
+            if (!settings.convertToIncrementalVacuum()) {
+                LOGGER.warn("The snapshot database does not use incremental auto vacuum, deleted snapshots won't shrink the file. "
+                        + "Enable convert-to-incremental-vacuum to convert it on the next start.");
+                return false;
+            }
+            LOGGER.info("Converting the snapshot database to incremental auto vacuum, this may take a while...");
+            statement.execute("PRAGMA auto_vacuum = INCREMENTAL");
+            statement.execute("VACUUM");
+            return autoVacuumMode(statement) == AUTO_VACUUM_INCREMENTAL;
+        }
+    }
+
+    private static int autoVacuumMode(Statement statement) throws SQLException {
+        try (var resultSet = statement.executeQuery("PRAGMA auto_vacuum")) {
+            return resultSet.next() ? resultSet.getInt(1) : 0;
+        }
+    }
+
+    private static Connection openConnection(String url, Settings settings, boolean readOnly) throws SQLException {
+        var config = new SQLiteConfig();
+        config.setReadOnly(readOnly);
+        config.setBusyTimeout(settings.busyTimeoutMillis());
+        var connection = config.createConnection(url);
+
+        try (var statement = connection.createStatement()) {
+            if (!readOnly) {
+                // only has an effect when the database is created, before any table exists
+                statement.execute("PRAGMA auto_vacuum = INCREMENTAL");
+                statement.execute("PRAGMA journal_mode = WAL");
+                statement.execute("PRAGMA synchronous = NORMAL");
+            }
+            // a negative cache size is interpreted as KiB instead of pages
+            statement.execute("PRAGMA cache_size = " + -settings.cacheSizeKib());
+            statement.execute("PRAGMA mmap_size = " + settings.mmapSizeMib() * 1024L * 1024L);
+        } catch (SQLException e) {
+            closeQuietly(connection);
+            throw e;
+        }
+        return connection;
+    }
+
+    private Jdbi createJdbi(ConnectionFactory connectionFactory) {
+        return Jdbi.create(connectionFactory)
+                   .installPlugin(new SQLitePlugin())
+                   .setStatementBuilderFactory(statementBuilders::get);
+    }
+
+    private Connection borrowReadConnection() throws SQLException {
+        try {
+            var connection = idleReadConnections.poll(BORROW_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+
+            if (connection == null) {
+                throw new SQLException("Timed out waiting for a read connection");
+            }
+            return connection;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a read connection", e);
+        }
+    }
+
+    /**
+     * Jdbi bound to the writer connection, only to be used from the writer thread.
+     */
+    public Jdbi writeJdbi() {
+        return writeJdbi;
+    }
+
+    /**
+     * Jdbi backed by the read-only connection pool, safe to use from any thread.
+     */
+    public Jdbi readJdbi() {
+        return readJdbi;
+    }
+
+    /**
+     * Whether deleted pages can be released with {@code PRAGMA incremental_vacuum}.
+     */
+    public boolean incrementalVacuum() {
+        return incrementalVacuum;
+    }
+
+    public void close() {
+        statementBuilders.values().forEach(CachingStatementBuilder::closeAll);
+        readConnections.forEach(SqliteDatabase::closeQuietly);
+        closeQuietly(writeConnection);
+    }
+
+    private static void closeQuietly(Connection connection) {
+        try {
+            connection.close();
+        } catch (SQLException e) {
+            LOGGER.warn("Failed to close database connection", e);
+        }
+    }
+
+    public record Settings(
+            int readConnections,
+            int cacheSizeKib,
+            int mmapSizeMib,
+            int busyTimeoutMillis,
+            boolean convertToIncrementalVacuum
+    ) {
+
+        public static Settings fromConfig(ConfigurationSection section) {
+            return new Settings(
+                    Math.max(1, section.getInt("read-connections", 2)),
+                    section.getInt("cache-size-kib", 8192),
+                    section.getInt("mmap-size-mib", 256),
+                    section.getInt("busy-timeout-millis", 5000),
+                    section.getBoolean("convert-to-incremental-vacuum", false)
+            );
+        }
+    }
+}
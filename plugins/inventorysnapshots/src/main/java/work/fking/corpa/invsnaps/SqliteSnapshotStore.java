@@ -0,0 +1,994 @@
+package work.fking.corpa.invsnaps;
+
+import org.jdbi.v3.core.Handle;
+import org.jdbi.v3.core.Jdbi;
+import org.jdbi.v3.core.mapper.reflect.ConstructorMapper;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.zip.Deflater;
+
+/**
+ * Stores snapshots in a SQLite database, written in batches by a {@link SnapshotWriter}. Items may be deduplicated
+ * into an {@link ItemBlobStore}. Every saved snapshot is also added to the {@link MaterialIndex}.
+ */
+public final class SqliteSnapshotStore implements SnapshotStore {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SqliteSnapshotStore.class);
+
+    public static final String FILE_NAME = "inventory_snapshots.sqlite";
+
+    private static final int SWEEP_BATCH_SIZE = 500;
+
+    private static final String CREATE_TABLE = """
+            CREATE TABLE IF NOT EXISTS inventory_snapshot (
+                id INTEGER PRIMARY KEY AUTOINCREMENT,
+                player_uuid VARCHAR(36) NOT NULL,
+                reason VARCHAR(32) NOT NULL,
+                inventory blob NOT NULL,
+                created_at datetime NOT NULL,
+                state blob,
+                base_id INTEGER
+            );
+            """;
+    private static final String LIST_COLUMNS = """
+            PRAGMA table_info(inventory_snapshot)
+            """;
+    private static final String ADD_STATE_COLUMN = """
+            ALTER TABLE inventory_snapshot ADD COLUMN state blob
+            """;
+    private static final String ADD_BASE_ID_COLUMN = """
+            ALTER TABLE inventory_snapshot ADD COLUMN base_id INTEGER
+            """;
+    private static final String LIST_DELTAS = """
+            SELECT
+                id,
+                inventory
+            FROM
+                inventory_snapshot
+            WHERE
+                substr(inventory, 1, 1) = :version
+            """;
+    private static final String UPDATE_BASE_ID = """
+            UPDATE
+                inventory_snapshot
+            SET
+                base_id = :baseId
+            WHERE
+                id = :id
+            """;
+    private static final String DROP_LEGACY_INDEX = """
+            DROP INDEX IF EXISTS idx__player_uuid;
+            """;
+    private static final String CREATE_INDEX = """
+            CREATE INDEX IF NOT EXISTS idx__player_uuid_created_at ON inventory_snapshot(player_uuid, created_at DESC);
+            """;
+    private static final String CREATE_CREATED_AT_INDEX = """
+            CREATE INDEX IF NOT EXISTS idx__created_at ON inventory_snapshot(created_at);
+            """;
+    private static final String CREATE_BASE_ID_INDEX = """
+            CREATE INDEX IF NOT EXISTS idx__base_id ON inventory_snapshot(base_id);
+            """;
+
+    private static final String INSERT = """
+            INSERT INTO 
+                inventory_snapshot(player_uuid, reason, inventory, created_at, state, base_id) 
+            VALUES 
+                (?, ?, ?, ?, ?, ?)
+            """;
+
+    private static final String LIST_BY_PLAYER_ID = """
+            SELECT
+                id,
+                player_uuid,
+                reason,
+                created_at
+            FROM
+                inventory_snapshot
+            WHERE
+                player_uuid = :uuid
+            ORDER BY
+                created_at DESC, id DESC
+            LIMIT :limit
+            """;
+
+    private static final String LIST_OLDER_BY_PLAYER_ID = """
+            SELECT
+                id,
+                player_uuid,
+                reason,
+                created_at
+            FROM
+                inventory_snapshot
+            WHERE
+                player_uuid = :uuid
+                AND (created_at, id) < (SELECT created_at, id FROM inventory_snapshot WHERE id = :cursor)
+            ORDER BY
+                created_at DESC, id DESC
+            LIMIT :limit
+            """;
+
+    private static final String LIST_NEWER_BY_PLAYER_ID = """
+            SELECT
+                id,
+                player_uuid,
+                reason,
+                created_at
+            FROM
+                inventory_snapshot
+            WHERE
+                player_uuid = :uuid
+                AND (created_at, id) > (SELECT created_at, id FROM inventory_snapshot WHERE id = :cursor)
+            ORDER BY
+                created_at ASC, id ASC
+            LIMIT :limit
+            """;
+
+    private static final String FIND_BY_ID = """
+            SELECT
+                id, 
+                player_uuid,
+                reason,
+                inventory, 
+                created_at,
+                state
+            FROM 
+                inventory_snapshot 
+            WHERE 
+                id = :id
+            """;
+
+    private static final String FIND_INVENTORY_BY_ID = """
+            SELECT
+                inventory
+            FROM
+                inventory_snapshot
+            WHERE
+                id = :id
+            """;
+
+    private static final String LIST_DELTAS_BY_BASE_IDS = """
+            SELECT
+                id,
+                inventory
+            FROM
+                inventory_snapshot
+            WHERE
+                base_id IN (<ids>)
+            """;
+
+    private static final String LIST_NOT_IN_VERSION = """
+            SELECT
+                id,
+                player_uuid,
+                reason,
+                inventory,
+                created_at,
+                state
+            FROM
+                inventory_snapshot
+            WHERE
+                id > :after
+                AND substr(inventory, 1, 1) <> :version
+                AND substr(inventory, 1, 1) <> :delta
+            ORDER BY
+                id
+            LIMIT :limit
+            """;
+
+    // inventories are never updated to changes to another snapshot
+    private static final String UPDATE_INVENTORY = """
+            UPDATE
+                inventory_snapshot
+            SET
+                inventory = :inventory,
+                base_id = NULL
+            WHERE
+                id = :id
+            """;
+
+    private static final String COUNT_BY_KEY = """
+            SELECT
+                COUNT(*)
+            FROM
+                inventory_snapshot
+            WHERE
+                player_uuid = :uuid
+                AND created_at = :createdAt
+                AND reason = :reason
+            """;
+
+    private static final String LIST_ALL_BY_PLAYER = """
+            SELECT
+                id,
+                player_uuid,
+                reason,
+                created_at
+            FROM
+                inventory_snapshot
+            ORDER BY
+                player_uuid, created_at DESC
+            """;
+
+    private static final String SUM_SIZE_BY_IDS = """
+            SELECT
+                COALESCE(SUM(length(inventory) + COALESCE(length(state), 0)), 0)
+            FROM
+                inventory_snapshot
+            WHERE
+                id IN (<ids>)
+            """;
+
+    private static final String DELETE_BY_IDS = """
+            DELETE FROM
+                inventory_snapshot
+            WHERE
+                id IN (<ids>)
+            """;
+
+    private static final String LIST_IN_VERSION = """
+            SELECT
+                inventory
+            FROM
+                inventory_snapshot
+            WHERE
+                substr(inventory, 1, 1) = :version
+            """;
+
+    private static final String CREATE_MATERIAL_TABLE = """
+            CREATE TABLE IF NOT EXISTS snapshot_material (
+                material VARCHAR(64) NOT NULL,
+                snapshot_id INTEGER NOT NULL,
+                amount INTEGER NOT NULL,
+                flags INTEGER NOT NULL,
+                created_at datetime NOT NULL,
+                PRIMARY KEY (material, snapshot_id)
+            ) WITHOUT ROWID;
+            """;
+    private static final String CREATE_MATERIAL_SNAPSHOT_INDEX = """
+            CREATE INDEX IF NOT EXISTS idx__snapshot_material_snapshot_id ON snapshot_material(snapshot_id);
+            """;
+
+    private static final String INSERT_MATERIAL = """
+            INSERT INTO
+                snapshot_material(material, snapshot_id, amount, flags, created_at)
+            VALUES
+                (?, ?, ?, ?, ?)
+            """;
+
+    // ids are mostly but not strictly in the order snapshots were taken in, converted stores keep their dates
+    private static final String MIN_ID_SINCE = """
+            SELECT
+                MIN(id)
+            FROM
+                inventory_snapshot
+            WHERE
+                created_at >= :since
+            """;
+
+    private static final String SEARCH_BY_MATERIAL = """
+            SELECT
+                s.id,
+                s.player_uuid,
+                s.reason,
+                s.created_at,
+                m.amount,
+                m.flags
+            FROM
+                snapshot_material m
+                JOIN inventory_snapshot s ON s.id = m.snapshot_id
+            WHERE
+                m.material = :material
+                AND m.snapshot_id < :cursor
+                AND m.amount >= :minAmount
+                AND (m.flags & :flags) = :flags
+                AND m.snapshot_id >= :minId
+                AND m.created_at >= :since
+            ORDER BY
+                m.snapshot_id DESC
+            LIMIT :limit
+            """;
+
+    private static final String DELETE_MATERIALS_BY_IDS = """
+            DELETE FROM
+                snapshot_material
+            WHERE
+                snapshot_id IN (<ids>)
+            """;
+
+    private static final String LIST_LATEST_BEFORE = """
+            SELECT
+                id,
+                player_uuid,
+                reason,
+                created_at
+            FROM
+                inventory_snapshot
+            WHERE
+                id IN (
+                    SELECT
+                        (
+                            SELECT
+                                s.id
+                            FROM
+                                inventory_snapshot s
+                            WHERE
+                                s.player_uuid = p.player_uuid
+                                AND s.created_at < :before
+                            ORDER BY
+                                s.created_at DESC, s.id DESC
+                            LIMIT 1
+                        )
+                    FROM
+                        (SELECT DISTINCT player_uuid FROM inventory_snapshot) p
+                )
+            """;
+
+    private static final String LIST_LATEST_BEFORE_BY_PLAYERS = """
+            SELECT
+                id,
+                player_uuid,
+                reason,
+                created_at
+            FROM
+                inventory_snapshot
+            WHERE
+                id IN (
+                    SELECT
+                        (
+                            SELECT
+                                s.id
+                            FROM
+                                inventory_snapshot s
+                            WHERE
+                                s.player_uuid = p.player_uuid
+                                AND s.created_at < :before
+                            ORDER BY
+                                s.created_at DESC, s.id DESC
+                            LIMIT 1
+                        )
+                    FROM
+                        (SELECT DISTINCT player_uuid FROM inventory_snapshot WHERE player_uuid IN (<uuids>)) p
+                )
+            """;
+
+    private static final String CREATE_PLAYER_TABLE = """
+            CREATE TABLE IF NOT EXISTS snapshot_player (
+                player_uuid VARCHAR(36) PRIMARY KEY,
+                name VARCHAR(16) NOT NULL
+            );
+            """;
+
+    private static final String UPSERT_PLAYER = """
+            INSERT INTO
+                snapshot_player(player_uuid, name)
+            VALUES
+                (:uuid, :name)
+            ON CONFLICT(player_uuid) DO UPDATE SET
+                name = excluded.name
+            """;
+
+    private static final String LIST_PLAYERS = """
+            SELECT
+                player_uuid,
+                name
+            FROM
+                snapshot_player
+            UNION ALL
+            SELECT DISTINCT
+                player_uuid,
+                NULL
+            FROM
+                inventory_snapshot
+            WHERE
+                player_uuid NOT IN (SELECT player_uuid FROM snapshot_player)
+            """;
+
+    private final SqliteDatabase database;
+    private final SnapshotRepository.Settings settings;
+    private final Jdbi jdbi;
+    private final ItemBlobStore blobStore;
+    private final SnapshotWriter writer;
+    private final Metrics.Histogram encodeLatency;
+    private final Metrics.Histogram insertLatency;
+    private final Metrics.Histogram indexLatency;
+    private final Metrics.Histogram storedSize;
+    private final LongAdder bytesWritten;
+
+    // only ever used by the writer thread
+    private PreparedStatement insertStatement;
+    private PreparedStatement insertMaterialStatement;
+
+    private SqliteSnapshotStore(SqliteDatabase database, SnapshotRepository.Settings settings, Handle writeHandle, Metrics metrics, StatementMetrics statementMetrics) {
+        this.database = database;
+        this.settings = settings;
+        this.jdbi = database.readJdbi();
+        this.encodeLatency = metrics.latency("encode");
+        this.insertLatency = metrics.latency("insert");
+        this.indexLatency = metrics.latency("index_materials");
+        this.storedSize = metrics.size("stored_size");
+        this.bytesWritten = metrics.counter("bytes_written");
+
+        statementMetrics.register(FIND_BY_ID, "find_by_id");
+        statementMetrics.register(FIND_INVENTORY_BY_ID, "find_inventory_by_id");
+        statementMetrics.register(LIST_DELTAS_BY_BASE_IDS, "list_deltas_by_base_ids");
+        statementMetrics.register(LIST_BY_PLAYER_ID, "list_by_player");
+        statementMetrics.register(LIST_OLDER_BY_PLAYER_ID, "list_older_by_player");
+        statementMetrics.register(LIST_NEWER_BY_PLAYER_ID, "list_newer_by_player");
+        statementMetrics.register(LIST_NOT_IN_VERSION, "list_not_in_version");
+        statementMetrics.register(UPDATE_INVENTORY, "update_inventory");
+        statementMetrics.register(LIST_ALL_BY_PLAYER, "list_all_by_player");
+        statementMetrics.register(DELETE_BY_IDS, "delete_by_ids");
+        statementMetrics.register(LIST_IN_VERSION, "list_in_version");
+        statementMetrics.register(COUNT_BY_KEY, "count_by_key");
+        statementMetrics.register(SEARCH_BY_MATERIAL, "search_by_material");
+        statementMetrics.register(UPSERT_PLAYER, "upsert_player");
+        statementMetrics.register(LIST_LATEST_BEFORE, "list_latest_before");
+        statementMetrics.register(LIST_LATEST_BEFORE_BY_PLAYERS, "list_latest_before_by_players");
+        statementMetrics.register(LIST_PLAYERS, "list_players");
+        statementMetrics.register(DELETE_MATERIALS_BY_IDS, "delete_materials_by_ids");
+
+        this.blobStore = new ItemBlobStore(settings.itemCacheMib() * 1024L * 1024L, statementMetrics);
+        this.writer = SnapshotWriter.start(writeHandle, this::insertBatch, new SnapshotWriter.TransactionListener() {
+            @Override
+            public void committed() {
+                blobStore.transactionCommitted();
+            }
+
+            @Override
+            public void rolledBack() {
+                blobStore.transactionRolledBack();
+            }
+        });
+    }
+
+    public static SqliteSnapshotStore open(Path file, SqliteDatabase.Settings databaseSettings, SnapshotRepository.Settings settings, Metrics metrics) throws SQLException {
+        var database = SqliteDatabase.open(file, databaseSettings);
+        // handles pick up the logger when opened, it has to be installed before the writer's handle is
+        var statementMetrics = new StatementMetrics(metrics);
+        database.readJdbi().setSqlLogger(statementMetrics);
+        database.writeJdbi().setSqlLogger(statementMetrics);
+        var writeHandle = database.writeJdbi().open();
+        writeHandle.execute(CREATE_TABLE);
+
+        var columns = writeHandle.createQuery(LIST_COLUMNS).map((rs, ctx) -> rs.getString("name")).list();
+
+        // databases created before the player state was captured
+        if (!columns.contains("state")) {
+            writeHandle.execute(ADD_STATE_COLUMN);
+        }
+        // databases created before the base of deltas was stored in a column of its own
+        if (!columns.contains("base_id")) {
+            writeHandle.execute(ADD_BASE_ID_COLUMN);
+            fillBaseIds(writeHandle);
+        }
+        writeHandle.execute(DROP_LEGACY_INDEX);
+        writeHandle.execute(CREATE_INDEX);
+        writeHandle.execute(CREATE_CREATED_AT_INDEX);
+        writeHandle.execute(CREATE_BASE_ID_INDEX);
+        writeHandle.execute(ItemBlobStore.CREATE_TABLE);
+        writeHandle.execute(CREATE_MATERIAL_TABLE);
+        writeHandle.execute(CREATE_MATERIAL_SNAPSHOT_INDEX);
+        writeHandle.execute(CREATE_PLAYER_TABLE);
+
+        database.readJdbi().registerRowMapper(Snapshot.class, ConstructorMapper.of(Snapshot.class));
+        database.readJdbi().registerRowMapper(SnapshotSummary.class, ConstructorMapper.of(SnapshotSummary.class));
+
+        return new SqliteSnapshotStore(database, settings, writeHandle, metrics, statementMetrics);
+    }
+
+    @Override
+    public @Nullable Snapshot findById(int id) {
+        try (var handle = jdbi.open()) {
+            return handle.createQuery(FIND_BY_ID)
+                         .bind("id", id)
+                         .mapTo(Snapshot.class)
+                         .findOne()
+                         .map(snapshot -> snapshot.withInventory(resolve(handle, snapshot.id(), snapshot.inventory())))
+                         .orElse(null);
+        }
+    }
+
+    /**
+     * Snapshots stored as item references or as changes to another snapshot can't be deserialized on their own, their
+     * items are looked up and the inventory is handed out in the slotted format instead. The snapshot a delta is based
+     * on is never deleted before the delta is.
+     */
+    private byte[] resolve(Handle handle, int id, byte[] inventory) {
+        try {
+            // not stored, no point in spending time compressing them
+            return switch (ItemStackSerializer.version(inventory)) {
+                case ItemStackSerializer.VERSION_REFERENCES -> ItemStackSerializer.writeSlotted(blobStore.resolve(handle, inventory), Deflater.NO_COMPRESSION, 0);
+                case ItemStackSerializer.VERSION_DELTA -> {
+                    var baseId = ItemStackSerializer.deltaBaseId(inventory);
+                    var base = handle.createQuery(FIND_INVENTORY_BY_ID)
+                                     .bind("id", baseId)
+                                     .map((rs, ctx) -> rs.getBytes("inventory"))
+                                     .findOne()
+                                     .orElseThrow(() -> new IOException("Snapshot " + baseId + " is missing"));
+                    yield ItemStackSerializer.resolveDelta(resolve(handle, baseId, base), inventory);
+                }
+                default -> inventory;
+            };
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to resolve the items of snapshot " + id, e);
+        }
+    }
+
+    /**
+     * Pages are located by keyset rather than by offset so that any page is as cheap to fetch as the first one.
+     */
+    @Override
+    public SnapshotPage findForList(UUID playerUuid, @Nullable SnapshotPage.Cursor cursor, int pageSize) {
+        String sql;
+
+        if (cursor == null) {
+            sql = LIST_BY_PLAYER_ID;
+        } else {
+            sql = cursor.newer() ? LIST_NEWER_BY_PLAYER_ID : LIST_OLDER_BY_PLAYER_ID;
+        }
+        try (var handle = jdbi.open()) {
+            var rows = handle.createQuery(sql)
+                             .bind("uuid", playerUuid)
+                             .bind("cursor", cursor == null ? -1 : cursor.snapshotId())
+                             .bind("limit", pageSize + 1) // one extra row tells us whether there's another page
+                             .mapTo(SnapshotSummary.class)
+                             .list();
+            return SnapshotPage.fromRows(rows, cursor, pageSize);
+        }
+    }
+
+    /**
+     * Every player's latest snapshot is found through the player and time index, in a single query.
+     */
+    @Override
+    public List<SnapshotSummary> findLatestBefore(LocalDateTime before, @Nullable Collection<UUID> playerUuids) {
+        if (playerUuids != null && playerUuids.isEmpty()) {
+            return List.of();
+        }
+        try (var handle = jdbi.open()) {
+            var query = handle.createQuery(playerUuids == null ? LIST_LATEST_BEFORE : LIST_LATEST_BEFORE_BY_PLAYERS)
+                              .bind("before", Timestamp.valueOf(before));
+
+            if (playerUuids != null) {
+                query.bindList("uuids", playerUuids.stream().map(UUID::toString).toList());
+            }
+            return query.mapTo(SnapshotSummary.class).list();
+        }
+    }
+
+    @Override
+    public boolean contains(Snapshot snapshot) {
+        try (var handle = jdbi.open()) {
+            return handle.createQuery(COUNT_BY_KEY)
+                         .bind("uuid", snapshot.playerUuid())
+                         .bind("createdAt", Timestamp.valueOf(snapshot.createdAt()))
+                         .bind("reason", snapshot.reason().name())
+                         .mapTo(Integer.class)
+                         .one() > 0;
+        }
+    }
+
+    /**
+     * Queues the snapshot to be written by the store's writer thread.
+     *
+     * @return a future completed with the persisted snapshot, including its id, once its batch has been committed.
+     */
+    @Override
+    public CompletableFuture<Snapshot> save(Snapshot snapshot) {
+        return writer.enqueue(snapshot);
+    }
+
+    /**
+     * Writes the snapshots in a single transaction on the writer thread, regardless of how many there are.
+     */
+    @Override
+    public CompletableFuture<List<Snapshot>> saveAll(List<Snapshot> snapshots) {
+        return writer.submit(handle -> insertBatch(handle, snapshots));
+    }
+
+    /**
+     * Depends on the storage settings.
+     */
+    @Override
+    public int storageVersion() {
+        if (settings.deduplicate()) {
+            return ItemStackSerializer.VERSION_REFERENCES;
+        }
+        return settings.compress() ? ItemStackSerializer.VERSION_SLOTTED : ItemStackSerializer.VERSION_PLAIN;
+    }
+
+    @Override
+    public List<Snapshot> findForMigration(int afterId, int limit) {
+        try (var handle = jdbi.open()) {
+            return handle.createQuery(LIST_NOT_IN_VERSION)
+                         .bind("after", afterId)
+                         .bind("version", new byte[]{(byte) storageVersion()})
+                         .bind("delta", new byte[]{(byte) ItemStackSerializer.VERSION_DELTA})
+                         .bind("limit", limit)
+                         .mapTo(Snapshot.class)
+                         .list();
+        }
+    }
+
+    /**
+     * Re-encodes the inventories in a single transaction on the writer thread.
+     */
+    @Override
+    public CompletableFuture<List<Snapshot>> reencode(List<Snapshot> snapshots) {
+        return writer.submit(handle -> {
+            var batch = handle.prepareBatch(UPDATE_INVENTORY);
+            var stored = new ArrayList<Snapshot>(snapshots.size());
+
+            for (var snapshot : snapshots) {
+                var inventory = encodeForStorage(handle, snapshot.inventory());
+                bytesWritten.add(inventory.length);
+                stored.add(snapshot.withInventory(inventory));
+                batch.bind("id", snapshot.id())
+                     .bind("inventory", inventory)
+                     .add();
+            }
+            if (batch.size() > 0) {
+                batch.execute();
+            }
+            return stored;
+        });
+    }
+
+    // encoding happens on the writer thread, keeping it off the thread capturing the snapshot
+    private byte[] encodeForStorage(Handle handle, byte[] serialized) throws IOException {
+        var currentVersion = ItemStackSerializer.version(serialized);
+        var storageVersion = storageVersion();
+
+        // resolved inventories are handed out in the slotted format too, but uncompressed
+        var stored = currentVersion == storageVersion && (currentVersion != ItemStackSerializer.VERSION_SLOTTED || ItemStackSerializer.isDeflated(serialized));
+
+        if (stored || storageVersion == ItemStackSerializer.VERSION_PLAIN) {
+            return serialized;
+        }
+        if (currentVersion == ItemStackSerializer.VERSION_DELTA) {
+            return ItemStackSerializer.compressDelta(serialized);
+        }
+        SerializedInventory inventory;
+
+        if (currentVersion == ItemStackSerializer.VERSION_REFERENCES) {
+            inventory = blobStore.resolve(handle, serialized);
+        } else {
+            inventory = ItemStackSerializer.read(serialized);
+        }
+        if (storageVersion == ItemStackSerializer.VERSION_REFERENCES) {
+            return blobStore.store(handle, inventory);
+        }
+        return ItemStackSerializer.writeSlotted(inventory, Deflater.DEFAULT_COMPRESSION, serialized.length / 4);
+    }
+
+    private List<Snapshot> insertBatch(Handle handle, List<Snapshot> snapshots) throws SQLException, IOException {
+        if (insertStatement == null) {
+            insertStatement = handle.getConnection().prepareStatement(INSERT, Statement.RETURN_GENERATED_KEYS);
+            insertMaterialStatement = handle.getConnection().prepareStatement(INSERT_MATERIAL);
+        }
+        // left over by a batch which failed and was rolled back, their snapshot ids may be handed out again
+        insertMaterialStatement.clearBatch();
+        var persisted = new ArrayList<Snapshot>(snapshots.size());
+
+        for (var snapshot : snapshots) {
+            var start = System.nanoTime();
+            var stored = snapshot.withInventory(encodeForStorage(handle, snapshot.inventory()));
+            encodeLatency.recordSince(start);
+
+            start = System.nanoTime();
+            insertStatement.setString(1, stored.playerUuid().toString());
+            insertStatement.setString(2, stored.reason().name());
+            insertStatement.setBytes(3, stored.inventory());
+            insertStatement.setTimestamp(4, Timestamp.valueOf(stored.createdAt()));
+            insertStatement.setBytes(5, stored.state());
+
+            if (ItemStackSerializer.version(stored.inventory()) == ItemStackSerializer.VERSION_DELTA) {
+                insertStatement.setInt(6, ItemStackSerializer.deltaBaseId(stored.inventory()));
+            } else {
+                insertStatement.setNull(6, Types.INTEGER);
+            }
+            insertStatement.executeUpdate();
+
+            try (var keys = insertStatement.getGeneratedKeys()) {
+                keys.next();
+                persisted.add(stored.withId(keys.getInt(1)));
+            }
+            insertLatency.recordSince(start);
+            storedSize.record(stored.inventory().length);
+            bytesWritten.add(stored.inventory().length + (stored.state() == null ? 0 : stored.state().length));
+
+            start = System.nanoTime();
+            var id = persisted.get(persisted.size() - 1).id();
+            indexMaterials(id, snapshot.withInventory(resolve(handle, id, snapshot.inventory())));
+            indexLatency.recordSince(start);
+        }
+        insertMaterialStatement.executeBatch();
+        return persisted;
+    }
+
+    // the captured inventory is read rather than the stored one, deltas are resolved, items are only deserialized when
+    // their NBT can't be read as is
+    private void indexMaterials(int id, Snapshot snapshot) throws SQLException {
+        List<MaterialIndex.Entry> entries;
+
+        try {
+            entries = MaterialIndex.entries(InventoryView.of(snapshot.inventory()));
+        } catch (RuntimeException e) {
+            // not worth losing the snapshot over, it just won't show up in searches
+            LOGGER.warn("Failed to index the materials of snapshot {}", id, e);
+            return;
+        }
+        var createdAt = Timestamp.valueOf(snapshot.createdAt());
+
+        for (var entry : entries) {
+            insertMaterialStatement.setString(1, entry.material());
+            insertMaterialStatement.setInt(2, id);
+            insertMaterialStatement.setInt(3, entry.amount());
+            insertMaterialStatement.setInt(4, entry.flags());
+            insertMaterialStatement.setTimestamp(5, createdAt);
+            insertMaterialStatement.addBatch();
+        }
+    }
+
+    /**
+     * Answered from the material index alone, pages are located by keyset. The window is turned into a range of ids
+     * when fetching the first page, so that only the entries of the material within it are read rather than all of
+     * them, the older pages carry it over in their cursor.
+     */
+    @Override
+    public MaterialIndex.Page search(String material, int minAmount, int flags, LocalDateTime since, @Nullable MaterialIndex.Cursor cursor, int pageSize) {
+        try (var handle = jdbi.open()) {
+            int minId;
+
+            if (cursor != null) {
+                minId = cursor.minId();
+            } else {
+                var first = handle.createQuery(MIN_ID_SINCE)
+                                  .bind("since", Timestamp.valueOf(since))
+                                  .mapTo(Integer.class)
+                                  .findOne();
+
+                if (first.isEmpty()) {
+                    return new MaterialIndex.Page(List.of(), false, 0);
+                }
+                minId = first.get();
+            }
+            var matches = handle.createQuery(SEARCH_BY_MATERIAL)
+                                .bind("material", material)
+                                .bind("cursor", cursor == null ? Integer.MAX_VALUE : cursor.snapshotId())
+                                .bind("minId", minId)
+                                .bind("minAmount", minAmount)
+                                .bind("flags", flags)
+                                .bind("since", Timestamp.valueOf(since))
+                                .bind("limit", pageSize + 1) // one extra row tells us whether there's another page
+                                .map((rs, ctx) -> new MaterialIndex.Match(
+                                        ctx.findRowMapperFor(SnapshotSummary.class).orElseThrow().map(rs, ctx),
+                                        rs.getInt("amount"),
+                                        rs.getInt("flags")
+                                ))
+                                .list();
+
+            if (matches.size() > pageSize) {
+                return new MaterialIndex.Page(matches.subList(0, pageSize), true, minId);
+            }
+            return new MaterialIndex.Page(matches, false, minId);
+        }
+    }
+
+    @Override
+    public void forEachSummary(Consumer<SnapshotSummary> consumer) {
+        try (var handle = jdbi.open()) {
+            handle.createQuery(LIST_ALL_BY_PLAYER)
+                  .mapTo(SnapshotSummary.class)
+                  .useStream(summaries -> summaries.forEach(consumer));
+        }
+    }
+
+    @Override
+    public void forEachPlayer(BiConsumer<UUID, String> consumer) {
+        try (var handle = jdbi.open()) {
+            handle.createQuery(LIST_PLAYERS)
+                  .map((rs, ctx) -> new PlayerName(UUID.fromString(rs.getString("player_uuid")), rs.getString("name")))
+                  .useStream(players -> players.forEach(player -> consumer.accept(player.playerUuid(), player.name())));
+        }
+    }
+
+    @Override
+    public CompletableFuture<Void> savePlayerName(UUID playerUuid, String name) {
+        return writer.submit(handle -> {
+            handle.createUpdate(UPSERT_PLAYER)
+                  .bind("uuid", playerUuid.toString())
+                  .bind("name", name)
+                  .execute();
+            return null;
+        });
+    }
+
+    /**
+     * Deletes the snapshots in a single transaction on the writer thread.
+     */
+    @Override
+    public CompletableFuture<Long> delete(List<SnapshotSummary> snapshots) {
+        var ids = snapshots.stream().map(SnapshotSummary::id).toList();
+
+        return writer.submit(handle -> {
+            materializeDependents(handle, ids);
+            var bytes = handle.createQuery(SUM_SIZE_BY_IDS)
+                              .bindList("ids", ids)
+                              .mapTo(Long.class)
+                              .one();
+            handle.createUpdate(DELETE_BY_IDS)
+                  .bindList("ids", ids)
+                  .execute();
+            handle.createUpdate(DELETE_MATERIALS_BY_IDS)
+                  .bindList("ids", ids)
+                  .execute();
+            return bytes;
+        });
+    }
+
+    /**
+     * Stores the full inventory of the snapshots stored as changes to one of the deleted snapshots, found through the
+     * index on their base id.
+     */
+    private void materializeDependents(Handle handle, List<Integer> ids) throws IOException {
+        var deletedIds = new HashSet<>(ids);
+        var deltas = handle.createQuery(LIST_DELTAS_BY_BASE_IDS)
+                           .bindList("ids", ids)
+                           .map((rs, ctx) -> new StoredInventory(rs.getInt("id"), rs.getBytes("inventory")))
+                           .list();
+        var batch = handle.prepareBatch(UPDATE_INVENTORY);
+
+        for (var delta : deltas) {
+            if (deletedIds.contains(delta.id())) {
+                continue;
+            }
+            var inventory = encodeForStorage(handle, resolve(handle, delta.id(), delta.inventory()));
+            batch.bind("id", delta.id())
+                 .bind("inventory", inventory)
+                 .add();
+        }
+        if (batch.size() > 0) {
+            batch.execute();
+        }
+    }
+
+    /**
+     * Reads the base id of the deltas stored before it had a column of its own, only restorations are stored as deltas
+     * so there are few of them.
+     */
+    private static void fillBaseIds(Handle handle) {
+        var deltas = handle.createQuery(LIST_DELTAS)
+                           .bind("version", new byte[]{(byte) ItemStackSerializer.VERSION_DELTA})
+                           .map((rs, ctx) -> new StoredInventory(rs.getInt("id"), rs.getBytes("inventory")))
+                           .list();
+        var batch = handle.prepareBatch(UPDATE_BASE_ID);
+
+        for (var delta : deltas) {
+            batch.bind("id", delta.id())
+                 .bind("baseId", ItemStackSerializer.deltaBaseId(delta.inventory()))
+                 .add();
+        }
+        if (batch.size() > 0) {
+            batch.execute();
+        }
+    }
+
+    /**
+     * Releases up to the given amount of free pages from the database file, on the writer thread. Does nothing unless
+     * the database is in incremental auto vacuum mode.
+     */
+    @Override
+    public CompletableFuture<Long> releaseFreeSpace(int maxPages) {
+        if (!database.incrementalVacuum()) {
+            return CompletableFuture.completedFuture(0L);
+        }
+        return writer.submit(handle -> {
+            var freePages = pragma(handle, "freelist_count");
+
+            try (var statement = handle.getConnection().createStatement()) {
+                // sqlite releases one page per step, every row has to be consumed for the whole vacuum to happen
+                if (statement.execute("PRAGMA incremental_vacuum(" + maxPages + ")")) {
+                    try (var resultSet = statement.getResultSet()) {
+                        while (resultSet.next()) {
+                            // consumed for the side effect
+                        }
+                    }
+                }
+            }
+            return (freePages - pragma(handle, "freelist_count")) * pragma(handle, "page_size");
+        });
+    }
+
+    private static long pragma(Handle handle, String name) {
+        return handle.createQuery("PRAGMA " + name)
+                     .mapTo(Long.class)
+                     .one();
+    }
+
+    /**
+     * Collects the stored items which are no longer referenced by any snapshot. Runs on the calling thread, only the
+     * deletes are done by the writer.
+     */
+    @Override
+    public ItemBlobStore.Sweep collectUnusedItems() {
+        writer.submit(handle -> {
+            blobStore.startCollection();
+            return null;
+        }).join();
+
+        try {
+            var marked = new HashSet<ItemHash>();
+            List<ItemHash> unmarked;
+
+            try (var handle = jdbi.open()) {
+                handle.createQuery(LIST_IN_VERSION)
+                      .bind("version", new byte[]{(byte) ItemStackSerializer.VERSION_REFERENCES})
+                      .map((rs, ctx) -> rs.getBytes("inventory"))
+                      .useStream(inventories -> inventories.forEach(inventory -> mark(inventory, marked)));
+                unmarked = blobStore.findUnmarked(handle, marked);
+            }
+            var swept = new ItemBlobStore.Sweep(0, 0);
+
+            for (int i = 0; i < unmarked.size(); i += SWEEP_BATCH_SIZE) {
+                var batch = unmarked.subList(i, Math.min(unmarked.size(), i + SWEEP_BATCH_SIZE));
+                var sweep = writer.submit(handle -> blobStore.sweep(handle, batch)).join();
+                swept = new ItemBlobStore.Sweep(swept.items() + sweep.items(), swept.bytes() + sweep.bytes());
+            }
+            return swept;
+        } finally {
+            writer.submit(handle -> {
+                blobStore.endCollection();
+                return null;
+            });
+        }
+    }
+
+    private static void mark(byte[] inventory, Set<ItemHash> marked) {
+        try {
+            Collections.addAll(marked, ItemStackSerializer.readReferences(inventory).hashes());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public SnapshotWriter.Stats writerStats() {
+        return writer.stats();
+    }
+
+    @Override
+    public void close(Duration timeout) {
+        writer.stop(timeout);
+        database.close();
+    }
+
+    private record PlayerName(UUID playerUuid, @Nullable String name) {
+    }
+
+    private record StoredInventory(int id, byte[] inventory) {
+    }
+}
@@ -0,0 +1,35 @@
+package work.fking.corpa.invsnaps;
+
+import org.jdbi.v3.core.statement.SqlLogger;
+import org.jdbi.v3.core.statement.StatementContext;
+
+import java.time.temporal.ChronoUnit;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Records the execution time of named SQL statements into a {@code query.<name>} latency histogram. Statements which
+ * weren't registered, such as the schema setup, are not recorded.
+ */
+public final class StatementMetrics implements SqlLogger {
+
+    private final Metrics metrics;
+    private final Map<String, Metrics.Histogram> statements = new ConcurrentHashMap<>();
+
+    public StatementMetrics(Metrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public void register(String sql, String name) {
+        statements.put(sql, metrics.latency("query." + name));
+    }
+
+    @Override
+    public void logAfterExecution(StatementContext context) {
+        var histogram = statements.get(context.getRawSql());
+
+        if (histogram != null) {
+            histogram.record(context.getElapsedTime(ChronoUnit.MICROS));
+        }
+    }
+}
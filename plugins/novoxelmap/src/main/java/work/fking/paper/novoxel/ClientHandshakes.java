@@ -0,0 +1,162 @@
+package work.fking.paper.novoxel;
+
+import javax.annotation.Nullable;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Tracks the client brand of every connecting player, keyed by their id, and decides about their client exactly once:
+ * as soon as they've both joined and sent their brand, or once their brand took too long to arrive.
+ * <p>
+ * Clients usually send their brand after the server considers them joined, so joins alone can't be decided on. Brands
+ * may be received on any thread, everything else runs on the main thread, which is the one decisions are made on.
+ * <p>
+ * Handshakes started by a brand expire like joined ones do, so that the brands of players who never join, or who
+ * already quit, aren't kept around.
+ */
+final class ClientHandshakes {
+
+    private final ConcurrentMap<UUID, Handshake> handshakes = new ConcurrentHashMap<>();
+    // in deadline order, as every handshake waits as long, give or take the tick brands received meanwhile arrive on
+    private final Queue<Handshake> awaiting = new ConcurrentLinkedQueue<>();
+    private final long timeoutTicks;
+    private final Decider decider;
+    // read by the threads brands are received on
+    private volatile long currentTick;
+
+    ClientHandshakes(long timeoutTicks, Decider decider) {
+        this.timeoutTicks = timeoutTicks;
+        this.decider = decider;
+    }
+
+    /**
+     * Records the player's brand, and decides right away if they already joined.
+     *
+     * @return whether a decision is due, made by calling {@link #decide} on the main thread.
+     */
+    boolean brandReceived(UUID playerUuid, String brand) {
+        Handshake handshake = handshakes.get(playerUuid);
+
+        if (handshake == null) {
+            Handshake created = new Handshake(playerUuid);
+            created.deadlineTick = currentTick + timeoutTicks;
+            handshake = handshakes.putIfAbsent(playerUuid, created);
+
+            if (handshake == null) {
+                handshake = created;
+                awaiting.add(created);
+            }
+        }
+
+        synchronized (handshake) {
+            if (handshake.state == State.DECIDED) {
+                return false;
+            }
+            handshake.brand = brand;
+            return handshake.state == State.JOINED;
+        }
+    }
+
+    /**
+     * Decides right away if the player's brand already arrived, or waits for it otherwise.
+     */
+    void joined(UUID playerUuid) {
+        Handshake handshake = handshakes.computeIfAbsent(playerUuid, Handshake::new);
+
+        synchronized (handshake) {
+            if (handshake.state != State.CONNECTING) {
+                return;
+            }
+            handshake.state = State.JOINED;
+
+            if (handshake.brand == null) {
+                handshake.deadlineTick = currentTick + timeoutTicks;
+                awaiting.add(handshake);
+                return;
+            }
+        }
+        decide(playerUuid);
+    }
+
+    void quit(UUID playerUuid) {
+        handshakes.remove(playerUuid);
+    }
+
+    /**
+     * Decides about the player's client, unless it was decided about already.
+     */
+    void decide(UUID playerUuid) {
+        Handshake handshake = handshakes.get(playerUuid);
+
+        if (handshake == null) {
+            return;
+        }
+        String brand;
+
+        synchronized (handshake) {
+            if (handshake.state != State.JOINED) {
+                return;
+            }
+            handshake.state = State.DECIDED;
+            brand = handshake.brand;
+        }
+        decider.decide(playerUuid, brand);
+    }
+
+    /**
+     * Decides about the players whose brand didn't arrive in time, and forgets the brands of players who didn't join in
+     * time. Runs every tick.
+     */
+    void tick() {
+        long tick = ++currentTick;
+        Handshake handshake;
+
+        while ((handshake = awaiting.peek()) != null && handshake.deadlineTick <= tick) {
+            awaiting.poll();
+
+            // the player may have quit, or have been decided about when their brand arrived
+            if (handshakes.get(handshake.playerUuid) != handshake) {
+                continue;
+            }
+            boolean connecting;
+
+            synchronized (handshake) {
+                connecting = handshake.state == State.CONNECTING;
+            }
+            if (connecting) {
+                handshakes.remove(handshake.playerUuid, handshake);
+            } else {
+                decide(handshake.playerUuid);
+            }
+        }
+    }
+
+    interface Decider {
+
+        /**
+         * @param brand the brand the client sent, or null if it didn't send one in time.
+         */
+        void decide(UUID playerUuid, @Nullable String brand);
+    }
+
+    private enum State {
+        CONNECTING,
+        JOINED,
+        DECIDED
+    }
+
+    private static final class Handshake {
+
+        private final UUID playerUuid;
+        private State state = State.CONNECTING;
+        private String brand;
+        private long deadlineTick;
+
+        private Handshake(UUID playerUuid) {
+            this.playerUuid = playerUuid;
+        }
+    }
+}
@@ -0,0 +1,183 @@
+package work.fking.paper.novoxel;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Every policy's patterns compiled into a single brand pattern and a single channel pattern, so that a client is
+ * matched against all of them in one pass.
+ * <p>
+ * Each policy's patterns make up an optional lookahead capturing a group of its own, which is only set if one of them
+ * fully matches, the groups which are set once the pattern ran tell which policies matched. Matches are handed out as
+ * a bit mask of the policies' indexes, whose payloads are merged once and reused for every client matching the same
+ * policies.
+ */
+final class ClientPolicies {
+
+    static final int MAX_POLICIES = Long.SIZE;
+
+    private final List<ClientPolicy> policies;
+    private final @Nullable Pattern brandPattern;
+    private final @Nullable Pattern channelPattern;
+    // the group of every policy, null for the policies without patterns
+    private final String[] brandGroups;
+    private final String[] channelGroups;
+    private final ConcurrentMap<Long, Payload> payloads = new ConcurrentHashMap<>();
+
+    private ClientPolicies(List<ClientPolicy> policies) {
+        List<List<String>> brands = new ArrayList<>();
+        List<List<String>> channels = new ArrayList<>();
+
+        for (ClientPolicy policy : policies) {
+            brands.add(policy.brands());
+            channels.add(policy.channels());
+        }
+        this.policies = policies;
+        this.brandGroups = groups(brands);
+        this.channelGroups = groups(channels);
+        this.brandPattern = combine(brands, brandGroups);
+        this.channelPattern = combine(channels, channelGroups);
+    }
+
+    /**
+     * @throws IllegalArgumentException if there are more than {@link #MAX_POLICIES} policies.
+     */
+    static ClientPolicies compile(List<ClientPolicy> policies) {
+        if (policies.size() > MAX_POLICIES) {
+            throw new IllegalArgumentException("At most " + MAX_POLICIES + " policies are supported, got " + policies.size());
+        }
+        ClientPolicies compiled = new ClientPolicies(new ArrayList<>(policies));
+
+        // the payloads of single policies are the common case, they're merged right away
+        for (int i = 0; i < policies.size(); i++) {
+            compiled.payload(1L << i);
+        }
+        return compiled;
+    }
+
+    /**
+     * @param brand    the client's brand, empty if it didn't send one.
+     * @param channels the plugin channels the client registered.
+     * @return the mask of the policies the client matched.
+     */
+    long match(String brand, Collection<String> channels) {
+        long matched = 0;
+
+        if (brandPattern != null) {
+            matched = match(brandPattern.matcher(brand), brandGroups);
+        }
+        if (channelPattern != null) {
+            Matcher matcher = null;
+
+            for (String channel : channels) {
+                matcher = matcher == null ? channelPattern.matcher(channel) : matcher.reset(channel);
+                matched |= match(matcher, channelGroups);
+            }
+        }
+        return matched;
+    }
+
+    /**
+     * The payloads of the matched policies merged together: their chat codes in a single line and their plugin messages.
+     */
+    Payload payload(long matched) {
+        return payloads.computeIfAbsent(matched, this::merge);
+    }
+
+    int size() {
+        return policies.size();
+    }
+
+    private static long match(Matcher matcher, String[] groups) {
+        long matched = 0;
+
+        // the pattern is made of optional lookaheads only, it always matches
+        matcher.lookingAt();
+
+        for (int i = 0; i < groups.length; i++) {
+            if (groups[i] != null && matcher.start(groups[i]) >= 0) {
+                matched |= 1L << i;
+            }
+        }
+        return matched;
+    }
+
+    private Payload merge(long matched) {
+        StringBuilder chat = new StringBuilder();
+        List<String> names = new ArrayList<>();
+        List<ClientPolicy.PluginMessage> pluginMessages = new ArrayList<>();
+
+        for (int i = 0; i < policies.size(); i++) {
+            if ((matched & 1L << i) == 0) {
+                continue;
+            }
+            ClientPolicy policy = policies.get(i);
+            names.add(policy.name());
+            chat.append(policy.chat());
+            pluginMessages.addAll(policy.pluginMessages());
+        }
+        return new Payload(String.join(", ", names), chat.toString(), Collections.unmodifiableList(pluginMessages));
+    }
+
+    private static String[] groups(List<List<String>> patterns) {
+        String[] groups = new String[patterns.size()];
+
+        for (int i = 0; i < groups.length; i++) {
+            groups[i] = patterns.get(i).isEmpty() ? null : "policy" + i;
+        }
+        return groups;
+    }
+
+    private static @Nullable Pattern combine(List<List<String>> patterns, String[] groups) {
+        StringBuilder combined = new StringBuilder();
+
+        for (int i = 0; i < groups.length; i++) {
+            if (groups[i] == null) {
+                continue;
+            }
+            List<String> policyPatterns = patterns.get(i);
+            combined.append("(?:(?=(?<").append(groups[i]).append(">");
+
+            for (int j = 0; j < policyPatterns.size(); j++) {
+                combined.append(j == 0 ? "" : "|").append("(?:").append(policyPatterns.get(j)).append(")");
+            }
+            combined.append(")$))?");
+        }
+        return combined.length() == 0 ? null : Pattern.compile(combined.toString());
+    }
+
+    static final class Payload {
+
+        private final String policies;
+        private final String chat;
+        private final List<ClientPolicy.PluginMessage> pluginMessages;
+
+        private Payload(String policies, String chat, List<ClientPolicy.PluginMessage> pluginMessages) {
+            this.policies = policies;
+            this.chat = chat;
+            this.pluginMessages = pluginMessages;
+        }
+
+        /**
+         * @return the names of the matched policies, for logging.
+         */
+        String policies() {
+            return policies;
+        }
+
+        String chat() {
+            return chat;
+        }
+
+        List<ClientPolicy.PluginMessage> pluginMessages() {
+            return pluginMessages;
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package work.fking.paper.novoxel;
+
+import org.bukkit.configuration.ConfigurationSection;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * What to send the clients of a mod: the chat codes the mod looks for, and plugin messages on its channels. A client is
+ * considered to run the mod if its brand, or any of the plugin channels it registered, fully matches one of the
+ * policy's patterns. Clients which didn't send a brand in time are matched as if their brand was empty.
+ */
+final class ClientPolicy {
+
+    private final String name;
+    private final List<String> brands;
+    private final List<String> channels;
+    private final String chat;
+    private final List<PluginMessage> pluginMessages;
+
+    ClientPolicy(String name, List<String> brands, List<String> channels, String chat, List<PluginMessage> pluginMessages) {
+        this.name = name;
+        this.brands = brands;
+        this.channels = channels;
+        this.chat = chat;
+        this.pluginMessages = pluginMessages;
+    }
+
+    /**
+     * Reads the policy and encodes its payloads, so that nothing but sending them is left for when players join.
+     *
+     * @throws IllegalArgumentException if a pattern or payload is invalid.
+     */
+    static ClientPolicy fromConfig(String name, ConfigurationSection section) {
+        List<String> brands = section.getStringList("brands");
+        List<String> channels = section.getStringList("channels");
+
+        for (String pattern : brands) {
+            validate(name, pattern);
+        }
+        for (String pattern : channels) {
+            validate(name, pattern);
+        }
+        List<PluginMessage> pluginMessages = new ArrayList<>();
+
+        for (Map<?, ?> message : section.getMapList("plugin-messages")) {
+            Object channel = message.get("channel");
+            Object payload = message.get("payload");
+
+            if (channel == null || payload == null) {
+                throw new IllegalArgumentException("Plugin messages of policy " + name + " need both a channel and a payload");
+            }
+            pluginMessages.add(new PluginMessage(channel.toString(), decodeHex(name, payload.toString())));
+        }
+        String chat = String.join("", section.getStringList("chat"));
+        return new ClientPolicy(name, brands, channels, chat, Collections.unmodifiableList(pluginMessages));
+    }
+
+    String name() {
+        return name;
+    }
+
+    List<String> brands() {
+        return brands;
+    }
+
+    List<String> channels() {
+        return channels;
+    }
+
+    /**
+     * @return the chat codes, all in one line, or an empty string if there are none.
+     */
+    String chat() {
+        return chat;
+    }
+
+    List<PluginMessage> pluginMessages() {
+        return pluginMessages;
+    }
+
+    private static void validate(String name, String pattern) {
+        try {
+            Pattern.compile(pattern);
+        } catch (PatternSyntaxException e) {
+            throw new IllegalArgumentException("Invalid pattern in policy " + name + ": " + e.getMessage(), e);
+        }
+    }
+
+    private static byte[] decodeHex(String name, String hex) {
+        String digits = hex.replace(" ", "");
+
+        if (digits.length() % 2 != 0) {
+            throw new IllegalArgumentException("Payload of policy " + name + " has an odd amount of hex digits");
+        }
+        byte[] bytes = new byte[digits.length() / 2];
+
+        for (int i = 0; i < bytes.length; i++) {
+            int high = Character.digit(digits.charAt(i * 2), 16);
+            int low = Character.digit(digits.charAt(i * 2 + 1), 16);
+
+            if (high < 0 || low < 0) {
+                throw new IllegalArgumentException("Payload of policy " + name + " isn't hex: " + hex);
+            }
+            bytes[i] = (byte) (high << 4 | low);
+        }
+        return bytes;
+    }
+
+    static final class PluginMessage {
+
+        private final String channel;
+        private final byte[] payload;
+
+        PluginMessage(String channel, byte[] payload) {
+            this.channel = channel;
+            this.payload = payload;
+        }
+
+        String channel() {
+            return channel;
+        }
+
+        byte[] payload() {
+            return payload;
+        }
+    }
+}
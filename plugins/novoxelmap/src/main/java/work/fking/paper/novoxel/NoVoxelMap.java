@@ -1,6 +1,10 @@
 package work.fking.paper.novoxel;
 
+import org.bukkit.Bukkit;
 import org.bukkit.Server;
+import org.bukkit.command.Command;
+import org.bukkit.command.CommandSender;
+import org.bukkit.configuration.ConfigurationSection;
 import org.bukkit.entity.Player;
 import org.bukkit.event.EventHandler;
 import org.bukkit.event.Listener;
@@ -10,43 +14,70 @@ import org.bukkit.plugin.java.JavaPlugin;
 import org.bukkit.plugin.messaging.PluginMessageListener;
 
 import javax.annotation.Nonnull;
-import java.nio.ByteBuffer;
+import javax.annotation.Nullable;
 import java.nio.charset.StandardCharsets;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Objects;
+import java.util.Set;
+import java.util.UUID;
 
 public class NoVoxelMap extends JavaPlugin implements Listener, PluginMessageListener {
 
     private static final String PLUGIN_CHANNEL_BRAND = "minecraft:brand";
     private static final String CLIENT_BRAND_VANILLA = "vanilla";
+    private static final byte[] CLIENT_BRAND_VANILLA_BYTES = CLIENT_BRAND_VANILLA.getBytes(StandardCharsets.UTF_8);
+    private static final int MAX_STRING_BYTES = 0x7FFF;
 
-    private static final String NO_RADAR = "§3 §6 §3 §6 §3 §6 §e ";
-    private static final String NO_CAVE_MAPPING = "§3 §6 §3 §6 §3 §6 §d ";
-
-    private final Map<Player, String> clientBrands = new HashMap<>();
+    private final PolicyCounters counters = new PolicyCounters();
+    private ClientHandshakes handshakes;
+    // swapped by reloads
+    private volatile ClientPolicies policies;
 
     @Override
     public void onEnable() {
+        saveDefaultConfig();
+        this.policies = loadPolicies();
+        this.handshakes = new ClientHandshakes(Math.max(1, getConfig().getLong("brand-timeout-ticks", 40)), this::decide);
+
         Server server = getServer();
         server.getPluginManager().registerEvents(this, this);
         server.getMessenger().registerIncomingPluginChannel(this, PLUGIN_CHANNEL_BRAND, this);
+        server.getScheduler().runTaskTimer(this, handshakes::tick, 1, 1);
+    }
+
+    /**
+     * {@code /novoxelmap [stats|reload]}
+     */
+    @Override
+    public boolean onCommand(@Nonnull CommandSender sender, @Nonnull Command command, @Nonnull String label, @Nonnull String[] args) {
+        if (args.length == 0 || args[0].equalsIgnoreCase("stats")) {
+            sender.sendMessage(policies.size() + " client policies loaded.");
+            sender.sendMessage(counters.summary());
+            return true;
+        }
+        if (args[0].equalsIgnoreCase("reload")) {
+            reloadConfig();
+            try {
+                this.policies = loadPolicies();
+            } catch (IllegalArgumentException e) {
+                sender.sendMessage("Failed to reload the client policies, the previous ones are kept: " + e.getMessage());
+                return true;
+            }
+            sender.sendMessage("Reloaded " + policies.size() + " client policies.");
+            return true;
+        }
+        return false;
     }
 
     @EventHandler
     public void onPlayerJoin(PlayerJoinEvent event) {
-        Player player = event.getPlayer();
-        String clientBrand = clientBrands.get(player);
-
-        if (!Objects.equals(clientBrand, CLIENT_BRAND_VANILLA)) {
-            getSLF4JLogger().info("Player {} is not using a vanilla client, attempting to disable voxelmap", player.getName());
-            player.sendMessage(NO_RADAR + NO_CAVE_MAPPING);
-        }
+        handshakes.joined(event.getPlayer().getUniqueId());
     }
 
     @EventHandler
     public void onPlayerQuit(PlayerQuitEvent event) {
-        clientBrands.remove(event.getPlayer());
+        handshakes.quit(event.getPlayer().getUniqueId());
     }
 
     @Override
@@ -55,41 +86,128 @@ public class NoVoxelMap extends JavaPlugin implements Listener, PluginMessageLis
         if (!Objects.equals(channel, PLUGIN_CHANNEL_BRAND)) {
             return;
         }
-        String brand = readMCString(ByteBuffer.wrap(message));
+        String brand = readMCString(message);
         getSLF4JLogger().debug("Player {} logged in with client brand {}", player.getName(), brand);
 
-        if (brand != null) {
-            clientBrands.put(player, brand);
+        if (brand == null || !handshakes.brandReceived(player.getUniqueId(), brand)) {
+            return;
+        }
+        UUID playerUuid = player.getUniqueId();
+
+        if (Bukkit.isPrimaryThread()) {
+            handshakes.decide(playerUuid);
+        } else {
+            getServer().getScheduler().runTask(this, () -> handshakes.decide(playerUuid));
+        }
+    }
+
+    private void decide(UUID playerUuid, @Nullable String brand) {
+        Player player = getServer().getPlayer(playerUuid);
+
+        if (player == null) {
+            return;
+        }
+        ClientPolicies policies = this.policies;
+        Set<String> channels = player.getListeningPluginChannels();
+        long start = System.nanoTime();
+        long matched = policies.match(brand == null ? "" : brand, channels);
+        counters.classified(matched != 0, brand == null, System.nanoTime() - start);
+
+        if (matched == 0) {
+            return;
+        }
+        ClientPolicies.Payload payload = policies.payload(matched);
+        getSLF4JLogger().info("Player {} matched the {} client policies ({}), attempting to disable their mods", player.getName(), payload.policies(), brand == null ? "no brand" : brand);
+
+        if (!payload.chat().isEmpty()) {
+            player.sendMessage(payload.chat());
+            counters.chatMessageSent();
+        }
+        for (ClientPolicy.PluginMessage message : payload.pluginMessages()) {
+            // the server drops messages on channels the client didn't register anyway
+            if (channels.contains(message.channel())) {
+                player.sendPluginMessage(this, message.channel(), message.payload());
+                counters.pluginMessageSent();
+            }
         }
     }
 
-    private String readMCString(ByteBuffer buffer) {
-        int size = readVarInt(buffer);
+    /**
+     * @throws IllegalArgumentException if a policy is invalid.
+     */
+    private ClientPolicies loadPolicies() {
+        ConfigurationSection section = getConfig().getConfigurationSection("policies");
+        List<ClientPolicy> loaded = new ArrayList<>();
+
+        if (section != null) {
+            for (String name : section.getKeys(false)) {
+                ClientPolicy policy = ClientPolicy.fromConfig(name, section.getConfigurationSection(name));
+
+                for (ClientPolicy.PluginMessage message : policy.pluginMessages()) {
+                    getServer().getMessenger().registerOutgoingPluginChannel(this, message.channel());
+                }
+                loaded.add(policy);
+            }
+        }
+        return ClientPolicies.compile(loaded);
+    }
 
-        if (size > 0x7FFF) {
+    /**
+     * Reads the string a brand message is made of straight from the message. Nothing but the brand itself is
+     * allocated, and not even that for vanilla clients.
+     *
+     * @return the string, or null if the message is malformed.
+     */
+    @Nullable
+    static String readMCString(byte[] message) {
+        long varInt = readVarInt(message, 0);
+
+        if (varInt < 0) {
             return null;
         }
-        byte[] stringBuffer = new byte[size];
-        buffer.get(stringBuffer);
-        return new String(stringBuffer, StandardCharsets.UTF_8);
+        int size = (int) varInt;
+        int offset = (int) (varInt >>> 32);
+
+        if (size > MAX_STRING_BYTES || size > message.length - offset) {
+            return null;
+        }
+        if (regionEquals(message, offset, size, CLIENT_BRAND_VANILLA_BYTES)) {
+            return CLIENT_BRAND_VANILLA;
+        }
+        return new String(message, offset, size, StandardCharsets.UTF_8);
     }
 
-    private int readVarInt(ByteBuffer buffer) {
-        int numRead = 0;
+    /**
+     * @return the value in the low 32 bits and the offset right after it in the high ones, or -1 if the value is
+     * truncated or longer than 5 bytes.
+     */
+    static long readVarInt(byte[] bytes, int offset) {
         int result = 0;
-        byte read;
 
-        do {
-            read = buffer.get();
-            int value = (read & 0x7F);
-            result |= (value << (7 * numRead));
+        for (int i = 0; i < 5; i++) {
+            if (offset + i >= bytes.length) {
+                return -1;
+            }
+            byte read = bytes[offset + i];
+            result |= (read & 0x7F) << (7 * i);
 
-            numRead++;
-            if (numRead > 5) {
-                throw new RuntimeException("VarInt is too big");
+            if ((read & 0x80) == 0) {
+                // negative values aren't valid lengths either
+                return result < 0 ? -1 : ((long) (offset + i + 1) << 32) | result;
             }
-        } while ((read & 0x80) != 0);
+        }
+        return -1;
+    }
 
-        return result;
+    private static boolean regionEquals(byte[] bytes, int offset, int length, byte[] other) {
+        if (length != other.length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (bytes[offset + i] != other[i]) {
+                return false;
+            }
+        }
+        return true;
     }
 }
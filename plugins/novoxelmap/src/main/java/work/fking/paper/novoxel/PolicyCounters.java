@@ -0,0 +1,50 @@
+package work.fking.paper.novoxel;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters of the policies' work since the plugin was enabled, to tell whether join waves cost anything measurable.
+ */
+final class PolicyCounters {
+
+    private final LongAdder joinsClassified = new LongAdder();
+    private final LongAdder joinsMatched = new LongAdder();
+    private final LongAdder brandTimeouts = new LongAdder();
+    private final LongAdder matchNanos = new LongAdder();
+    private final AtomicLong maxMatchNanos = new AtomicLong();
+    private final LongAdder chatMessagesSent = new LongAdder();
+    private final LongAdder pluginMessagesSent = new LongAdder();
+
+    void classified(boolean matched, boolean timedOut, long nanos) {
+        joinsClassified.increment();
+        matchNanos.add(nanos);
+        maxMatchNanos.accumulateAndGet(nanos, Math::max);
+
+        if (matched) {
+            joinsMatched.increment();
+        }
+        if (timedOut) {
+            brandTimeouts.increment();
+        }
+    }
+
+    void chatMessageSent() {
+        chatMessagesSent.increment();
+    }
+
+    void pluginMessageSent() {
+        pluginMessagesSent.increment();
+    }
+
+    String summary() {
+        long classified = joinsClassified.sum();
+        long nanos = matchNanos.sum();
+        return String.format("Joins classified: %d, matched: %d, without a brand in time: %d%n"
+                        + "Matcher time: %dus total, %.1fus average, %.1fus max%n"
+                        + "Messages sent: %d chat, %d plugin",
+                classified, joinsMatched.sum(), brandTimeouts.sum(),
+                nanos / 1000, classified == 0 ? 0 : nanos / 1000.0 / classified, maxMatchNanos.get() / 1000.0,
+                chatMessagesSent.sum(), pluginMessagesSent.sum());
+    }
+}